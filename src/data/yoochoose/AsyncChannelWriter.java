@@ -0,0 +1,237 @@
+package data.yoochoose;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a set of files (e.g. a feature file and its label file) through one background thread,
+ * so encoding and disk I/O overlap rather than alternate. Each file has a direct buffer the
+ * caller fills; a full buffer is queued for the background thread to drain to the file's
+ * {@link FileChannel} and the caller carries on with a free one. Up to queue depth buffers can be
+ * waiting to be written, beyond that the caller blocks until one has been.
+ *
+ * Bytes reach each file in the order they were written to it. A write error on the background
+ * thread is reported by the next write or by {@link #close()}. Optionally close() forces the files
+ * to disk (fsync) before closing them. Not thread-safe, one thread writes.
+ */
+public class AsyncChannelWriter implements Closeable {
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+  /**
+   * A buffer ready to be written to a file, or the end of the writes when buffer is null.
+   */
+  private static class Pending {
+    private final int file;
+    private final ByteBuffer buffer;
+
+    private Pending(int inFile, ByteBuffer inBuffer) {
+      file = inFile;
+      buffer = inBuffer;
+    }
+  }
+
+  private static final Pending END = new Pending(-1, null);
+
+  private final FileChannel[] channels;
+
+  private final ByteBuffer[] current;
+
+  private final BlockingQueue<Pending> queue;
+
+  private final BlockingQueue<ByteBuffer> free;
+
+  private final boolean syncOnClose;
+
+  private final Thread drainer;
+
+  private volatile IOException failure;
+
+  private boolean closed;
+
+  public AsyncChannelWriter(String[] inFNames) throws IOException {
+    this(inFNames, DEFAULT_BUFFER_SIZE, DEFAULT_QUEUE_DEPTH, false);
+  }
+
+  /**
+   * Creates (or truncates) the files.
+   *
+   * @param inFNames
+   * @param inBufferSize bytes per buffer
+   * @param inQueueDepth full buffers that can wait to be written, at least 1
+   * @param inSyncOnClose whether close() forces the files to disk
+   * @throws IOException
+   */
+  public AsyncChannelWriter(String[] inFNames, int inBufferSize, int inQueueDepth,
+      boolean inSyncOnClose) throws IOException {
+    if (inBufferSize <= 0 || inQueueDepth <= 0) {
+      throw new IllegalArgumentException(
+          "Buffer size and queue depth must be positive: " + inBufferSize + ", " + inQueueDepth);
+    }
+    syncOnClose = inSyncOnClose;
+    channels = new FileChannel[inFNames.length];
+    try {
+      for (int i = 0; i < inFNames.length; i++) {
+        channels[i] = FileChannel.open(Paths.get(inFNames[i]), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      }
+    } catch (IOException ie) {
+      closeChannels();
+      throw ie;
+    }
+    current = new ByteBuffer[inFNames.length];
+    for (int i = 0; i < current.length; i++) {
+      current[i] = ByteBuffer.allocateDirect(inBufferSize);
+    }
+    // One more slot for END, so it can always be queued
+    queue = new ArrayBlockingQueue<>(inQueueDepth + 1);
+    free = new ArrayBlockingQueue<>(inQueueDepth);
+    for (int i = 0; i < inQueueDepth; i++) {
+      free.add(ByteBuffer.allocateDirect(inBufferSize));
+    }
+    drainer = new Thread(this::drain, "output-writer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * @return the number of files written to
+   */
+  public int files() {
+    return channels.length;
+  }
+
+  /**
+   * Writes the remaining bytes of inSrc to file inFile, leaving inSrc at its limit.
+   */
+  public void write(int inFile, ByteBuffer inSrc) throws IOException {
+    while (inSrc.hasRemaining()) {
+      ByteBuffer b = current[inFile];
+      if (!b.hasRemaining()) {
+        b = swap(inFile);
+      }
+      if (inSrc.remaining() <= b.remaining()) {
+        b.put(inSrc);
+      } else {
+        int limit = inSrc.limit();
+        inSrc.limit(inSrc.position() + b.remaining());
+        b.put(inSrc);
+        inSrc.limit(limit);
+      }
+    }
+  }
+
+  public void write(int inFile, LineEncoder inLine) throws IOException {
+    write(inFile, inLine.buffer());
+  }
+
+  /**
+   * Writes out what is buffered, waits for the background thread to finish, forces the files to
+   * disk if asked to and closes them.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      for (int i = 0; i < current.length; i++) {
+        if (current[i].position() > 0) {
+          current[i].flip();
+          queue.put(new Pending(i, current[i]));
+        }
+      }
+      queue.put(END);
+      drainer.join();
+      if (syncOnClose && failure == null) {
+        for (FileChannel channel : channels) {
+          channel.force(true);
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      drainer.interrupt();
+      throw new InterruptedIOException("Interrupted closing output files");
+    } catch (IOException ie) {
+      failed(ie);
+    } finally {
+      closeChannels();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Queues file inFile's full buffer and takes a free one, waiting for one to be written if need
+   * be.
+   */
+  private ByteBuffer swap(int inFile) throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    ByteBuffer full = current[inFile];
+    full.flip();
+    try {
+      queue.put(new Pending(inFile, full));
+      current[inFile] = free.take();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted writing output files");
+    }
+    return current[inFile];
+  }
+
+  /**
+   * Background thread: writes queued buffers until {@link #END}. After a failure buffers are only
+   * handed back, so the writing thread never waits forever.
+   */
+  private void drain() {
+    try {
+      for (Pending p = queue.take(); p != END; p = queue.take()) {
+        if (failure == null) {
+          try {
+            while (p.buffer.hasRemaining()) {
+              channels[p.file].write(p.buffer);
+            }
+          } catch (IOException ie) {
+            failed(ie);
+          }
+        }
+        p.buffer.clear();
+        // Buffers from close() are not taken from the pool, don't overfill it
+        free.offer(p.buffer);
+      }
+    } catch (InterruptedException ie) {
+      failed(new InterruptedIOException("Interrupted writing output files"));
+    }
+  }
+
+  private void failed(IOException inE) {
+    if (failure == null) {
+      failure = inE;
+    }
+  }
+
+  private void closeChannels() {
+    for (FileChannel channel : channels) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ie) {
+          failed(ie);
+        }
+      }
+    }
+  }
+}
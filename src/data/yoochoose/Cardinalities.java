@@ -0,0 +1,184 @@
+package data.yoochoose;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.LongFunction;
+
+import org.slf4j.Logger;
+
+/**
+ * Approximate distinct session, item and category counts, overall and per day / hour window, from
+ * {@link HyperLogLog} counters. Fed from ingestion; instances filled on different threads can be
+ * merged. Category 0 (data not present) is not counted.
+ */
+public class Cardinalities {
+
+  private static final int GLOBAL_PRECISION = 14;
+
+  private static final int DAY_PRECISION = 10;
+
+  private static final int HOUR_PRECISION = 8;
+
+  private final Window global = new Window(GLOBAL_PRECISION);
+
+  /**
+   * Keyed by epoch day.
+   */
+  private final NavigableMap<Long, Window> days = new TreeMap<>();
+
+  /**
+   * Keyed by hours since the epoch.
+   */
+  private final NavigableMap<Long, Window> hours = new TreeMap<>();
+
+  /**
+   * Events arrive clustered in time, so the last windows used save most map lookups.
+   */
+  private long lastDay = Long.MIN_VALUE;
+
+  private Window lastDayWindow;
+
+  private long lastHour = Long.MIN_VALUE;
+
+  private Window lastHourWindow;
+
+  /**
+   * Distinct counts for one window.
+   */
+  public static class Window {
+    private final HyperLogLog sessions;
+    private final HyperLogLog items;
+    private final HyperLogLog categories;
+
+    private Window(int inPrecision) {
+      sessions = new HyperLogLog(inPrecision);
+      items = new HyperLogLog(inPrecision);
+      categories = new HyperLogLog(inPrecision);
+    }
+
+    private void add(int inSessionId, int inItemId, int inCategoryId) {
+      sessions.add(inSessionId);
+      items.add(inItemId);
+      if (inCategoryId != 0) {
+        categories.add(inCategoryId);
+      }
+    }
+
+    private void merge(Window inOther) {
+      sessions.merge(inOther.sessions);
+      items.merge(inOther.items);
+      categories.merge(inOther.categories);
+    }
+
+    public long sessions() {
+      return sessions.estimate();
+    }
+
+    public long items() {
+      return items.estimate();
+    }
+
+    public long categories() {
+      return categories.estimate();
+    }
+  }
+
+  /**
+   * Counts a click, or a purchase if inCategoryId is 0. Events without a timestamp only count
+   * towards the global window.
+   */
+  public void add(int inSessionId, long inTimestamp, int inItemId, int inCategoryId) {
+    global.add(inSessionId, inItemId, inCategoryId);
+    if (inTimestamp == Timestamps.NONE) {
+      return;
+    }
+    long day = Timestamps.epochDay(inTimestamp);
+    if (day != lastDay) {
+      lastDay = day;
+      lastDayWindow = window(days, day, DAY_PRECISION);
+    }
+    lastDayWindow.add(inSessionId, inItemId, inCategoryId);
+    long hour = Math.floorDiv(inTimestamp, Timestamps.MILLIS_PER_HOUR);
+    if (hour != lastHour) {
+      lastHour = hour;
+      lastHourWindow = window(hours, hour, HOUR_PRECISION);
+    }
+    lastHourWindow.add(inSessionId, inItemId, inCategoryId);
+  }
+
+  public void merge(Cardinalities inOther) {
+    global.merge(inOther.global);
+    merge(days, inOther.days, DAY_PRECISION);
+    merge(hours, inOther.hours, HOUR_PRECISION);
+  }
+
+  public Window global() {
+    return global;
+  }
+
+  /**
+   * Logs the global counts and a summary of the day and hour windows (each day at debug level).
+   */
+  public void log(Logger inLog) {
+    inLog.info("~{} distinct sessions, ~{} distinct items, ~{} distinct categories",
+        global.sessions(), global.items(), global.categories());
+    for (Map.Entry<Long, Window> e : days.entrySet()) {
+      Window w = e.getValue();
+      inLog.debug("{}: ~{} sessions, ~{} items, ~{} categories", LocalDate.ofEpochDay(e.getKey()),
+          w.sessions(), w.items(), w.categories());
+    }
+    logBusiest(inLog, "days", days, k -> LocalDate.ofEpochDay(k).toString());
+    logBusiest(inLog, "hours", hours,
+        k -> LocalDateTime.ofEpochSecond(k * 3_600L, 0, ZoneOffset.UTC).toString());
+  }
+
+  /**
+   * @return the windows by epoch day, in day order
+   */
+  public NavigableMap<Long, Window> days() {
+    return days;
+  }
+
+  /**
+   * @return the windows by hours since the epoch, in hour order
+   */
+  public NavigableMap<Long, Window> hours() {
+    return hours;
+  }
+
+  private static void logBusiest(Logger inLog, String inUnit, Map<Long, Window> inWindows,
+      LongFunction<String> inFormat) {
+    long busiest = 0;
+    long busiestKey = 0;
+    for (Map.Entry<Long, Window> e : inWindows.entrySet()) {
+      long sessions = e.getValue().sessions();
+      if (sessions > busiest) {
+        busiest = sessions;
+        busiestKey = e.getKey();
+      }
+    }
+    if (!inWindows.isEmpty()) {
+      inLog.info("{} {} with events, busiest {} with ~{} sessions", inWindows.size(), inUnit,
+          inFormat.apply(busiestKey), busiest);
+    }
+  }
+
+  private static Window window(Map<Long, Window> inWindows, long inKey, int inPrecision) {
+    Window rVal = inWindows.get(inKey);
+    if (rVal == null) {
+      rVal = new Window(inPrecision);
+      inWindows.put(inKey, rVal);
+    }
+    return rVal;
+  }
+
+  private static void merge(Map<Long, Window> inTo, Map<Long, Window> inFrom, int inPrecision) {
+    for (Map.Entry<Long, Window> e : inFrom.entrySet()) {
+      window(inTo, e.getKey(), inPrecision).merge(e.getValue());
+    }
+  }
+}
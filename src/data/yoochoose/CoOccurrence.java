@@ -0,0 +1,228 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Sparse, symmetric item-item co-occurrence counts - the number of sessions two items occur in
+ * together - keeping only the top-N neighbours of each item. Rows are stored in compressed sparse
+ * row (CSR) form: the neighbours of row r are the slots [{@link #start(int)}, {@link #end(int)}),
+ * heaviest first (the smaller item id first if tied).
+ *
+ * Counts are gathered by {@link Builder}s, one per thread, which are merged and then compacted
+ * with {@link Builder#build(int)}.
+ */
+public class CoOccurrence {
+
+  /**
+   * Only the first distinct items of a session are paired, which bounds the quadratic cost of
+   * very long sessions.
+   */
+  public static final int MAX_SESSION_ITEMS = 50;
+
+  private final IdDictionary ids;
+
+  private final int[] offsets;
+
+  private final int[] neighbours;
+
+  private final int[] weights;
+
+  private final BitSet full;
+
+  private CoOccurrence(IdDictionary inIds, int[] inOffsets, int[] inNeighbours, int[] inWeights,
+      BitSet inFull) {
+    ids = inIds;
+    offsets = inOffsets;
+    neighbours = inNeighbours;
+    weights = inWeights;
+    full = inFull;
+  }
+
+  /**
+   * @return the number of rows, i.e. items with at least one neighbour
+   */
+  public int rows() {
+    return ids.size();
+  }
+
+  /**
+   * @return the number of neighbour slots over all rows
+   */
+  public int size() {
+    return neighbours.length;
+  }
+
+  /**
+   * @return the row of an item, -1 if it has no neighbours
+   */
+  public int row(int inItemId) {
+    return ids.lookup(inItemId);
+  }
+
+  public int itemId(int inRow) {
+    return ids.decode(inRow);
+  }
+
+  public int start(int inRow) {
+    return offsets[inRow];
+  }
+
+  public int end(int inRow) {
+    return offsets[inRow + 1];
+  }
+
+  /**
+   * @return whether neighbours were dropped from the row to keep only the top ones, so that a
+   *         lighter neighbour than its last would not have made it
+   */
+  public boolean isFull(int inRow) {
+    return full.get(inRow);
+  }
+
+  /**
+   * @return the item id in a neighbour slot
+   */
+  public int neighbour(int inSlot) {
+    return neighbours[inSlot];
+  }
+
+  /**
+   * @return the number of sessions with both items, for a neighbour slot
+   */
+  public int weight(int inSlot) {
+    return weights[inSlot];
+  }
+
+  /**
+   * @return the co-occurrence count if inOtherId is one of the top neighbours of inItemId, else 0
+   */
+  public int weight(int inItemId, int inOtherId) {
+    int r = row(inItemId);
+    if (r >= 0) {
+      for (int s = offsets[r]; s < offsets[r + 1]; s++) {
+        if (neighbours[s] == inOtherId) {
+          return weights[s];
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Per-thread accumulator of pair counts, fed a session at a time: {@link #add(int)} for each
+   * item, then {@link #endSession()}.
+   */
+  public static class Builder {
+    private final LongIntMap pairs = new LongIntMap(1_024);
+
+    private final IntSet seen = new IntSet();
+
+    private final int[] session = new int[MAX_SESSION_ITEMS];
+
+    private int count;
+
+    /**
+     * Adds an item to the current session, repeats and items past the first
+     * {@link CoOccurrence#MAX_SESSION_ITEMS} distinct ones are ignored.
+     */
+    public void add(int inItemId) {
+      if (count < MAX_SESSION_ITEMS && seen.add(inItemId)) {
+        session[count++] = inItemId;
+      }
+    }
+
+    /**
+     * Counts every pair of the current session's items, and starts the next session.
+     */
+    public void endSession() {
+      for (int i = 0; i < count; i++) {
+        for (int j = i + 1; j < count; j++) {
+          pairs.addTo(key(session[i], session[j]), 1);
+        }
+      }
+      seen.clear();
+      count = 0;
+    }
+
+    public void merge(Builder inOther) {
+      inOther.pairs.forEach(pairs::addTo);
+    }
+
+    /**
+     * @return the number of distinct item pairs counted
+     */
+    public int pairs() {
+      return pairs.size();
+    }
+
+    /**
+     * Compacts the counts into rows of at most inNeighbours neighbours each.
+     */
+    public CoOccurrence build(int inNeighbours) {
+      IdDictionary ids = new IdDictionary();
+      pairs.forEach((k, w) -> {
+        ids.encode(first(k));
+        ids.encode(second(k));
+      });
+      int rows = ids.size();
+      int[] start = new int[rows + 1];
+      pairs.forEach((k, w) -> {
+        start[ids.lookup(first(k)) + 1]++;
+        start[ids.lookup(second(k)) + 1]++;
+      });
+      for (int r = 0; r < rows; r++) {
+        start[r + 1] += start[r];
+      }
+
+      // Both directions of every pair, as sort keys ordering each row heaviest first
+      long[] ordered = new long[start[rows]];
+      int[] next = Arrays.copyOf(start, rows);
+      pairs.forEach((k, w) -> {
+        ordered[next[ids.lookup(first(k))]++] = order(w, second(k));
+        ordered[next[ids.lookup(second(k))]++] = order(w, first(k));
+      });
+
+      int[] offsets = new int[rows + 1];
+      BitSet full = new BitSet(rows);
+      for (int r = 0; r < rows; r++) {
+        offsets[r + 1] = offsets[r] + Math.min(start[r + 1] - start[r], inNeighbours);
+        full.set(r, start[r + 1] - start[r] > inNeighbours);
+      }
+      int[] neighbours = new int[offsets[rows]];
+      int[] weights = new int[offsets[rows]];
+      for (int r = 0; r < rows; r++) {
+        Arrays.sort(ordered, start[r], start[r + 1]);
+        for (int s = offsets[r], o = start[r]; s < offsets[r + 1]; s++, o++) {
+          neighbours[s] = (int) ordered[o];
+          weights[s] = Integer.MAX_VALUE - (int) (ordered[o] >>> 32);
+        }
+      }
+      return new CoOccurrence(ids, offsets, neighbours, weights, full);
+    }
+  }
+
+  /**
+   * @return the pair as a map key, the smaller id in the high half
+   */
+  private static long key(int inA, int inB) {
+    int lo = Math.min(inA, inB);
+    int hi = Math.max(inA, inB);
+    return ((long) lo << 32) | (hi & 0xFFFFFFFFL);
+  }
+
+  private static int first(long inKey) {
+    return (int) (inKey >>> 32);
+  }
+
+  private static int second(long inKey) {
+    return (int) inKey;
+  }
+
+  /**
+   * @return a key sorting by weight descending, then by (unsigned) id ascending
+   */
+  private static long order(int inWeight, int inId) {
+    return ((long) (Integer.MAX_VALUE - inWeight) << 32) | (inId & 0xFFFFFFFFL);
+  }
+}
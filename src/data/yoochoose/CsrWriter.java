@@ -0,0 +1,259 @@
+package data.yoochoose;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes sessions as a binary sparse matrix in CSR (compressed sparse row) form, one row per
+ * session, so a trainer can memory-map the arrays rather than parse text. All numbers are
+ * little-endian, each array starts on an 8 byte boundary:
+ *
+ * <pre>
+ * header, 80 bytes:
+ *   0  "YCSR"          magic
+ *   4  int32           version, 3
+ *   8  int64           rows
+ *   16 int64           columns, one more than the largest column index (2^bits when hashing)
+ *   24 int64           nnz, the number of stored values
+ *   32 int64 x 6       byte offsets of the arrays, in this order:
+ * int32[nnz]           column indices
+ * float32[nnz]         values
+ * int64[rows + 1]      row offsets, row r's entries are [offsets[r], offsets[r + 1])
+ * float32[rows]        labels, 1 for a buyer and 0 otherwise
+ * int32[rows]          session ids
+ * int32[rows]          categories, the catSimilarity feature (the dominant category id), 0 if none
+ * </pre>
+ *
+ * In numpy for example, with h = np.fromfile(name, np.int64, 10) the column indices are
+ * np.memmap(name, np.int32, 'r', offset=h[4], shape=(h[3],)). Column ids are those of the LIBSVM
+ * output, but unlike there zero values are not stored. Whole-number features are exact as floats
+ * up to 2^24, which covers all but category ids (brands are ids of 10 digits), so catSimilarity has
+ * the categories array instead of a column. Version 2 files held float64 values, zeros included,
+ * and catSimilarity as a column; version 1 files float32 values.
+ *
+ * The column indices are written straight after the header, the other arrays to temporary files
+ * that {@link #close()} appends and deletes, as their sizes are only known at the end. All go
+ * through one {@link AsyncChannelWriter}.
+ */
+public class CsrWriter implements Closeable {
+
+  public static final int VERSION = 3;
+
+  public static final int HEADER_SIZE = 80;
+
+  private static final byte[] MAGIC = "YCSR".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Column index that ends a row in the encoded rows.
+   */
+  private static final int END_OF_ROW = -1;
+
+  /**
+   * Column index marking the row's category in the encoded rows.
+   */
+  private static final int CATEGORY = -2;
+
+  private static final int INDICES = 0;
+
+  private static final int VALUES = 1;
+
+  private static final int OFFSETS = 2;
+
+  private static final int LABELS = 3;
+
+  private static final int SESSIONS = 4;
+
+  private static final int CATEGORIES = 5;
+
+  private static final String[] TEMP_SUFFIXES = {null, ".values.tmp", ".offsets.tmp",
+      ".labels.tmp", ".sessions.tmp", ".categories.tmp"};
+
+  private final Path[] paths = new Path[TEMP_SUFFIXES.length];
+
+  private final LineEncoder[] sections = new LineEncoder[TEMP_SUFFIXES.length];
+
+  private final AsyncChannelWriter out;
+
+  private final boolean syncOnClose;
+
+  private long rows;
+
+  private long columns;
+
+  private long nnz;
+
+  private boolean closed;
+
+  public CsrWriter(String inFName) throws IOException {
+    this(inFName, AsyncChannelWriter.DEFAULT_BUFFER_SIZE, AsyncChannelWriter.DEFAULT_QUEUE_DEPTH,
+        false);
+  }
+
+  /**
+   * Creates (or truncates) inFName, buffering as {@link AsyncChannelWriter} does.
+   *
+   * @param inFName
+   * @param inBufferSize
+   * @param inQueueDepth
+   * @param inSyncOnClose whether close() forces the file to disk
+   * @throws IOException
+   */
+  public CsrWriter(String inFName, int inBufferSize, int inQueueDepth, boolean inSyncOnClose)
+      throws IOException {
+    String[] names = new String[TEMP_SUFFIXES.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = i == INDICES ? inFName : inFName + TEMP_SUFFIXES[i];
+      paths[i] = Paths.get(names[i]);
+      sections[i] = new LineEncoder(1 << 12);
+    }
+    syncOnClose = inSyncOnClose;
+    // The temporary files are deleted, so never forced to disk
+    out = new AsyncChannelWriter(names, inBufferSize, inQueueDepth, false);
+    out.write(INDICES, ByteBuffer.allocate(HEADER_SIZE));
+    out.write(OFFSETS, sections[OFFSETS].putLongLE(0L));
+  }
+
+  /**
+   * Opens a row on inOut: the session id and label, followed by the row's features as added by
+   * {@link #feature(LineEncoder, int, float)} and {@link #category(LineEncoder, int)}, then
+   * {@link #endRow(LineEncoder)}.
+   */
+  public static void startRow(LineEncoder inOut, int inSessionId, float inLabel) {
+    inOut.putIntLE(inSessionId).putFloatLE(inLabel);
+  }
+
+  /**
+   * Adds a feature to the row, a zero value is left out of the matrix.
+   */
+  public static void feature(LineEncoder inOut, int inColumn, float inValue) {
+    inOut.putIntLE(inColumn).putFloatLE(inValue);
+  }
+
+  /**
+   * Sets the row's category, kept exactly in the categories array rather than as a value.
+   */
+  public static void category(LineEncoder inOut, int inCategoryId) {
+    inOut.putIntLE(CATEGORY).putIntLE(inCategoryId);
+  }
+
+  public static void endRow(LineEncoder inOut) {
+    inOut.putIntLE(END_OF_ROW).putFloatLE(0.0f);
+  }
+
+  /**
+   * Widens the matrix to at least inColumns, e.g. to the full hash space.
+   */
+  public void setColumns(long inColumns) {
+    columns = Math.max(columns, inColumns);
+  }
+
+  /**
+   * @return the rows written so far
+   */
+  public long rows() {
+    return rows;
+  }
+
+  /**
+   * Writes the complete rows encoded on inRows.
+   */
+  public void write(LineEncoder inRows) throws IOException {
+    ByteBuffer in = inRows.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    for (LineEncoder section : sections) {
+      section.clear();
+    }
+    while (in.hasRemaining()) {
+      sections[SESSIONS].putIntLE(in.getInt());
+      sections[LABELS].putFloatLE(in.getFloat());
+      int category = 0;
+      for (int column = in.getInt(); column != END_OF_ROW; column = in.getInt()) {
+        if (column == CATEGORY) {
+          category = in.getInt();
+          continue;
+        }
+        float value = in.getFloat();
+        if (value != 0.0f) {
+          sections[INDICES].putIntLE(column);
+          sections[VALUES].putFloatLE(value);
+          nnz++;
+        }
+        columns = Math.max(columns, column + 1L);
+      }
+      in.getFloat();
+      sections[CATEGORIES].putIntLE(category);
+      sections[OFFSETS].putLongLE(nnz);
+      rows++;
+    }
+    for (int i = 0; i < sections.length; i++) {
+      out.write(i, sections[i]);
+    }
+  }
+
+  /**
+   * Appends the arrays written to temporary files, fills in the header and deletes the temporary
+   * files.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      out.close();
+      long[] starts = new long[sections.length];
+      try (FileChannel file = FileChannel.open(paths[INDICES], StandardOpenOption.WRITE)) {
+        starts[INDICES] = HEADER_SIZE;
+        for (int i = INDICES + 1; i < sections.length; i++) {
+          starts[i] = append(file, paths[i]);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION).putLong(rows).putLong(columns).putLong(nnz);
+        for (long start : starts) {
+          header.putLong(start);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+          file.write(header, header.position());
+        }
+        if (syncOnClose) {
+          file.force(true);
+        }
+      }
+    } finally {
+      for (int i = INDICES + 1; i < paths.length; i++) {
+        Files.deleteIfExists(paths[i]);
+      }
+    }
+  }
+
+  /**
+   * Appends inPart to inFile at the next 8 byte boundary, zero padded.
+   *
+   * @return where inPart starts in inFile
+   */
+  private static long append(FileChannel inFile, Path inPart) throws IOException {
+    long end = inFile.size();
+    long rVal = (end + 7) & ~7L;
+    ByteBuffer padding = ByteBuffer.allocate((int) (rVal - end));
+    while (padding.hasRemaining()) {
+      inFile.write(padding, end + padding.position());
+    }
+    try (FileChannel part = FileChannel.open(inPart, StandardOpenOption.READ)) {
+      long size = part.size();
+      long done = 0;
+      while (done < size) {
+        done += inFile.transferFrom(part, rVal + done, size - done);
+      }
+    }
+    return rVal;
+  }
+}
@@ -1,7 +1,5 @@
 package data.yoochoose;
 
-import java.time.LocalDateTime;
-
 /**
  * 
  * @author hsheil
@@ -13,19 +11,22 @@ public class Event implements Comparable<Event> {
     CLICK, PURCHASE
   }
 
-  protected LocalDateTime date;
+  /**
+   * Epoch millis, see {@link Timestamps}.
+   */
+  protected long timestamp = Timestamps.NONE;
   protected int itemId;
   private int categoryId;
   private int price;
   private int quantity;
 
 
-  public LocalDateTime getDate() {
-    return date;
+  public long getTimestamp() {
+    return timestamp;
   }
 
-  public void setDate(LocalDateTime date) {
-    this.date = date;
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
   }
 
   public int getItemId() {
@@ -62,14 +63,14 @@ public class Event implements Comparable<Event> {
 
   @Override
   public int compareTo(Event inE) {
-    return this.date.compareTo(inE.getDate());
+    return Long.compare(this.timestamp, inE.getTimestamp());
   }
 
   @Override
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + ((date == null) ? 0 : date.hashCode());
+    result = prime * result + (int) (timestamp ^ (timestamp >>> 32));
     return result;
   }
 
@@ -79,9 +80,6 @@ public class Event implements Comparable<Event> {
     if (obj == null) return false;
     if (getClass() != obj.getClass()) return false;
     Event other = (Event) obj;
-    if (date == null) {
-      if (other.date != null) return false;
-    } else if (!date.equals(other.date)) return false;
-    return true;
+    return timestamp == other.timestamp;
   }
 }
@@ -0,0 +1,419 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Columnar (struct-of-arrays) store for click and purchase events. Each event is one slot across a
+ * set of parallel primitive arrays, which costs ~27 bytes per event rather than an Event object in
+ * a per-session ArrayList.
+ *
+ * Events are appended in arrival order. {@link #seal()} then groups them by session (sessions keep
+ * their first-seen order) and orders each session by time, after which a session's events are the
+ * contiguous slots [{@link #start(int)}, {@link #end(int)}).
+ *
+ * Session, item and category ids are dictionary encoded on the way in, so the item and category
+ * columns hold dense indices - use {@link #itemIds()} and {@link #categoryIds()} to get back to
+ * the original ids.
+ */
+public class EventStore {
+
+  /**
+   * Event is a purchase rather than a click.
+   */
+  public static final byte PURCHASE = 1;
+
+  /**
+   * Click on the special ("S") category.
+   */
+  public static final byte SPECIAL = 2;
+
+  /**
+   * Event arrived before a purchase in the same session, i.e. the item was seen with a purchase.
+   */
+  public static final byte BEFORE_PURCHASE = 4;
+
+  private static final int DEFAULT_CAPACITY = 1_024;
+
+  private int size;
+
+  private int[] session;
+
+  private long[] timestamp;
+
+  private int[] item;
+
+  private int[] category;
+
+  private int[] price;
+
+  private short[] quantity;
+
+  private byte[] flags;
+
+  private final IdDictionary sessionIds;
+
+  private final IdDictionary itemIds;
+
+  private final IdDictionary categoryIds;
+
+  /**
+   * Session index to first event slot, only valid while sealed.
+   */
+  private int[] offsets;
+
+  private BitSet purchasers;
+
+  private boolean sealed;
+
+  public EventStore() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public EventStore(int inCapacity) {
+    int capacity = Math.max(inCapacity, 16);
+    session = new int[capacity];
+    timestamp = new long[capacity];
+    item = new int[capacity];
+    category = new int[capacity];
+    price = new int[capacity];
+    quantity = new short[capacity];
+    flags = new byte[capacity];
+    sessionIds = new IdDictionary();
+    itemIds = new IdDictionary();
+    categoryIds = new IdDictionary();
+    purchasers = new BitSet();
+    offsets = new int[] {0};
+    sealed = true;
+  }
+
+  /**
+   * @return the event slot
+   */
+  public int addClick(int inSessionId, long inTimestamp, int inItemId, int inCategoryId,
+      boolean inSpecial) {
+    int i = add(inSessionId, inTimestamp, inItemId);
+    category[i] = categoryIds.encode(inCategoryId);
+    flags[i] = inSpecial ? SPECIAL : 0;
+    return i;
+  }
+
+  /**
+   * @return the event slot
+   */
+  public int addPurchase(int inSessionId, long inTimestamp, int inItemId, int inPrice,
+      int inQuantity) {
+    int i = add(inSessionId, inTimestamp, inItemId);
+    category[i] = -1;
+    price[i] = inPrice;
+    quantity[i] = (short) Math.min(inQuantity, Short.MAX_VALUE);
+    flags[i] = PURCHASE;
+    return i;
+  }
+
+  /**
+   * Appends all events of another store after the events held here, as if they had been added one
+   * by one in the other store's order.
+   *
+   * @param inOther
+   */
+  public void append(EventStore inOther) {
+    int[] sessionMap = remap(inOther.sessionIds, sessionIds);
+    int[] itemMap = remap(inOther.itemIds, itemIds);
+    int[] categoryMap = remap(inOther.categoryIds, categoryIds);
+    ensureCapacity(size + inOther.size);
+    for (int j = 0; j < inOther.size; j++) {
+      session[size + j] = sessionMap[inOther.session[j]];
+      item[size + j] = itemMap[inOther.item[j]];
+      int c = inOther.category[j];
+      category[size + j] = c < 0 ? c : categoryMap[c];
+    }
+    System.arraycopy(inOther.timestamp, 0, timestamp, size, inOther.size);
+    System.arraycopy(inOther.price, 0, price, size, inOther.size);
+    System.arraycopy(inOther.quantity, 0, quantity, size, inOther.size);
+    System.arraycopy(inOther.flags, 0, flags, size, inOther.size);
+    size += inOther.size;
+    sealed = inOther.size == 0 && sealed;
+  }
+
+  /**
+   * Removes all events and sessions so the store can be reused, e.g. for one session at a time. The
+   * item and category dictionaries are kept, so dense item and category indices stay stable.
+   */
+  public void clear() {
+    size = 0;
+    sessionIds.clear();
+    purchasers.clear();
+    offsets = new int[] {0};
+    sealed = true;
+  }
+
+  /**
+   * Groups events by session and sorts every session by time (stable, so ties keep arrival order).
+   * Also flags events that arrived before a purchase in their session. Cheap if already sealed.
+   */
+  public void seal() {
+    if (sealed) {
+      return;
+    }
+    int sessionCount = sessionIds.size();
+    // Counting sort by session index - stable, so each session keeps arrival order
+    int[] start = new int[sessionCount + 1];
+    for (int i = 0; i < size; i++) {
+      start[session[i] + 1]++;
+    }
+    for (int s = 0; s < sessionCount; s++) {
+      start[s + 1] += start[s];
+    }
+    int[] perm = new int[size];
+    int[] next = Arrays.copyOf(start, sessionCount);
+    for (int i = 0; i < size; i++) {
+      perm[next[session[i]]++] = i;
+    }
+    next = null;
+
+    int[] scratch = new int[16];
+    for (int s = 0; s < sessionCount; s++) {
+      int from = start[s];
+      int to = start[s + 1];
+      // Everything before the last purchase (in arrival order) was seen with a purchase
+      int lastPurchase = -1;
+      for (int j = to - 1; j >= from; j--) {
+        if ((flags[perm[j]] & PURCHASE) != 0) {
+          lastPurchase = j;
+          break;
+        }
+      }
+      if (lastPurchase >= 0) {
+        purchasers.set(s);
+        for (int j = from; j < lastPurchase; j++) {
+          flags[perm[j]] |= BEFORE_PURCHASE;
+        }
+      }
+      if (to - from > scratch.length) {
+        scratch = new int[to - from];
+      }
+      sortByTime(perm, from, to, scratch);
+    }
+
+    if (isIdentity(perm)) {
+      // Already grouped and ordered, e.g. a single session added in time order
+      offsets = start;
+      sealed = true;
+      return;
+    }
+    session = permute(session, perm);
+    timestamp = permute(timestamp, perm);
+    item = permute(item, perm);
+    category = permute(category, perm);
+    price = permute(price, perm);
+    quantity = permute(quantity, perm);
+    flags = permute(flags, perm);
+    offsets = start;
+    sealed = true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int sessionCount() {
+    return sessionIds.size();
+  }
+
+  public int sessionId(int inSession) {
+    return sessionIds.decode(inSession);
+  }
+
+  public IdDictionary itemIds() {
+    return itemIds;
+  }
+
+  public IdDictionary categoryIds() {
+    return categoryIds;
+  }
+
+  /**
+   * @return the first event slot of a session, the store must be sealed
+   */
+  public int start(int inSession) {
+    return offsets[inSession];
+  }
+
+  /**
+   * @return one past the last event slot of a session, the store must be sealed
+   */
+  public int end(int inSession) {
+    return offsets[inSession + 1];
+  }
+
+  public boolean isPurchaser(int inSession) {
+    return purchasers.get(inSession);
+  }
+
+  public int session(int inEvent) {
+    return session[inEvent];
+  }
+
+  public long timestamp(int inEvent) {
+    return timestamp[inEvent];
+  }
+
+  /**
+   * @return the dense item index of an event
+   */
+  public int item(int inEvent) {
+    return item[inEvent];
+  }
+
+  /**
+   * @return the original item id of an event
+   */
+  public int itemId(int inEvent) {
+    return itemIds.decode(item[inEvent]);
+  }
+
+  /**
+   * @return the dense category index of a click, -1 for purchases
+   */
+  public int category(int inEvent) {
+    return category[inEvent];
+  }
+
+  /**
+   * @return the original category id of a click, 0 (not present) for purchases
+   */
+  public int categoryId(int inEvent) {
+    int c = category[inEvent];
+    return c < 0 ? 0 : categoryIds.decode(c);
+  }
+
+  public int price(int inEvent) {
+    return price[inEvent];
+  }
+
+  public int quantity(int inEvent) {
+    return quantity[inEvent];
+  }
+
+  public boolean isPurchase(int inEvent) {
+    return (flags[inEvent] & PURCHASE) != 0;
+  }
+
+  public boolean isSpecial(int inEvent) {
+    return (flags[inEvent] & SPECIAL) != 0;
+  }
+
+  public boolean isBeforePurchase(int inEvent) {
+    return (flags[inEvent] & BEFORE_PURCHASE) != 0;
+  }
+
+  private int add(int inSessionId, long inTimestamp, int inItemId) {
+    ensureCapacity(size + 1);
+    int i = size++;
+    session[i] = sessionIds.encode(inSessionId);
+    timestamp[i] = inTimestamp;
+    item[i] = itemIds.encode(inItemId);
+    price[i] = 0;
+    quantity[i] = 0;
+    sealed = false;
+    return i;
+  }
+
+  /**
+   * @return for each index of inFrom, the corresponding index in inTo (encoding it if needed)
+   */
+  private static int[] remap(IdDictionary inFrom, IdDictionary inTo) {
+    int[] rVal = new int[inFrom.size()];
+    for (int i = 0; i < rVal.length; i++) {
+      rVal[i] = inTo.encode(inFrom.decode(i));
+    }
+    return rVal;
+  }
+
+  private void ensureCapacity(int inCapacity) {
+    if (inCapacity <= session.length) {
+      return;
+    }
+    int capacity = Math.max(inCapacity, session.length + (session.length >> 1));
+    session = Arrays.copyOf(session, capacity);
+    timestamp = Arrays.copyOf(timestamp, capacity);
+    item = Arrays.copyOf(item, capacity);
+    category = Arrays.copyOf(category, capacity);
+    price = Arrays.copyOf(price, capacity);
+    quantity = Arrays.copyOf(quantity, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+  }
+
+  /**
+   * Stable merge sort of perm[from, to) by timestamp, with a fast path for already ordered
+   * sessions (the common case).
+   */
+  private void sortByTime(int[] perm, int from, int to, int[] scratch) {
+    boolean ordered = true;
+    for (int j = from + 1; j < to && ordered; j++) {
+      ordered = timestamp[perm[j - 1]] <= timestamp[perm[j]];
+    }
+    if (ordered) {
+      return;
+    }
+    for (int width = 1; width < to - from; width <<= 1) {
+      for (int lo = from; lo < to - width; lo += width << 1) {
+        int mid = lo + width;
+        int hi = Math.min(lo + (width << 1), to);
+        int a = lo, b = mid, k = 0;
+        while (a < mid && b < hi) {
+          scratch[k++] = timestamp[perm[b]] < timestamp[perm[a]] ? perm[b++] : perm[a++];
+        }
+        while (a < mid) {
+          scratch[k++] = perm[a++];
+        }
+        while (b < hi) {
+          scratch[k++] = perm[b++];
+        }
+        System.arraycopy(scratch, 0, perm, lo, k);
+      }
+    }
+  }
+
+  private boolean isIdentity(int[] inPerm) {
+    for (int i = 0; i < size; i++) {
+      if (inPerm[i] != i) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int[] permute(int[] inSrc, int[] inPerm) {
+    int[] rVal = new int[inSrc.length];
+    for (int i = 0; i < size; i++) {
+      rVal[i] = inSrc[inPerm[i]];
+    }
+    return rVal;
+  }
+
+  private long[] permute(long[] inSrc, int[] inPerm) {
+    long[] rVal = new long[inSrc.length];
+    for (int i = 0; i < size; i++) {
+      rVal[i] = inSrc[inPerm[i]];
+    }
+    return rVal;
+  }
+
+  private short[] permute(short[] inSrc, int[] inPerm) {
+    short[] rVal = new short[inSrc.length];
+    for (int i = 0; i < size; i++) {
+      rVal[i] = inSrc[inPerm[i]];
+    }
+    return rVal;
+  }
+
+  private byte[] permute(byte[] inSrc, int[] inPerm) {
+    byte[] rVal = new byte[inSrc.length];
+    for (int i = 0; i < size; i++) {
+      rVal[i] = inSrc[inPerm[i]];
+    }
+    return rVal;
+  }
+}
@@ -0,0 +1,236 @@
+package data.yoochoose;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The features of every session computed once and held as a sparse matrix in CSR form, one row per
+ * session: primitive arrays of column indices and values, row offsets, labels and session
+ * ids. Any number of outputs (VW, LIBSVM, CSR) can be written from it, at the same time if need
+ * be, and in-process consumers can read it directly.
+ *
+ * A column is a feature as it would be written, e.g. the item id of the event at position 3. The
+ * {@link FeaturePlan#describing(int)} descriptor of each column is kept, so any plan can label the
+ * column its own way with {@link #encode(int, FeaturePlan, LineEncoder)}. Columns are numbered in
+ * the order they are first seen, as unhashed LIBSVM ids are.
+ *
+ * Values are floats, as in the CSR file. Whole numbers up to 2^24 and the 0 / 1 doubles are exact
+ * as floats, and {@link Builder} rejects a value that is not. The exception is catSimilarity, a
+ * category id too large for a float: its entry holds the id rounded, {@link #category(int)} the
+ * exact id, which {@link #encode(int, FeaturePlan, LineEncoder)} writes. Unlike the CSR file zero
+ * values are kept, as the VW and LIBSVM lines encoded from the matrix carry them.
+ *
+ * Entries are kept in blocks, so there can be more than 2^31 of them; each takes 8 bytes.
+ * Read-only once built, so threads can share it.
+ */
+public class FeatureMatrix {
+
+  private static final int BLOCK_BITS = 20;
+
+  private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /**
+   * Descriptor high word of CSR's end of row, see {@link CsrWriter#endRow(LineEncoder)}.
+   */
+  private static final int END_OF_ROW = -1;
+
+  private final int rows;
+
+  private final int[] sessionIds;
+
+  private final float[] labels;
+
+  private final int[] categories;
+
+  private final long[] offsets;
+
+  private final int[][] columns;
+
+  private final float[][] values;
+
+  private final long[] descriptors;
+
+  private FeatureMatrix(Builder inB) {
+    rows = inB.rows;
+    sessionIds = Arrays.copyOf(inB.sessionIds, rows);
+    labels = Arrays.copyOf(inB.labels, rows);
+    categories = Arrays.copyOf(inB.categories, rows);
+    offsets = Arrays.copyOf(inB.offsets, rows + 1);
+    int blocks = (int) ((inB.nnz + BLOCK_MASK) >>> BLOCK_BITS);
+    columns = Arrays.copyOf(inB.columns, blocks);
+    values = Arrays.copyOf(inB.values, blocks);
+    descriptors = Arrays.copyOf(inB.descriptors, inB.dictionary.size());
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * @return the number of distinct features seen
+   */
+  public int columns() {
+    return descriptors.length;
+  }
+
+  /**
+   * @return the number of entries
+   */
+  public long nnz() {
+    return offsets[rows];
+  }
+
+  public int sessionId(int inRow) {
+    return sessionIds[inRow];
+  }
+
+  /**
+   * @return 1 for a buyer's session, else 0
+   */
+  public float label(int inRow) {
+    return labels[inRow];
+  }
+
+  /**
+   * @return the row's catSimilarity, the id of the category it clicked most, or 0
+   */
+  public int category(int inRow) {
+    return categories[inRow];
+  }
+
+  /**
+   * @return the index of the row's first entry
+   */
+  public long start(int inRow) {
+    return offsets[inRow];
+  }
+
+  /**
+   * @return one past the index of the row's last entry
+   */
+  public long end(int inRow) {
+    return offsets[inRow + 1];
+  }
+
+  public int column(long inEntry) {
+    return columns[(int) (inEntry >>> BLOCK_BITS)][(int) inEntry & BLOCK_MASK];
+  }
+
+  public float value(long inEntry) {
+    return values[(int) (inEntry >>> BLOCK_BITS)][(int) inEntry & BLOCK_MASK];
+  }
+
+  /**
+   * @return what the column is, see {@link FeaturePlan}
+   */
+  public long descriptor(int inColumn) {
+    return descriptors[inColumn];
+  }
+
+  /**
+   * Encodes the features of row inRow onto inOut as inPlan labels them, opening each event's VW
+   * namespace.
+   */
+  public void encode(int inRow, FeaturePlan inPlan, LineEncoder inOut) {
+    int pos = -1;
+    for (long e = offsets[inRow]; e < offsets[inRow + 1]; e++) {
+      long descriptor = descriptors[column(e)];
+      int p = FeaturePlan.position(descriptor);
+      if (p != pos && p >= 0) {
+        inPlan.namespace(inOut, p);
+        pos = p;
+      }
+      double value = FeaturePlan.isCategory(descriptor) ? categories[inRow] : value(e);
+      inPlan.feature(inOut, descriptor, value, e == offsets[inRow]);
+    }
+  }
+
+  /**
+   * Numbers the features of rows encoded by a {@link FeaturePlan#describing(int)} plan, in CSR
+   * row framing ({@link CsrWriter#startRow(LineEncoder, int, float)} and
+   * {@link CsrWriter#endRow(LineEncoder)}), as they are added in order.
+   */
+  public static class Builder {
+    private final LongIntMap dictionary = new LongIntMap(1_024);
+    private long[] descriptors = new long[1_024];
+    private int rows;
+    private int[] sessionIds = new int[1_024];
+    private float[] labels = new float[1_024];
+    private int[] categories = new int[1_024];
+    private long[] offsets = new long[1_025];
+    private int[][] columns = new int[16][];
+    private float[][] values = new float[16][];
+    private long nnz;
+
+    /**
+     * Adds the complete rows encoded on inRows.
+     */
+    public void add(LineEncoder inRows) {
+      ByteBuffer in = inRows.buffer().order(ByteOrder.LITTLE_ENDIAN);
+      while (in.hasRemaining()) {
+        if (rows == sessionIds.length) {
+          sessionIds = Arrays.copyOf(sessionIds, rows << 1);
+          labels = Arrays.copyOf(labels, rows << 1);
+          categories = Arrays.copyOf(categories, rows << 1);
+          offsets = Arrays.copyOf(offsets, (rows << 1) + 1);
+        }
+        sessionIds[rows] = in.getInt();
+        labels[rows] = in.getFloat();
+        for (int high = in.getInt(); high != END_OF_ROW; high = in.getInt()) {
+          long descriptor = (long) high << 32 | (in.getInt() & 0xFFFFFFFFL);
+          double value = in.getDouble();
+          if (FeaturePlan.isCategory(descriptor)) {
+            categories[rows] = (int) value;
+          } else if ((float) value != value) {
+            throw new IllegalArgumentException(
+                "Feature value " + value + " is not exact as a float");
+          }
+          add(column(descriptor), (float) value);
+        }
+        // The end of row's float value
+        in.getFloat();
+        rows++;
+        offsets[rows] = nnz;
+      }
+    }
+
+    public int rows() {
+      return rows;
+    }
+
+    public FeatureMatrix build() {
+      return new FeatureMatrix(this);
+    }
+
+    private int column(long inDescriptor) {
+      int rVal = dictionary.get(inDescriptor, -1);
+      if (rVal == -1) {
+        rVal = dictionary.size();
+        dictionary.addTo(inDescriptor, rVal);
+        if (rVal == descriptors.length) {
+          descriptors = Arrays.copyOf(descriptors, rVal << 1);
+        }
+        descriptors[rVal] = inDescriptor;
+      }
+      return rVal;
+    }
+
+    private void add(int inColumn, float inValue) {
+      int block = (int) (nnz >>> BLOCK_BITS);
+      if (block == columns.length) {
+        columns = Arrays.copyOf(columns, block << 1);
+        values = Arrays.copyOf(values, block << 1);
+      }
+      if (columns[block] == null) {
+        columns[block] = new int[BLOCK_SIZE];
+        values[block] = new float[BLOCK_SIZE];
+      }
+      columns[block][(int) nnz & BLOCK_MASK] = inColumn;
+      values[block][(int) nnz & BLOCK_MASK] = inValue;
+      nnz++;
+    }
+  }
+}
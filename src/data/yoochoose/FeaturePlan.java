@@ -0,0 +1,622 @@
+package data.yoochoose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The output feature set compiled once per run, so sessions are written without building a label
+ * string per feature. VW labels are the feature names (event features under a per-position
+ * "Event&lt;n&gt;" namespace), LIBSVM labels are integer ids.
+ *
+ * Each method encodes the separator, label and value of one feature onto a {@link LineEncoder},
+ * the labels held as ASCII bytes.
+ *
+ * By default LIBSVM ids are handed out from one counter the first time a feature is written, so
+ * they follow the order features are first seen in: consistent within a run, but not across runs,
+ * and not shareable between threads. The ids of item- and category-keyed event features are held
+ * by (position, feature, key) in one primitive map. A plan like that is not thread-safe.
+ *
+ * With {@link #hashed(Format, int, int, boolean)} LIBSVM ids are instead the MurmurHash3 of the
+ * feature's name ("Event&lt;n&gt; " + label for event features) in a space of 2^bits. Names are
+ * hashed once up front, keyed features hash the key with their name's hash as seed, so nothing is
+ * looked up or shared and the ids are the same in every run. If signed, a second bit of the hash
+ * picks the sign of the value, so that colliding features tend to cancel out rather than add up.
+ * To that end a hashed plan holds back a line's features until {@link #endLine(LineEncoder)}, which
+ * writes them in id order with the values of colliding features summed, so no id repeats in a
+ * line. Those held back are per thread, otherwise a hashed plan is read-only once built, so threads
+ * can share it.
+ *
+ * CSR output takes the LIBSVM ids (counted or hashed the same way), each feature encoded as a
+ * binary (column, float value) pair by {@link CsrWriter#feature(LineEncoder, int, float)}. The
+ * exception is catSimilarity, a category id that a float cannot hold, which goes to
+ * {@link CsrWriter#category(LineEncoder, int)} and leaves its column empty.
+ *
+ * A {@link #describing(int)} plan labels nothing: it writes each feature's descriptor, a long
+ * packing what the feature is (session, event or keyed, the feature, position and key) and the
+ * type of its value, for {@link FeatureMatrix} to number.
+ * {@link #feature(LineEncoder, long, double, boolean)} encodes a described feature with any other
+ * plan.
+ */
+public class FeaturePlan {
+
+  /**
+   * Features of a session as a whole.
+   */
+  public enum SessionFeature {
+    NUM_CLICKS("AggregateFeatures numClicks"), LIFESPAN("lifespan"), START_MONTH("sMonth"),
+    START_DAY("sDay"), START_WEEKDAY("sWeekDay"), START_HOUR("sHour"), START_MINUTE("sMin"),
+    START_SECOND("sSec"), END_MONTH("eMonth"), END_DAY("eDay"), END_WEEKDAY("eWeekDay"),
+    END_HOUR("eHour"), END_MINUTE("eMin"), END_SECOND("eSec"), NUM_ITEMS("numItems"),
+    NUM_CATEGORIES("numCategories"), VIEWED_POPULAR_ITEMS("viewedPopularItems"),
+    VIEWED_POPULAR_CATS("viewedPopularCats"), CAT_SIMILARITY("catSimilarity"),
+    RECENT_PURCHASES("recentPurchases"), CO_VIEW_LINKS("coViewLinks"),
+    CO_PURCHASE_LINKS("coPurchaseLinks"), SIMILAR_SESSIONS("similarSessions"),
+    SIMILAR_PURCHASE_RATE("similarPurchaseRate");
+
+    private final String label;
+
+    SessionFeature(String inLabel) {
+      label = inLabel;
+    }
+  }
+
+  /**
+   * Features of an event, one set per position in the session.
+   */
+  public enum EventFeature {
+    MONTH("mth"), DAY("day"), HOUR("hour"), MINUTE("minute"), SECOND("second"),
+    DWELL_TIME("dwellTime"), SPECIAL("special"), CATEGORY_SIMPLIFIED("category-simplified");
+
+    private final String label;
+
+    EventFeature(String inLabel) {
+      label = inLabel;
+    }
+  }
+
+  /**
+   * Features of an event keyed by its item or category id, labelled key + suffix.
+   */
+  public enum KeyedFeature {
+    ITEM("-itemId"), ITEM_PURCHASED("item-was-purchased"),
+    ITEM_MULTI_PURCHASE("item-was-multi-purchase"), ITEM_PRICE("item-price"),
+    CATEGORY("-catId");
+
+    private final String suffix;
+
+    KeyedFeature(String inSuffix) {
+      suffix = inSuffix;
+    }
+  }
+
+  public static final int MIN_HASH_BITS = 1;
+
+  /**
+   * Bit 31 of a hash is left for the sign.
+   */
+  public static final int MAX_HASH_BITS = 30;
+
+  private static final char FEAT_SEP = ' ';
+
+  private static final char FEAT_VAL_SEP = ':';
+
+  private static final int NO_ID = -1;
+
+  private static final int HASH_SEED = 0;
+
+  private static final int KEYED_FEATURES = KeyedFeature.values().length;
+
+  private static final SessionFeature[] SESSION_FEATURES = SessionFeature.values();
+
+  private static final EventFeature[] EVENT_FEATURES = EventFeature.values();
+
+  private static final KeyedFeature[] KEYED = KeyedFeature.values();
+
+  /**
+   * Descriptor layout: kind in bits 62-63, value type in 60-61, feature ordinal in 48-55, position
+   * in 32-47 and key in 0-31. Kind 3 is unused, so the high word of a descriptor is never -1.
+   */
+  private static final int KIND_SHIFT = 62;
+
+  private static final int TYPE_SHIFT = 60;
+
+  private static final int FEATURE_SHIFT = 48;
+
+  private static final int POSITION_SHIFT = 32;
+
+  private static final int SESSION = 0;
+
+  private static final int EVENT = 1;
+
+  private static final int KEYED_KIND = 2;
+
+  private static final int LONG_VALUE = 0;
+
+  private static final int DOUBLE_VALUE = 1;
+
+  private static final int FLOAT_VALUE = 2;
+
+  private final Format format;
+
+  private final int numEvents;
+
+  /**
+   * VW only: the "|Event&lt;n&gt; " namespace opening each position.
+   */
+  private final byte[][] namespaces;
+
+  /**
+   * VW only: " label:" per session and event feature, ":" after each keyed feature suffix.
+   */
+  private final byte[][] sessionLabels;
+
+  private final byte[][] eventLabels;
+
+  private final byte[][] keyedSuffixes;
+
+  /**
+   * LIBSVM only: ids by feature and by position and feature; hashes of the names when hashing.
+   */
+  private final int[] sessionIds;
+
+  private final int[][] eventIds;
+
+  /**
+   * LIBSVM only: ids by packed (position, feature, key), null when hashing.
+   */
+  private final LongIntMap keyedIds;
+
+  /**
+   * LIBSVM hashing only: the hashes of the "Event&lt;n&gt; suffix" names, seeding the key hashes.
+   */
+  private final int[][] keyedSeeds;
+
+  private final int hashMask;
+
+  private final boolean signed;
+
+  private final boolean describing;
+
+  /**
+   * Hashed LIBSVM / CSR only: the features of the line being encoded by each thread.
+   */
+  private final ThreadLocal<LineSums> sums;
+
+  private int nextId;
+
+  public FeaturePlan(Format inF, int inNumEvents) {
+    this(inF, inNumEvents, 0, false, false);
+  }
+
+  /**
+   * A plan hashing LIBSVM features into 2^inBits ids, see {@link FeaturePlan}. VW output is the
+   * same as with an unhashed plan, VW does its own hashing.
+   */
+  public static FeaturePlan hashed(Format inF, int inNumEvents, int inBits, boolean inSigned) {
+    if (inBits < MIN_HASH_BITS || inBits > MAX_HASH_BITS) {
+      throw new IllegalArgumentException(
+          "Hash bits must be between " + MIN_HASH_BITS + " and " + MAX_HASH_BITS + ": " + inBits);
+    }
+    return new FeaturePlan(inF, inNumEvents, inBits, inSigned, false);
+  }
+
+  /**
+   * A plan writing each feature as its descriptor and double value, in CSR's row framing, see
+   * {@link FeaturePlan}. It hands out no ids, so threads can share it.
+   */
+  public static FeaturePlan describing(int inNumEvents) {
+    return new FeaturePlan(Format.CSR, inNumEvents, 0, false, true);
+  }
+
+  private FeaturePlan(Format inF, int inNumEvents, int inBits, boolean inSigned,
+      boolean inDescribing) {
+    format = inF;
+    describing = inDescribing;
+    numEvents = inNumEvents;
+    hashMask = inBits == 0 ? 0 : (1 << inBits) - 1;
+    signed = inSigned && inBits > 0;
+    namespaces = new byte[inNumEvents][];
+    for (int pos = 0; pos < inNumEvents; pos++) {
+      namespaces[pos] = ascii("|Event" + pos + FEAT_SEP);
+    }
+    sessionLabels = new byte[SessionFeature.values().length][];
+    for (SessionFeature f : SessionFeature.values()) {
+      sessionLabels[f.ordinal()] = ascii(FEAT_SEP + f.label + FEAT_VAL_SEP);
+    }
+    eventLabels = new byte[EventFeature.values().length][];
+    for (EventFeature f : EventFeature.values()) {
+      eventLabels[f.ordinal()] = ascii(FEAT_SEP + f.label + FEAT_VAL_SEP);
+    }
+    keyedSuffixes = new byte[KeyedFeature.values().length][];
+    for (KeyedFeature f : KeyedFeature.values()) {
+      keyedSuffixes[f.ordinal()] = ascii(f.suffix + FEAT_VAL_SEP);
+    }
+    sessionIds = new int[SessionFeature.values().length];
+    eventIds = new int[inNumEvents][EventFeature.values().length];
+    if (hashMask == 0) {
+      Arrays.fill(sessionIds, NO_ID);
+      for (int[] ids : eventIds) {
+        Arrays.fill(ids, NO_ID);
+      }
+      keyedIds = new LongIntMap(1_024);
+      keyedSeeds = null;
+    } else {
+      for (SessionFeature f : SessionFeature.values()) {
+        sessionIds[f.ordinal()] = hash(f.label);
+      }
+      keyedSeeds = new int[inNumEvents][KEYED_FEATURES];
+      for (int pos = 0; pos < inNumEvents; pos++) {
+        for (EventFeature f : EventFeature.values()) {
+          eventIds[pos][f.ordinal()] = hash("Event" + pos + FEAT_SEP + f.label);
+        }
+        for (KeyedFeature f : KeyedFeature.values()) {
+          keyedSeeds[pos][f.ordinal()] = hash("Event" + pos + FEAT_SEP + f.suffix);
+        }
+      }
+      keyedIds = null;
+    }
+    sums = hashMask != 0 && inF != Format.VW ? ThreadLocal.withInitial(LineSums::new) : null;
+  }
+
+  /**
+   * @return the number of event positions planned for
+   */
+  public int numEvents() {
+    return numEvents;
+  }
+
+  /**
+   * @return the number of LIBSVM ids handed out so far, 0 when hashing
+   */
+  public int size() {
+    return nextId;
+  }
+
+  /**
+   * @return the width of the LIBSVM / CSR id space: 2^bits when hashing, else the ids so far
+   */
+  public int columns() {
+    return isHashed() ? hashMask + 1 : nextId;
+  }
+
+  /**
+   * @return whether LIBSVM ids are hashed, and so the same in every run
+   */
+  public boolean isHashed() {
+    return hashMask != 0;
+  }
+
+  /**
+   * @return whether threads can share the plan, true unless it hands out LIBSVM / CSR ids in order
+   */
+  public boolean isThreadSafe() {
+    return format == Format.VW || isHashed() || describing;
+  }
+
+  /**
+   * Appends the first feature of a line, which has no leading separator.
+   */
+  public void first(LineEncoder inOut, SessionFeature inF, long inValue) {
+    if (describing) {
+      describe(inOut, SESSION, LONG_VALUE, inF.ordinal(), 0, 0, inValue);
+    } else if (format == Format.VW) {
+      byte[] label = sessionLabels[inF.ordinal()];
+      inOut.put(label, 1, label.length - 1).put(inValue);
+    } else if (sums != null) {
+      sums.get().clear();
+      int id = sessionId(inF);
+      sum(id, LONG_VALUE, negative(id) ? -inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, sessionId(inF), inValue);
+    } else {
+      int id = sessionId(inF);
+      inOut.put(index(id)).put(FEAT_VAL_SEP).put(negative(id) ? -inValue : inValue);
+    }
+  }
+
+  public void session(LineEncoder inOut, SessionFeature inF, long inValue) {
+    if (describing) {
+      describe(inOut, SESSION, LONG_VALUE, inF.ordinal(), 0, 0, inValue);
+    } else if (format == Format.VW) {
+      inOut.put(sessionLabels[inF.ordinal()]).put(inValue);
+    } else if (format == Format.CSR && inF == SessionFeature.CAT_SIMILARITY) {
+      // Still takes its id, so that the other columns are those of LIBSVM
+      sessionId(inF);
+      CsrWriter.category(inOut, (int) inValue);
+    } else if (sums != null) {
+      int id = sessionId(inF);
+      sum(id, LONG_VALUE, negative(id) ? -inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, sessionId(inF), inValue);
+    } else {
+      int id = sessionId(inF);
+      label(inOut, id).put(negative(id) ? -inValue : inValue);
+    }
+  }
+
+  public void session(LineEncoder inOut, SessionFeature inF, double inValue) {
+    if (describing) {
+      describe(inOut, SESSION, DOUBLE_VALUE, inF.ordinal(), 0, 0, inValue);
+    } else if (format == Format.VW) {
+      inOut.put(sessionLabels[inF.ordinal()]).put(inValue);
+    } else if (sums != null) {
+      int id = sessionId(inF);
+      sum(id, DOUBLE_VALUE, negative(id) ? 0.0 - inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, sessionId(inF), inValue);
+    } else {
+      // 0.0 - inValue rather than -inValue, which would write 0 as -0.0
+      int id = sessionId(inF);
+      label(inOut, id).put(negative(id) ? 0.0 - inValue : inValue);
+    }
+  }
+
+  public void session(LineEncoder inOut, SessionFeature inF, float inValue) {
+    if (describing) {
+      describe(inOut, SESSION, FLOAT_VALUE, inF.ordinal(), 0, 0, inValue);
+    } else if (format == Format.VW) {
+      inOut.put(sessionLabels[inF.ordinal()]).put(inValue);
+    } else if (sums != null) {
+      int id = sessionId(inF);
+      sum(id, FLOAT_VALUE, negative(id) ? 0.0f - inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, sessionId(inF), inValue);
+    } else {
+      int id = sessionId(inF);
+      label(inOut, id).put(negative(id) ? 0.0f - inValue : inValue);
+    }
+  }
+
+  /**
+   * Opens the features of the event at inPos; only VW has per-event namespaces.
+   */
+  public void namespace(LineEncoder inOut, int inPos) {
+    if (format == Format.VW) {
+      inOut.put(namespaces[inPos]);
+    }
+  }
+
+  public void event(LineEncoder inOut, int inPos, EventFeature inF, long inValue) {
+    if (describing) {
+      describe(inOut, EVENT, LONG_VALUE, inF.ordinal(), inPos, 0, inValue);
+      return;
+    }
+    if (format == Format.VW) {
+      inOut.put(eventLabels[inF.ordinal()]).put(inValue);
+      return;
+    }
+    int id = eventIds[inPos][inF.ordinal()];
+    if (id == NO_ID && hashMask == 0) {
+      id = nextId++;
+      eventIds[inPos][inF.ordinal()] = id;
+    }
+    if (sums != null) {
+      sum(id, LONG_VALUE, negative(id) ? -inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, id, inValue);
+    } else {
+      label(inOut, id).put(negative(id) ? -inValue : inValue);
+    }
+  }
+
+  public void keyed(LineEncoder inOut, int inPos, KeyedFeature inF, int inKey, long inValue) {
+    if (describing) {
+      describe(inOut, KEYED_KIND, LONG_VALUE, inF.ordinal(), inPos, inKey, inValue);
+      return;
+    }
+    if (format == Format.VW) {
+      inOut.put(FEAT_SEP).put(inKey).put(keyedSuffixes[inF.ordinal()]).put(inValue);
+      return;
+    }
+    int id;
+    if (keyedIds == null) {
+      id = IntHash.murmur3(inKey, keyedSeeds[inPos][inF.ordinal()]);
+    } else {
+      long k = ((long) (inPos * KEYED_FEATURES + inF.ordinal()) << 32) | (inKey & 0xFFFFFFFFL);
+      id = keyedIds.get(k, NO_ID);
+      if (id == NO_ID) {
+        id = nextId++;
+        keyedIds.addTo(k, id);
+      }
+    }
+    if (sums != null) {
+      sum(id, LONG_VALUE, negative(id) ? -inValue : inValue);
+    } else if (format == Format.CSR) {
+      csr(inOut, id, inValue);
+    } else {
+      label(inOut, id).put(negative(id) ? -inValue : inValue);
+    }
+  }
+
+  /**
+   * Ends a line, or a CSR row. A hashed LIBSVM / CSR plan writes the line's features here.
+   */
+  public void endLine(LineEncoder inOut) {
+    if (sums != null) {
+      writeSums(inOut, sums.get());
+    }
+    if (format == Format.CSR) {
+      CsrWriter.endRow(inOut);
+    } else {
+      inOut.put('\n');
+    }
+  }
+
+  /**
+   * Encodes the feature inDescriptor describes with this plan, as the first feature of the line if
+   * inFirst (which, as the parsers write sessions, is a long-valued session feature).
+   */
+  public void feature(LineEncoder inOut, long inDescriptor, double inValue, boolean inFirst) {
+    int f = (int) (inDescriptor >>> FEATURE_SHIFT) & 0xFF;
+    int type = (int) (inDescriptor >>> TYPE_SHIFT) & 0x3;
+    switch ((int) (inDescriptor >>> KIND_SHIFT)) {
+      case SESSION:
+        if (type == DOUBLE_VALUE) {
+          session(inOut, SESSION_FEATURES[f], inValue);
+        } else if (type == FLOAT_VALUE) {
+          session(inOut, SESSION_FEATURES[f], (float) inValue);
+        } else if (inFirst) {
+          first(inOut, SESSION_FEATURES[f], (long) inValue);
+        } else {
+          session(inOut, SESSION_FEATURES[f], (long) inValue);
+        }
+        break;
+      case EVENT:
+        event(inOut, position(inDescriptor), EVENT_FEATURES[f], (long) inValue);
+        break;
+      default:
+        keyed(inOut, position(inDescriptor), KEYED[f], (int) inDescriptor, (long) inValue);
+        break;
+    }
+  }
+
+  /**
+   * @return whether a described feature is catSimilarity, whose value is a category id
+   */
+  public static boolean isCategory(long inDescriptor) {
+    return inDescriptor >>> KIND_SHIFT == SESSION && ((int) (inDescriptor >>> FEATURE_SHIFT)
+        & 0xFF) == SessionFeature.CAT_SIMILARITY.ordinal();
+  }
+
+  /**
+   * @return the event position of a described feature, -1 for a session feature
+   */
+  public static int position(long inDescriptor) {
+    if (inDescriptor >>> KIND_SHIFT == SESSION) {
+      return -1;
+    }
+    return (int) (inDescriptor >>> POSITION_SHIFT) & 0xFFFF;
+  }
+
+  /**
+   * Writes a descriptor high word first, so that it cannot be taken for CSR's end of row.
+   */
+  private static void describe(LineEncoder inOut, int inKind, int inType, int inFeature,
+      int inPos, int inKey, double inValue) {
+    long descriptor = (long) inKind << KIND_SHIFT | (long) inType << TYPE_SHIFT
+        | (long) inFeature << FEATURE_SHIFT | (long) inPos << POSITION_SHIFT
+        | (inKey & 0xFFFFFFFFL);
+    inOut.putIntLE((int) (descriptor >>> 32)).putIntLE((int) descriptor).putDoubleLE(inValue);
+  }
+
+  private int sessionId(SessionFeature inF) {
+    int id = sessionIds[inF.ordinal()];
+    if (id == NO_ID && hashMask == 0) {
+      id = nextId++;
+      sessionIds[inF.ordinal()] = id;
+    }
+    return id;
+  }
+
+  /**
+   * Appends " index:" for a counter id or feature hash.
+   */
+  private LineEncoder label(LineEncoder inOut, int inIdOrHash) {
+    return inOut.put(FEAT_SEP).put(index(inIdOrHash)).put(FEAT_VAL_SEP);
+  }
+
+  private void sum(int inHash, int inType, double inValue) {
+    sums.get().add(index(inHash), inType, inValue);
+  }
+
+  /**
+   * Writes the held back features in id order, summing the values of each id. The sum is a long
+   * if all its values are, else a double if any is, else a float.
+   */
+  private void writeSums(LineEncoder inOut, LineSums inSums) {
+    int n = inSums.size;
+    long[] order = inSums.order;
+    for (int i = 0; i < n; i++) {
+      order[i] = (long) inSums.indices[i] << 32 | i;
+    }
+    Arrays.sort(order, 0, n);
+    for (int i = 0; i < n;) {
+      int index = (int) (order[i] >>> 32);
+      int end = i;
+      int type = LONG_VALUE;
+      while (end < n && (int) (order[end] >>> 32) == index) {
+        int t = inSums.types[(int) order[end++]];
+        type = type == DOUBLE_VALUE || t == DOUBLE_VALUE ? DOUBLE_VALUE : Math.max(type, t);
+      }
+      long longSum = 0;
+      float floatSum = 0.0f;
+      double doubleSum = 0.0;
+      for (int j = i; j < end; j++) {
+        double v = inSums.values[(int) order[j]];
+        longSum += (long) v;
+        floatSum += (float) v;
+        doubleSum += v;
+      }
+      if (format == Format.CSR) {
+        CsrWriter.feature(inOut, index,
+            type == LONG_VALUE ? longSum : type == FLOAT_VALUE ? floatSum : (float) doubleSum);
+      } else {
+        if (i > 0) {
+          inOut.put(FEAT_SEP);
+        }
+        inOut.put(index).put(FEAT_VAL_SEP);
+        if (type == LONG_VALUE) {
+          inOut.put(longSum);
+        } else if (type == FLOAT_VALUE) {
+          inOut.put(floatSum);
+        } else {
+          inOut.put(doubleSum);
+        }
+      }
+      i = end;
+    }
+    inSums.clear();
+  }
+
+  private void csr(LineEncoder inOut, int inIdOrHash, double inValue) {
+    float value = (float) inValue;
+    CsrWriter.feature(inOut, index(inIdOrHash), negative(inIdOrHash) ? 0.0f - value : value);
+  }
+
+  private int index(int inIdOrHash) {
+    return hashMask == 0 ? inIdOrHash : inIdOrHash & hashMask;
+  }
+
+  /**
+   * @return whether the value is negated, by the sign bit of the feature hash
+   */
+  private boolean negative(int inIdOrHash) {
+    return signed && inIdOrHash < 0;
+  }
+
+  private static int hash(String inName) {
+    return IntHash.murmur3(inName.getBytes(StandardCharsets.UTF_8), HASH_SEED);
+  }
+
+  private static byte[] ascii(String inLabel) {
+    return inLabel.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * The features of one line as (index, value type, value), for a hashed plan to sum.
+   */
+  private static class LineSums {
+    private int size;
+    private int[] indices = new int[256];
+    private int[] types = new int[256];
+    private double[] values = new double[256];
+    private long[] order = new long[256];
+
+    private void add(int inIndex, int inType, double inValue) {
+      if (size == indices.length) {
+        indices = Arrays.copyOf(indices, size << 1);
+        types = Arrays.copyOf(types, size << 1);
+        values = Arrays.copyOf(values, size << 1);
+        order = new long[size << 1];
+      }
+      indices[size] = inIndex;
+      types[size] = inType;
+      values[size] = inValue;
+      size++;
+    }
+
+    private void clear() {
+      size = 0;
+    }
+  }
+}
@@ -1,13 +1,14 @@
 package data.yoochoose;
 
 /**
- * Supported file formats.
+ * Supported file formats. CSR is a binary sparse matrix with LIBSVM's feature ids, see
+ * {@link CsrWriter}.
  * 
  * @author hsheil
  *
  */
 public enum Format {
   
-  VW, LIBSVM
+  VW, LIBSVM, CSR
 
 }
@@ -0,0 +1,92 @@
+package data.yoochoose;
+
+/**
+ * HyperLogLog distinct counter (Flajolet et al.) over int ids, with linear counting for small
+ * cardinalities. Uses 2^precision one-byte registers - precision 14 is 16 KB for a standard error
+ * of about 0.8%, precision 10 is 1 KB for about 3%. Counters of the same precision can be merged.
+ * Not thread-safe.
+ */
+public class HyperLogLog {
+
+  private final int precision;
+
+  private final byte[] registers;
+
+  public HyperLogLog(int inPrecision) {
+    if (inPrecision < 4 || inPrecision > 18) {
+      throw new IllegalArgumentException("Precision must be between 4 and 18: " + inPrecision);
+    }
+    precision = inPrecision;
+    registers = new byte[1 << inPrecision];
+  }
+
+  public void add(int inId) {
+    long h = IntHash.hash64(inId);
+    int idx = (int) (h >>> (64 - precision));
+    // Rank of the first set bit in the remaining bits, the sentinel bit caps it
+    long w = (h << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+    if (rank > registers[idx]) {
+      registers[idx] = rank;
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if the precisions differ
+   */
+  public void merge(HyperLogLog inOther) {
+    if (inOther.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge precision " + inOther.precision + " into "
+          + precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (inOther.registers[i] > registers[i]) {
+        registers[i] = inOther.registers[i];
+      }
+    }
+  }
+
+  /**
+   * @return the estimated number of distinct ids added
+   */
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0.0;
+    int zeros = 0;
+    for (byte r : registers) {
+      sum += 1.0 / (1L << r);
+      if (r == 0) {
+        zeros++;
+      }
+    }
+    double alpha;
+    switch (m) {
+      case 16:
+        alpha = 0.673;
+        break;
+      case 32:
+        alpha = 0.697;
+        break;
+      case 64:
+        alpha = 0.709;
+        break;
+      default:
+        alpha = 0.7213 / (1.0 + 1.079 / m);
+        break;
+    }
+    double rVal = alpha * m * m / sum;
+    if (rVal <= 2.5 * m && zeros > 0) {
+      // Linear counting is more accurate while many registers are still empty
+      rVal = m * Math.log((double) m / zeros);
+    }
+    return Math.round(rVal);
+  }
+
+  public int precision() {
+    return precision;
+  }
+
+  public int sizeInBytes() {
+    return registers.length;
+  }
+}
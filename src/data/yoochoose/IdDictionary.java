@@ -0,0 +1,65 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary encoding of sparse 32-bit ids (sessions, items, categories) into dense sequential
+ * indices 0..size()-1 in first-seen order, with a reverse table back to the original id. Anything
+ * keyed on a dense index can then be a plain array.
+ */
+public class IdDictionary {
+
+  private final IntIntMap index;
+
+  private int[] ids;
+
+  private int size;
+
+  public IdDictionary() {
+    this(16);
+  }
+
+  public IdDictionary(int inExpected) {
+    index = new IntIntMap(inExpected);
+    ids = new int[Math.max(inExpected, 16)];
+  }
+
+  /**
+   * @return the dense index for the id, assigning the next one if it has not been seen before
+   */
+  public int encode(int inId) {
+    int rVal = index.get(inId, -1);
+    if (rVal < 0) {
+      rVal = size++;
+      if (rVal == ids.length) {
+        ids = Arrays.copyOf(ids, ids.length + (ids.length >> 1));
+      }
+      ids[rVal] = inId;
+      index.put(inId, rVal);
+    }
+    return rVal;
+  }
+
+  /**
+   * @return the dense index for the id, or -1 if it has never been encoded
+   */
+  public int lookup(int inId) {
+    return index.get(inId, -1);
+  }
+
+  /**
+   * @return the original id for a dense index
+   */
+  public int decode(int inIndex) {
+    return ids[inIndex];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    index.clear();
+    size = 0;
+  }
+}
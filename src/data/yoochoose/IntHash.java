@@ -0,0 +1,98 @@
+package data.yoochoose;
+
+/**
+ * Hashing helpers shared by the open-addressing primitive collections and the sketches.
+ */
+final class IntHash {
+
+  private static final int PHI = 0x9E3779B9;
+
+  static final float LOAD_FACTOR = 0.5f;
+
+  private IntHash() {}
+
+  /**
+   * Scrambles a key so that runs of sequential ids spread across the table.
+   */
+  static int mix(int inKey) {
+    int h = inKey * PHI;
+    return h ^ (h >>> 16);
+  }
+
+  static int mix(long inKey) {
+    long h = inKey * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * 64-bit hash with good avalanche (the MurmurHash3 finalizer), for sketches that use the hash
+   * bits directly.
+   */
+  static long hash64(long inKey) {
+    long h = inKey;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * MurmurHash3 (x86, 32-bit) of a byte string, for hashes that have to be stable across runs.
+   */
+  static int murmur3(byte[] inData, int inSeed) {
+    int h = inSeed;
+    int blocks = inData.length >> 2;
+    for (int i = 0; i < blocks; i++) {
+      int k = (inData[i * 4] & 0xFF) | (inData[i * 4 + 1] & 0xFF) << 8
+          | (inData[i * 4 + 2] & 0xFF) << 16 | (inData[i * 4 + 3] & 0xFF) << 24;
+      h = murmur3Round(h, k);
+    }
+    // The last 1 to 3 bytes, little-endian
+    int tail = inData.length & 3;
+    if (tail > 0) {
+      int k = 0;
+      for (int i = blocks * 4 + tail - 1; i >= blocks * 4; i--) {
+        k = k << 8 | (inData[i] & 0xFF);
+      }
+      h ^= murmur3Scramble(k);
+    }
+    return murmur3Finish(h, inData.length);
+  }
+
+  /**
+   * MurmurHash3 (x86, 32-bit) of an int as its 4 little-endian bytes, no byte array needed.
+   */
+  static int murmur3(int inKey, int inSeed) {
+    return murmur3Finish(murmur3Round(inSeed, inKey), 4);
+  }
+
+  private static int murmur3Scramble(int inK) {
+    return Integer.rotateLeft(inK * 0xCC9E2D51, 15) * 0x1B873593;
+  }
+
+  private static int murmur3Round(int inH, int inK) {
+    return Integer.rotateLeft(inH ^ murmur3Scramble(inK), 13) * 5 + 0xE6546B64;
+  }
+
+  private static int murmur3Finish(int inH, int inLength) {
+    int h = inH ^ inLength;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return a power of two table size able to hold inExpected keys under the load factor
+   */
+  static int tableSize(int inExpected) {
+    long needed = Math.max(4L, (long) Math.ceil(inExpected / LOAD_FACTOR));
+    if (needed > 1 << 30) {
+      throw new IllegalArgumentException("Too many keys: " + inExpected);
+    }
+    return Integer.highestOneBit((int) needed - 1) << 1;
+  }
+}
@@ -0,0 +1,185 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) int to int hash map. Keys and values live in two flat int
+ * arrays so lookups never box. Key 0 is used to mark free slots and is stored separately.
+ */
+public class IntIntMap {
+
+  /**
+   * Callback for {@link IntIntMap#forEach(Procedure)}.
+   */
+  public interface Procedure {
+    void apply(int inKey, int inValue);
+  }
+
+  private int[] keys;
+
+  private int[] values;
+
+  private int mask;
+
+  private int size;
+
+  private int threshold;
+
+  private boolean hasZeroKey;
+
+  private int zeroValue;
+
+  public IntIntMap() {
+    this(16);
+  }
+
+  public IntIntMap(int inExpected) {
+    allocate(IntHash.tableSize(inExpected));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(int inKey) {
+    if (inKey == 0) {
+      return hasZeroKey;
+    }
+    return keys[slot(inKey)] != 0;
+  }
+
+  /**
+   * @return the value for the key, or inDefault if absent
+   */
+  public int get(int inKey, int inDefault) {
+    if (inKey == 0) {
+      return hasZeroKey ? zeroValue : inDefault;
+    }
+    int s = slot(inKey);
+    return keys[s] != 0 ? values[s] : inDefault;
+  }
+
+  public void put(int inKey, int inValue) {
+    if (inKey == 0) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroValue = inValue;
+      return;
+    }
+    int s = slot(inKey);
+    values[s] = inValue;
+    if (keys[s] == 0) {
+      keys[s] = inKey;
+      grow();
+    }
+  }
+
+  /**
+   * Adds inDelta to the value for the key, starting from 0 if absent.
+   *
+   * @return the new value
+   */
+  public int addTo(int inKey, int inDelta) {
+    if (inKey == 0) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        zeroValue = 0;
+        size++;
+      }
+      return zeroValue += inDelta;
+    }
+    int s = slot(inKey);
+    if (keys[s] == 0) {
+      keys[s] = inKey;
+      values[s] = inDelta;
+      grow();
+      return inDelta;
+    }
+    return values[s] += inDelta;
+  }
+
+  public void remove(int inKey) {
+    if (inKey == 0) {
+      if (hasZeroKey) {
+        hasZeroKey = false;
+        size--;
+      }
+      return;
+    }
+    int s = slot(inKey);
+    if (keys[s] == 0) {
+      return;
+    }
+    size--;
+    // Backward shift deletion keeps probe sequences intact without tombstones
+    int gap = s;
+    for (int i = (s + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+      int home = IntHash.mix(keys[i]) & mask;
+      if (((i - home) & mask) >= ((i - gap) & mask)) {
+        keys[gap] = keys[i];
+        values[gap] = values[i];
+        gap = i;
+      }
+    }
+    keys[gap] = 0;
+  }
+
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0);
+      hasZeroKey = false;
+      size = 0;
+    }
+  }
+
+  public void forEach(Procedure inP) {
+    if (hasZeroKey) {
+      inP.apply(0, zeroValue);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        inP.apply(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the slot holding the key, or the free slot where it would go
+   */
+  private int slot(int inKey) {
+    int s = IntHash.mix(inKey) & mask;
+    while (keys[s] != 0 && keys[s] != inKey) {
+      s = (s + 1) & mask;
+    }
+    return s;
+  }
+
+  private void grow() {
+    if (++size <= threshold) {
+      return;
+    }
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int s = slot(oldKeys[i]);
+        keys[s] = oldKeys[i];
+        values[s] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int inCapacity) {
+    keys = new int[inCapacity];
+    values = new int[inCapacity];
+    mask = inCapacity - 1;
+    threshold = (int) (inCapacity * IntHash.LOAD_FACTOR);
+  }
+}
@@ -0,0 +1,94 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) set of ints, see {@link IntIntMap}.
+ */
+public class IntSet {
+
+  private int[] keys;
+
+  private int mask;
+
+  private int size;
+
+  private int threshold;
+
+  private boolean hasZero;
+
+  public IntSet() {
+    this(16);
+  }
+
+  public IntSet(int inExpected) {
+    allocate(IntHash.tableSize(inExpected));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(int inKey) {
+    if (inKey == 0) {
+      return hasZero;
+    }
+    return keys[slot(inKey)] != 0;
+  }
+
+  /**
+   * @return true if the key was not already present
+   */
+  public boolean add(int inKey) {
+    if (inKey == 0) {
+      if (hasZero) {
+        return false;
+      }
+      hasZero = true;
+      size++;
+      return true;
+    }
+    int s = slot(inKey);
+    if (keys[s] != 0) {
+      return false;
+    }
+    keys[s] = inKey;
+    grow();
+    return true;
+  }
+
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0);
+      hasZero = false;
+      size = 0;
+    }
+  }
+
+  private int slot(int inKey) {
+    int s = IntHash.mix(inKey) & mask;
+    while (keys[s] != 0 && keys[s] != inKey) {
+      s = (s + 1) & mask;
+    }
+    return s;
+  }
+
+  private void grow() {
+    if (++size <= threshold) {
+      return;
+    }
+    int[] oldKeys = keys;
+    allocate(keys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        keys[slot(oldKeys[i])] = oldKeys[i];
+      }
+    }
+  }
+
+  private void allocate(int inCapacity) {
+    keys = new int[inCapacity];
+    mask = inCapacity - 1;
+    threshold = (int) (inCapacity * IntHash.LOAD_FACTOR);
+  }
+}
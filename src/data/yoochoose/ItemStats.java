@@ -0,0 +1,178 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Item registry statistics: purchase flag counts, price range, a histogram over price ranges and a
+ * quantile sketch of the known prices.
+ * Mergeable, so it can be filled by a single parallel reduction over an {@link ItemTable}:
+ *
+ * <pre>
+ * IntStream.range(0, items.size()).parallel().collect(ItemStats::new,
+ *     (s, i) -&gt; s.add(items, i), ItemStats::merge);
+ * </pre>
+ */
+public class ItemStats {
+
+  /**
+   * Upper bounds (inclusive) of the price ranges 1..9, anything higher is range 10 and a price of
+   * 0 (unknown) is range 0.
+   */
+  private static final int[] RANGE_BOUNDS =
+      {100, 500, 1_000, 2_000, 5_000, 10_000, 50_000, 100_000, 350_000};
+
+  public static final int RANGES = RANGE_BOUNDS.length + 2;
+
+  private long items;
+
+  private long purchased;
+
+  private long multiPurchase;
+
+  private long seenWithPurchased;
+
+  private long withPrice;
+
+  private int minPrice = Integer.MAX_VALUE;
+
+  private int maxPrice = Integer.MIN_VALUE;
+
+  private long priceSum;
+
+  private final long[] rangeCount = new long[RANGES];
+
+  private final int[] rangeMin = new int[RANGES];
+
+  private final int[] rangeMax = new int[RANGES];
+
+  private final QuantileSketch prices = new QuantileSketch();
+
+  public ItemStats() {
+    Arrays.fill(rangeMin, Integer.MAX_VALUE);
+    Arrays.fill(rangeMax, Integer.MIN_VALUE);
+  }
+
+  /**
+   * @return the price range of a price, 0 for no price, 1 for up to 100, ..., 10 for above 350000
+   */
+  public static int range(int inPrice) {
+    if (inPrice <= 0) {
+      return 0;
+    }
+    for (int i = 0; i < RANGE_BOUNDS.length; i++) {
+      if (inPrice <= RANGE_BOUNDS[i]) {
+        return i + 1;
+      }
+    }
+    return RANGE_BOUNDS.length + 1;
+  }
+
+  public void add(ItemTable inItems, int inItem) {
+    items++;
+    if (inItems.isPurchased(inItem)) {
+      purchased++;
+    }
+    if (inItems.isMultiPurchase(inItem)) {
+      multiPurchase++;
+    }
+    if (inItems.isSeenWithPurchased(inItem)) {
+      seenWithPurchased++;
+    }
+    int price = inItems.price(inItem);
+    if (price > 0) {
+      withPrice++;
+      prices.add(price);
+    }
+    minPrice = Math.min(minPrice, price);
+    maxPrice = Math.max(maxPrice, price);
+    priceSum += price;
+    int r = range(price);
+    rangeCount[r]++;
+    rangeMin[r] = Math.min(rangeMin[r], price);
+    rangeMax[r] = Math.max(rangeMax[r], price);
+  }
+
+  public void merge(ItemStats inOther) {
+    items += inOther.items;
+    purchased += inOther.purchased;
+    multiPurchase += inOther.multiPurchase;
+    seenWithPurchased += inOther.seenWithPurchased;
+    withPrice += inOther.withPrice;
+    minPrice = Math.min(minPrice, inOther.minPrice);
+    maxPrice = Math.max(maxPrice, inOther.maxPrice);
+    priceSum += inOther.priceSum;
+    prices.merge(inOther.prices);
+    for (int r = 0; r < RANGES; r++) {
+      rangeCount[r] += inOther.rangeCount[r];
+      rangeMin[r] = Math.min(rangeMin[r], inOther.rangeMin[r]);
+      rangeMax[r] = Math.max(rangeMax[r], inOther.rangeMax[r]);
+    }
+  }
+
+  public long items() {
+    return items;
+  }
+
+  public long purchased() {
+    return purchased;
+  }
+
+  public long unpurchased() {
+    return items - purchased;
+  }
+
+  public long multiPurchase() {
+    return multiPurchase;
+  }
+
+  public long seenWithPurchased() {
+    return seenWithPurchased;
+  }
+
+  /**
+   * @return the number of items with a known (non-zero) price
+   */
+  public long withPrice() {
+    return withPrice;
+  }
+
+  /**
+   * @return the lowest price, 0 if there are no items
+   */
+  public int minPrice() {
+    return items == 0 ? 0 : minPrice;
+  }
+
+  /**
+   * @return the highest price, 0 if there are no items
+   */
+  public int maxPrice() {
+    return items == 0 ? 0 : maxPrice;
+  }
+
+  public double avgPrice() {
+    return items == 0 ? 0.0 : (double) priceSum / items;
+  }
+
+  /**
+   * @return the distribution of known (non-zero) prices, e.g. for equi-depth price buckets
+   */
+  public QuantileSketch prices() {
+    return prices;
+  }
+
+  /**
+   * @return the number of items in a price range, see {@link #range(int)}
+   */
+  public long rangeCount(int inRange) {
+    return rangeCount[inRange];
+  }
+
+  public int rangeMinPrice(int inRange) {
+    return rangeCount[inRange] == 0 ? 0 : rangeMin[inRange];
+  }
+
+  public int rangeMaxPrice(int inRange) {
+    return rangeCount[inRange] == 0 ? 0 : rangeMax[inRange];
+  }
+}
@@ -0,0 +1,215 @@
+package data.yoochoose;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Item metadata (price, category, change counts and purchase flags) indexed by dense item id, see
+ * {@link IdDictionary}. Rows are created on first use and updated in place.
+ * Reads of an unknown item (index -1, or beyond the last row) return 0 / false.
+ *
+ * Rows are fixed-width records in a direct (off-heap) buffer, so a large item registry adds
+ * nothing to the old generation the collector has to trace:
+ *
+ * <pre>
+ *   0  int   price
+ *   4  int   categoryId
+ *   8  int   priceChangeCount
+ *  12  int   catChangeCount
+ *  16  int   firstPrice, the price the first price change set
+ *  20  byte  flags
+ *  21  -     padding to 24 bytes
+ * </pre>
+ */
+public class ItemTable {
+
+  public static final byte PURCHASED = 1;
+
+  public static final byte MULTI_PURCHASE = 2;
+
+  public static final byte SEEN_WITH_PURCHASED = 4;
+
+  static final int RECORD_SIZE = 24;
+
+  private static final int PRICE = 0;
+
+  private static final int CATEGORY_ID = 4;
+
+  private static final int PRICE_CHANGE_COUNT = 8;
+
+  private static final int CAT_CHANGE_COUNT = 12;
+
+  private static final int FIRST_PRICE = 16;
+
+  private static final int FLAGS = 20;
+
+  private int size;
+
+  private int capacity;
+
+  private ByteBuffer rows;
+
+  public ItemTable() {
+    this(1_024);
+  }
+
+  public ItemTable(int inCapacity) {
+    capacity = Math.max(inCapacity, 16);
+    rows = allocate(capacity);
+  }
+
+  /**
+   * @return the number of rows, i.e. one more than the highest item index used
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * A click only tells us the category - take it if we have none yet (promote from "unknown" to
+   * "known").
+   */
+  public void recordClick(int inItem, int inCategoryId) {
+    int r = row(inItem);
+    if (rows.getInt(r + CATEGORY_ID) == 0 && inCategoryId > 0) {
+      rows.putInt(r + CATEGORY_ID, inCategoryId);
+      increment(r + CAT_CHANGE_COUNT, 1);
+    }
+  }
+
+  /**
+   * A purchase carries the latest known price, plus purchase and multi-purchase flags.
+   */
+  public void recordPurchase(int inItem, int inPrice, int inQuantity) {
+    int r = row(inItem);
+    if (inPrice > 0 && rows.getInt(r + PRICE) != inPrice) {
+      changePrice(r, inPrice);
+    }
+    setFlags(r, inQuantity > 1 ? PURCHASED | MULTI_PURCHASE : PURCHASED);
+  }
+
+  /**
+   * Folds a row of another table (e.g. built from a later part of the same file) into a row here,
+   * as if its events had been recorded here directly. The other row's first price change (from no
+   * price) is only one here if this row had a different price.
+   */
+  public void merge(int inItem, ItemTable inOther, int inOtherItem) {
+    int r = row(inItem);
+    ByteBuffer other = inOther.rows;
+    int o = inOtherItem * RECORD_SIZE;
+    int otherCategory = other.getInt(o + CATEGORY_ID);
+    if (rows.getInt(r + CATEGORY_ID) == 0 && otherCategory > 0) {
+      rows.putInt(r + CATEGORY_ID, otherCategory);
+      increment(r + CAT_CHANGE_COUNT, 1);
+    }
+    int changes = other.getInt(o + PRICE_CHANGE_COUNT);
+    if (changes > 0) {
+      int otherFirst = other.getInt(o + FIRST_PRICE);
+      if (rows.getInt(r + PRICE) == otherFirst) {
+        changes--;
+      } else if (rows.getInt(r + PRICE_CHANGE_COUNT) == 0) {
+        rows.putInt(r + FIRST_PRICE, otherFirst);
+      }
+      rows.putInt(r + PRICE, other.getInt(o + PRICE));
+      increment(r + PRICE_CHANGE_COUNT, changes);
+    }
+    setFlags(r, other.get(o + FLAGS));
+  }
+
+  public int price(int inItem) {
+    return known(inItem) ? rows.getInt(inItem * RECORD_SIZE + PRICE) : 0;
+  }
+
+  /**
+   * Overwrites the price unconditionally.
+   */
+  public void setPrice(int inItem, int inPrice) {
+    int r = row(inItem);
+    if (rows.getInt(r + PRICE) != inPrice) {
+      changePrice(r, inPrice);
+    }
+  }
+
+  public int categoryId(int inItem) {
+    return known(inItem) ? rows.getInt(inItem * RECORD_SIZE + CATEGORY_ID) : 0;
+  }
+
+  public int priceChangeCount(int inItem) {
+    return known(inItem) ? rows.getInt(inItem * RECORD_SIZE + PRICE_CHANGE_COUNT) : 0;
+  }
+
+  public int catChangeCount(int inItem) {
+    return known(inItem) ? rows.getInt(inItem * RECORD_SIZE + CAT_CHANGE_COUNT) : 0;
+  }
+
+  public boolean isPurchased(int inItem) {
+    return is(inItem, PURCHASED);
+  }
+
+  public boolean isMultiPurchase(int inItem) {
+    return is(inItem, MULTI_PURCHASE);
+  }
+
+  public boolean isSeenWithPurchased(int inItem) {
+    return is(inItem, SEEN_WITH_PURCHASED);
+  }
+
+  public void set(int inItem, byte inFlag) {
+    setFlags(row(inItem), inFlag);
+  }
+
+  private boolean is(int inItem, byte inFlag) {
+    return known(inItem) && (rows.get(inItem * RECORD_SIZE + FLAGS) & inFlag) != 0;
+  }
+
+  private boolean known(int inItem) {
+    return inItem >= 0 && inItem < size;
+  }
+
+  private void setFlags(int inRow, int inFlags) {
+    rows.put(inRow + FLAGS, (byte) (rows.get(inRow + FLAGS) | inFlags));
+  }
+
+  private void changePrice(int inRow, int inPrice) {
+    if (rows.getInt(inRow + PRICE_CHANGE_COUNT) == 0) {
+      rows.putInt(inRow + FIRST_PRICE, inPrice);
+    }
+    rows.putInt(inRow + PRICE, inPrice);
+    increment(inRow + PRICE_CHANGE_COUNT, 1);
+  }
+
+  private void increment(int inOffset, int inDelta) {
+    rows.putInt(inOffset, rows.getInt(inOffset) + inDelta);
+  }
+
+  /**
+   * @return the byte offset of an item's record, creating (zeroed) rows up to it if needed
+   */
+  private int row(int inItem) {
+    if (inItem >= size) {
+      if (inItem >= capacity) {
+        grow(inItem + 1);
+      }
+      size = inItem + 1;
+    }
+    return inItem * RECORD_SIZE;
+  }
+
+  private void grow(int inCapacity) {
+    int newCapacity = Math.max(inCapacity, capacity + (capacity >> 1));
+    if ((long) newCapacity * RECORD_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Item table exceeds " + Integer.MAX_VALUE + " bytes");
+    }
+    ByteBuffer grown = allocate(newCapacity);
+    ByteBuffer src = rows.duplicate();
+    src.clear().limit(size * RECORD_SIZE);
+    grown.put(src).clear();
+    rows = grown;
+    capacity = newCapacity;
+  }
+
+  private static ByteBuffer allocate(int inRows) {
+    // Direct buffers are zero-filled, which is the empty row
+    return ByteBuffer.allocateDirect(inRows * RECORD_SIZE).order(ByteOrder.nativeOrder());
+  }
+}
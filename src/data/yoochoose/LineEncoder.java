@@ -0,0 +1,209 @@
+package data.yoochoose;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable byte buffer an output line is encoded into, ASCII text written straight as bytes. Ints
+ * and longs are converted two digits at a time from a lookup table, so nothing is boxed and no
+ * intermediate string or char to byte re-encoding is needed.
+ *
+ * Doubles and floats holding whole numbers (all but a few rate features) are written as the
+ * integer plus ".0". Anything else goes through {@link Double#toString(double)} /
+ * {@link Float#toString(float)}, so the text is always the shortest decimal that reads back as
+ * the same value, exactly as the text formats have always had it.
+ */
+public class LineEncoder {
+
+  private static final byte[] DIGIT_PAIRS = new byte[200];
+
+  static {
+    for (int i = 0; i < 100; i++) {
+      DIGIT_PAIRS[i * 2] = (byte) ('0' + i / 10);
+      DIGIT_PAIRS[i * 2 + 1] = (byte) ('0' + i % 10);
+    }
+  }
+
+  private static final byte[] MIN_LONG =
+      Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+  /**
+   * From 10^7 up {@link Double#toString(double)} switches to scientific notation.
+   */
+  private static final double MAX_PLAIN = 1e7;
+
+  private byte[] bytes;
+
+  private ByteBuffer view;
+
+  private int size;
+
+  public LineEncoder() {
+    this(1 << 16);
+  }
+
+  public LineEncoder(int inCapacity) {
+    bytes = new byte[Math.max(inCapacity, 32)];
+    view = ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * @return the number of bytes encoded since the last {@link #clear()}
+   */
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Appends an ASCII character.
+   */
+  public LineEncoder put(char inC) {
+    ensureCapacity(1);
+    bytes[size++] = (byte) inC;
+    return this;
+  }
+
+  /**
+   * Appends an ASCII string, one byte per char.
+   */
+  public LineEncoder put(String inAscii) {
+    int n = inAscii.length();
+    ensureCapacity(n);
+    for (int i = 0; i < n; i++) {
+      bytes[size++] = (byte) inAscii.charAt(i);
+    }
+    return this;
+  }
+
+  public LineEncoder put(byte[] inBytes) {
+    return put(inBytes, 0, inBytes.length);
+  }
+
+  public LineEncoder put(byte[] inBytes, int inOffset, int inLength) {
+    ensureCapacity(inLength);
+    System.arraycopy(inBytes, inOffset, bytes, size, inLength);
+    size += inLength;
+    return this;
+  }
+
+  public LineEncoder put(long inValue) {
+    long v = inValue;
+    if (v < 0) {
+      if (v == Long.MIN_VALUE) {
+        return put(MIN_LONG);
+      }
+      put('-');
+      v = -v;
+    }
+    int digits = digits(v);
+    ensureCapacity(digits);
+    int p = size + digits;
+    size = p;
+    while (v >= 100) {
+      int pair = (int) (v % 100) * 2;
+      v /= 100;
+      bytes[--p] = DIGIT_PAIRS[pair + 1];
+      bytes[--p] = DIGIT_PAIRS[pair];
+    }
+    if (v >= 10) {
+      bytes[--p] = DIGIT_PAIRS[(int) v * 2 + 1];
+      bytes[--p] = DIGIT_PAIRS[(int) v * 2];
+    } else {
+      bytes[--p] = (byte) ('0' + v);
+    }
+    return this;
+  }
+
+  public LineEncoder put(double inValue) {
+    if (isPlainWhole(inValue)) {
+      return put((long) inValue).put('.').put('0');
+    }
+    return put(Double.toString(inValue));
+  }
+
+  public LineEncoder put(float inValue) {
+    if (isPlainWhole(inValue)) {
+      return put((long) inValue).put('.').put('0');
+    }
+    return put(Float.toString(inValue));
+  }
+
+  /**
+   * Appends the 4 bytes of inValue, little-endian, for binary output.
+   */
+  public LineEncoder putIntLE(int inValue) {
+    ensureCapacity(4);
+    bytes[size++] = (byte) inValue;
+    bytes[size++] = (byte) (inValue >>> 8);
+    bytes[size++] = (byte) (inValue >>> 16);
+    bytes[size++] = (byte) (inValue >>> 24);
+    return this;
+  }
+
+  public LineEncoder putLongLE(long inValue) {
+    return putIntLE((int) inValue).putIntLE((int) (inValue >>> 32));
+  }
+
+  public LineEncoder putFloatLE(float inValue) {
+    return putIntLE(Float.floatToRawIntBits(inValue));
+  }
+
+  public LineEncoder putDoubleLE(double inValue) {
+    return putLongLE(Double.doubleToRawLongBits(inValue));
+  }
+
+  /**
+   * @return the encoded bytes, from position 0 to the limit {@link #size()}; valid until the next
+   *         put or {@link #clear()}
+   */
+  public ByteBuffer buffer() {
+    view.limit(size).position(0);
+    return view;
+  }
+
+  public void writeTo(OutputStream inOut) throws IOException {
+    inOut.write(bytes, 0, size);
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, 0, size, StandardCharsets.US_ASCII);
+  }
+
+  private void ensureCapacity(int inExtra) {
+    if (size + inExtra > bytes.length) {
+      byte[] grown = new byte[Math.max(size + inExtra, bytes.length << 1)];
+      System.arraycopy(bytes, 0, grown, 0, size);
+      bytes = grown;
+      view = ByteBuffer.wrap(bytes);
+    }
+  }
+
+  /**
+   * @return whether the value is a whole number {@link Double#toString(double)} writes as
+   *         "&lt;integer&gt;.0"
+   */
+  private static boolean isPlainWhole(double inValue) {
+    return inValue == (long) inValue && Math.abs(inValue) < MAX_PLAIN
+        && Double.doubleToRawLongBits(inValue) != NEGATIVE_ZERO;
+  }
+
+  /**
+   * @return the number of decimal digits of a non-negative value
+   */
+  private static int digits(long inValue) {
+    int rVal = 1;
+    for (long limit = 10; rVal < 19 && inValue >= limit; limit *= 10) {
+      rVal++;
+    }
+    return rVal;
+  }
+}
@@ -0,0 +1,136 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) long to int hash map, e.g. for counts keyed by a pair of ints
+ * packed into a long. Keys and values live in flat primitive arrays so nothing is boxed. Key 0 is
+ * used to mark free slots and is stored separately.
+ */
+public class LongIntMap {
+
+  /**
+   * Callback for {@link LongIntMap#forEach(Procedure)}.
+   */
+  public interface Procedure {
+    void apply(long inKey, int inValue);
+  }
+
+  private long[] keys;
+
+  private int[] values;
+
+  private int mask;
+
+  private int size;
+
+  private int threshold;
+
+  private boolean hasZeroKey;
+
+  private int zeroValue;
+
+  public LongIntMap() {
+    this(16);
+  }
+
+  public LongIntMap(int inExpected) {
+    allocate(IntHash.tableSize(inExpected));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the value for the key, or inDefault if absent
+   */
+  public int get(long inKey, int inDefault) {
+    if (inKey == 0L) {
+      return hasZeroKey ? zeroValue : inDefault;
+    }
+    int s = slot(inKey);
+    return keys[s] != 0L ? values[s] : inDefault;
+  }
+
+  /**
+   * Adds inDelta to the value for the key, starting from 0 if absent.
+   *
+   * @return the new value
+   */
+  public int addTo(long inKey, int inDelta) {
+    if (inKey == 0L) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        zeroValue = 0;
+        size++;
+      }
+      return zeroValue += inDelta;
+    }
+    int s = slot(inKey);
+    if (keys[s] == 0L) {
+      keys[s] = inKey;
+      values[s] = inDelta;
+      grow();
+      return inDelta;
+    }
+    return values[s] += inDelta;
+  }
+
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0L);
+      hasZeroKey = false;
+      size = 0;
+    }
+  }
+
+  public void forEach(Procedure inP) {
+    if (hasZeroKey) {
+      inP.apply(0L, zeroValue);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0L) {
+        inP.apply(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the slot holding the key, or the free slot where it would go
+   */
+  private int slot(long inKey) {
+    int s = IntHash.mix(inKey) & mask;
+    while (keys[s] != 0L && keys[s] != inKey) {
+      s = (s + 1) & mask;
+    }
+    return s;
+  }
+
+  private void grow() {
+    if (++size <= threshold) {
+      return;
+    }
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0L) {
+        int s = slot(oldKeys[i]);
+        keys[s] = oldKeys[i];
+        values[s] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int inCapacity) {
+    keys = new long[inCapacity];
+    values = new int[inCapacity];
+    mask = inCapacity - 1;
+    threshold = (int) (inCapacity * IntHash.LOAD_FACTOR);
+  }
+}
@@ -0,0 +1,274 @@
+package data.yoochoose;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a delimited *.dat file by memory-mapping it and tokenizing each row straight from the
+ * mapped bytes. No per-row objects are created - fields are exposed as offsets into the current
+ * mapping and converted to primitives on demand.
+ *
+ * The YOOCHOOSE files are plain ASCII without quoting, so quoted fields are not supported. Files
+ * larger than a single mapping are read through a sliding window that is re-mapped on row
+ * boundaries. A reader can be restricted to a byte range produced by {@link #split(String, int)}
+ * so that several readers can work through one file in parallel.
+ */
+public class MappedCsvReader implements Closeable {
+
+  /**
+   * Maximum number of fields tracked per row, any further separators are treated as field data.
+   */
+  public static final int MAX_FIELDS = 8;
+
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  private final byte separator;
+
+  /**
+   * Absolute file offset the reader stops at (exclusive).
+   */
+  private final long rangeEnd;
+
+  private final int[] fieldStart = new int[MAX_FIELDS];
+
+  private final int[] fieldEnd = new int[MAX_FIELDS];
+
+  private MappedByteBuffer buffer;
+
+  /**
+   * Absolute file offset of the current mapping.
+   */
+  private long windowStart;
+
+  /**
+   * Position within the current mapping of the next unread row.
+   */
+  private int pos;
+
+  private int fieldCount;
+
+  private long lineNumber;
+
+  public MappedCsvReader(String inFname, char inSeparatorChar) throws IOException {
+    this(inFname, inSeparatorChar, 0L, Long.MAX_VALUE);
+  }
+
+  /**
+   * Reads only the rows in [inStart, inEnd). Both offsets must fall on row boundaries, see
+   * {@link #split(String, int)}.
+   */
+  public MappedCsvReader(String inFname, char inSeparatorChar, long inStart, long inEnd)
+      throws IOException {
+    file = new RandomAccessFile(inFname, "r");
+    channel = file.getChannel();
+    separator = (byte) inSeparatorChar;
+    rangeEnd = Math.min(inEnd, channel.size());
+    map(Math.min(inStart, rangeEnd));
+  }
+
+  /**
+   * Splits a file into roughly equal byte ranges that all start at the beginning of a row.
+   *
+   * @param inFname
+   * @param inParts
+   * @return inParts + 1 offsets, range i being [offsets[i], offsets[i + 1])
+   * @throws IOException
+   */
+  public static long[] split(String inFname, int inParts) throws IOException {
+    long[] rVal = new long[inParts + 1];
+    try (RandomAccessFile f = new RandomAccessFile(inFname, "r");
+        FileChannel ch = f.getChannel()) {
+      long size = ch.size();
+      ByteBuffer scratch = ByteBuffer.allocate(8_192);
+      rVal[inParts] = size;
+      for (int i = 1; i < inParts; i++) {
+        long p = Math.max(rVal[i - 1], size / inParts * i);
+        // Move forward to just after the next newline
+        while (p > 0 && p < size) {
+          scratch.clear();
+          int read = ch.read(scratch, p - 1);
+          int nl = -1;
+          for (int j = 0; j < read; j++) {
+            if (scratch.get(j) == '\n') {
+              nl = j;
+              break;
+            }
+          }
+          if (nl >= 0) {
+            p += nl;
+            break;
+          }
+          p += read;
+        }
+        rVal[i] = Math.min(p, size);
+      }
+    }
+    return rVal;
+  }
+
+  /**
+   * Advances to the next row.
+   *
+   * @return false once the end of the file has been reached
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    if (windowStart + pos >= rangeEnd) {
+      return false;
+    }
+    int p = pos;
+    int limit = buffer.limit();
+    int n = 0;
+    fieldStart[0] = p;
+    while (true) {
+      if (p == limit) {
+        if (windowStart + limit >= rangeEnd) {
+          // Last row without a trailing newline
+          break;
+        }
+        if (pos == 0) {
+          throw new IOException("Row at line " + (lineNumber + 1) + " exceeds the mapping window");
+        }
+        // Row straddles the window - re-map starting at this row and scan it again
+        map(windowStart + pos);
+        return next();
+      }
+      byte b = buffer.get(p);
+      if (b == '\n') {
+        break;
+      }
+      if (b == separator && n < MAX_FIELDS - 1) {
+        fieldEnd[n++] = p;
+        fieldStart[n] = p + 1;
+      }
+      p++;
+    }
+    int end = p;
+    if (end > fieldStart[n] && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+    fieldEnd[n] = end;
+    fieldCount = n + 1;
+    pos = p + 1;
+    lineNumber++;
+    return true;
+  }
+
+  /**
+   * @return the number of fields in the current row, a blank row has a single empty field
+   */
+  public int fieldCount() {
+    return fieldCount;
+  }
+
+  public int fieldLength(int inIdx) {
+    check(inIdx);
+    return fieldEnd[inIdx] - fieldStart[inIdx];
+  }
+
+  /**
+   * @return true if the field consists of exactly the given character, e.g. the "S" category
+   */
+  public boolean fieldEquals(int inIdx, char inC) {
+    check(inIdx);
+    return fieldEnd[inIdx] - fieldStart[inIdx] == 1 && buffer.get(fieldStart[inIdx]) == inC;
+  }
+
+  public int intField(int inIdx) {
+    long rVal = longField(inIdx);
+    if (rVal > Integer.MAX_VALUE || rVal < Integer.MIN_VALUE) {
+      throw new NumberFormatException("Value out of int range: " + stringField(inIdx));
+    }
+    return (int) rVal;
+  }
+
+  public long longField(int inIdx) {
+    check(inIdx);
+    int p = fieldStart[inIdx];
+    int end = fieldEnd[inIdx];
+    boolean negative = false;
+    if (p < end && buffer.get(p) == '-') {
+      negative = true;
+      p++;
+    }
+    if (p == end) {
+      throw new NumberFormatException("Empty numeric field at line " + lineNumber);
+    }
+    long rVal = 0L;
+    for (; p < end; p++) {
+      int digit = buffer.get(p) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("For input string: \"" + stringField(inIdx) + "\"");
+      }
+      rVal = rVal * 10 + digit;
+    }
+    return negative ? -rVal : rVal;
+  }
+
+  /**
+   * Decodes a yyyy-MM-dd'T'HH:mm:ss.SSS'Z' field into epoch millis without creating any objects.
+   *
+   * @see Timestamps#parse(java.nio.ByteBuffer, int, int)
+   */
+  public long timestampField(int inIdx) {
+    check(inIdx);
+    return Timestamps.parse(buffer, fieldStart[inIdx], fieldEnd[inIdx] - fieldStart[inIdx]);
+  }
+
+  /**
+   * Decodes a field into a String - allocates, so is intended for diagnostics and rarely used
+   * fields only.
+   */
+  public String stringField(int inIdx) {
+    check(inIdx);
+    return decode(fieldStart[inIdx], fieldEnd[inIdx]);
+  }
+
+  /**
+   * @return the complete current row, for error reporting
+   */
+  public String line() {
+    return fieldCount == 0 ? "" : decode(fieldStart[0], fieldEnd[fieldCount - 1]);
+  }
+
+  public long lineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    buffer = null;
+    channel.close();
+    file.close();
+  }
+
+  private void check(int inIdx) {
+    if (inIdx >= fieldCount) {
+      throw new ArrayIndexOutOfBoundsException(inIdx);
+    }
+  }
+
+  private String decode(int inStart, int inEnd) {
+    byte[] bytes = new byte[inEnd - inStart];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(inStart + i);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  private void map(long inOffset) throws IOException {
+    windowStart = inOffset;
+    pos = 0;
+    long size = Math.min(WINDOW_SIZE, rangeEnd - inOffset);
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, inOffset, size);
+  }
+}
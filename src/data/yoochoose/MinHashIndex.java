@@ -0,0 +1,251 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Banded MinHash LSH index over the item sets of sessions, for finding sessions similar to a given
+ * one (by Jaccard similarity of their clicked items) without comparing it against all others.
+ *
+ * Each session's signature is {@link #HASHES} minimum hashes over its first
+ * {@link CoOccurrence#MAX_SESSION_ITEMS} distinct clicked items, cut into {@link #BANDS} bands of
+ * {@link #ROWS} rows. Sessions sharing all rows of any band are candidates; with 8 bands of 2 rows
+ * a pair at Jaccard similarity 0.35 is found about half the time, one at 0.7 almost always.
+ *
+ * Per band the index is one sorted long array of (31 bit band hash, session id, purchaser flag)
+ * keys, so a lookup is a binary search per band plus a short scan. Any int is a valid session id.
+ * Signatures are computed by {@link Builder}s, one per thread, which are merged and then sorted
+ * in place with {@link Builder#build()}. That is 8 longs per session, all held in memory.
+ */
+public class MinHashIndex {
+
+  public static final int BANDS = 8;
+
+  public static final int ROWS = 2;
+
+  public static final int HASHES = BANDS * ROWS;
+
+  /**
+   * Most sessions taken from one band's bucket, which bounds the cost of a lookup when many
+   * sessions share a popular item.
+   */
+  public static final int MAX_CANDIDATES = 50;
+
+  private final long[][] bands;
+
+  /**
+   * The number of keys in use at the start of each band.
+   */
+  private final int size;
+
+  private MinHashIndex(long[][] inBands, int inSize) {
+    bands = inBands;
+    size = inSize;
+  }
+
+  /**
+   * @return the number of sessions indexed
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Reusable lookup state, one per thread. {@link #find(MinHashIndex, int[], int, int)} then
+   * read the results.
+   */
+  public static class Query {
+    private final int[] mins = new int[HASHES];
+
+    private final int[] hashes = new int[BANDS];
+
+    private final IntSet found = new IntSet();
+
+    private int sessions;
+
+    private int purchasers;
+
+    /**
+     * Finds the sessions similar to one with the given distinct clicked items, leaving the session
+     * itself (inSessionId) out.
+     */
+    public void find(MinHashIndex inIndex, int[] inItems, int inCount, int inSessionId) {
+      found.clear();
+      sessions = 0;
+      purchasers = 0;
+      if (inIndex == null || !bandHashes(inItems, inCount, mins, hashes)) {
+        return;
+      }
+      for (int b = 0; b < BANDS; b++) {
+        long[] keys = inIndex.bands[b];
+        int i = lowerBound(keys, inIndex.size, (long) hashes[b] << 33);
+        for (int taken = 0; i < inIndex.size && (int) (keys[i] >>> 33) == hashes[b]
+            && taken < MAX_CANDIDATES; i++) {
+          int sessionId = sessionId(keys[i]);
+          if (sessionId != inSessionId) {
+            taken++;
+            if (found.add(sessionId)) {
+              sessions++;
+              purchasers += (int) keys[i] & 1;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * @return the number of similar sessions found
+     */
+    public int sessions() {
+      return sessions;
+    }
+
+    /**
+     * @return how many of the similar sessions ended in a purchase
+     */
+    public int purchasers() {
+      return purchasers;
+    }
+  }
+
+  /**
+   * Per-thread signature builder, fed a session at a time: {@link #add(int)} for each clicked
+   * item, then {@link #endSession(int, boolean)}.
+   */
+  public static class Builder {
+    private final IntSet seen = new IntSet();
+
+    private final int[] items = new int[CoOccurrence.MAX_SESSION_ITEMS];
+
+    private int count;
+
+    private final int[] mins = new int[HASHES];
+
+    private final int[] hashes = new int[BANDS];
+
+    private long[][] keys = new long[BANDS][1_024];
+
+    private int size;
+
+    /**
+     * Adds a clicked item to the current session, repeats and items past the first
+     * {@link CoOccurrence#MAX_SESSION_ITEMS} distinct ones are ignored.
+     */
+    public void add(int inItemId) {
+      if (count < items.length && seen.add(inItemId)) {
+        items[count++] = inItemId;
+      }
+    }
+
+    /**
+     * Indexes the current session (unless it had no clicks), and starts the next one.
+     */
+    public void endSession(int inSessionId, boolean inPurchaser) {
+      if (bandHashes(items, count, mins, hashes)) {
+        ensureCapacity(size + 1);
+        for (int b = 0; b < BANDS; b++) {
+          keys[b][size] = key(hashes[b], inSessionId, inPurchaser);
+        }
+        size++;
+      }
+      seen.clear();
+      count = 0;
+    }
+
+    public void merge(Builder inOther) {
+      ensureCapacity(size + inOther.size);
+      for (int b = 0; b < BANDS; b++) {
+        System.arraycopy(inOther.keys[b], 0, keys[b], size, inOther.size);
+      }
+      size += inOther.size;
+    }
+
+    /**
+     * @return the number of sessions added
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Sorts the signatures into an index, which takes over the builder's arrays rather than copying
+     * them. The builder starts empty again.
+     */
+    public MinHashIndex build() {
+      for (int b = 0; b < BANDS; b++) {
+        Arrays.parallelSort(keys[b], 0, size);
+      }
+      MinHashIndex rVal = new MinHashIndex(keys, size);
+      keys = new long[BANDS][1_024];
+      size = 0;
+      return rVal;
+    }
+
+    private void ensureCapacity(int inCapacity) {
+      if (inCapacity > keys[0].length) {
+        int capacity = Math.max(inCapacity, keys[0].length + (keys[0].length >> 1));
+        for (int b = 0; b < BANDS; b++) {
+          keys[b] = Arrays.copyOf(keys[b], capacity);
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the 31 bit band hashes of an item set's MinHash signature into inOut, using inMins as
+   * scratch for the signature. The {@link #HASHES} hash functions are derived from one 64-bit
+   * hash per item by double hashing.
+   *
+   * @return false for an empty set, which has no signature
+   */
+  private static boolean bandHashes(int[] inItems, int inCount, int[] inMins, int[] inOut) {
+    if (inCount == 0) {
+      return false;
+    }
+    Arrays.fill(inMins, Integer.MAX_VALUE);
+    for (int i = 0; i < inCount; i++) {
+      long h = IntHash.hash64(inItems[i]);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32);
+      for (int k = 0; k < HASHES; k++) {
+        inMins[k] = Math.min(inMins[k], h1 + k * h2);
+      }
+    }
+    for (int b = 0; b < BANDS; b++) {
+      long band = b;
+      for (int r = 0; r < ROWS; r++) {
+        band = IntHash.hash64((band << 32) ^ (inMins[b * ROWS + r] & 0xFFFFFFFFL));
+      }
+      inOut[b] = (int) (band >>> 33);
+    }
+    return true;
+  }
+
+  /**
+   * @return the index of the first of the inSize keys not less than inKey
+   */
+  private static int lowerBound(long[] inKeys, int inSize, long inKey) {
+    int lo = 0;
+    int hi = inSize;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (inKeys[mid] < inKey) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return a key sorting by band hash, then session id; the band hash has 31 bits, so that the
+   *         session id keeps all 32 and the purchaser flag is the lowest bit
+   */
+  private static long key(int inBandHash, int inSessionId, boolean inPurchaser) {
+    return ((long) inBandHash << 33) | ((inSessionId & 0xFFFFFFFFL) << 1) | (inPurchaser ? 1 : 0);
+  }
+
+  private static int sessionId(long inKey) {
+    return (int) (inKey >>> 1);
+  }
+}
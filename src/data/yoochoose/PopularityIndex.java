@@ -0,0 +1,215 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Item click and purchase counts per day, and category click counts per hour, built during
+ * ingestion and answering range queries in O(1) from prefix sums.
+ *
+ * Each item or category has one row of int counts covering just the buckets it has events in, so
+ * the index stays compact for the long tail. A row's prefix sums are rebuilt lazily on the first
+ * query after it changed - in a batch run that is once per row, and events can still be added
+ * while sessions are being written (e.g. when streaming). Not thread-safe, build one index per
+ * thread and {@link #merge(PopularityIndex)} them. After {@link #prepare()} queries only read, so
+ * threads can share the index until it is next added to.
+ *
+ * The "before" queries only count whole buckets before the one the session started in, so a
+ * feature never sees events from later in its own day or hour.
+ */
+public class PopularityIndex {
+
+  private final Counts itemClicks = new Counts();
+
+  private final Counts itemPurchases = new Counts();
+
+  private final Counts categoryClicks = new Counts();
+
+  /**
+   * Counts a click, category 0 (not present) only towards the item. Events without a timestamp
+   * are ignored.
+   */
+  public void click(int inItemId, int inCategoryId, long inTimestamp) {
+    if (inTimestamp == Timestamps.NONE) {
+      return;
+    }
+    itemClicks.add(inItemId, Timestamps.epochDay(inTimestamp), 1);
+    if (inCategoryId != 0) {
+      categoryClicks.add(inCategoryId, hour(inTimestamp), 1);
+    }
+  }
+
+  /**
+   * Counts a purchase row (not its quantity), events without a timestamp are ignored.
+   */
+  public void purchase(int inItemId, long inTimestamp) {
+    if (inTimestamp != Timestamps.NONE) {
+      itemPurchases.add(inItemId, Timestamps.epochDay(inTimestamp), 1);
+    }
+  }
+
+  public void merge(PopularityIndex inOther) {
+    itemClicks.merge(inOther.itemClicks);
+    itemPurchases.merge(inOther.itemPurchases);
+    categoryClicks.merge(inOther.categoryClicks);
+  }
+
+  /**
+   * Brings the prefix sums of every row up to date, ahead of queries from several threads.
+   */
+  public void prepare() {
+    itemClicks.prepare();
+    itemPurchases.prepare();
+    categoryClicks.prepare();
+  }
+
+  /**
+   * @return clicks on an item in epoch days [inFromDay, inToDay)
+   */
+  public int itemClicks(int inItemId, long inFromDay, long inToDay) {
+    return itemClicks.sum(inItemId, inFromDay, inToDay);
+  }
+
+  /**
+   * @return purchases of an item in epoch days [inFromDay, inToDay)
+   */
+  public int itemPurchases(int inItemId, long inFromDay, long inToDay) {
+    return itemPurchases.sum(inItemId, inFromDay, inToDay);
+  }
+
+  /**
+   * @return clicks on a category in hours since the epoch [inFromHour, inToHour)
+   */
+  public int categoryClicks(int inCategoryId, long inFromHour, long inToHour) {
+    return categoryClicks.sum(inCategoryId, inFromHour, inToHour);
+  }
+
+  /**
+   * @return clicks on an item in the inDays whole days before the day of inTimestamp
+   */
+  public int itemClicksBefore(int inItemId, long inTimestamp, int inDays) {
+    if (inTimestamp == Timestamps.NONE) {
+      return 0;
+    }
+    long day = Timestamps.epochDay(inTimestamp);
+    return itemClicks(inItemId, day - inDays, day);
+  }
+
+  /**
+   * @return purchases of an item in the inDays whole days before the day of inTimestamp
+   */
+  public int itemPurchasesBefore(int inItemId, long inTimestamp, int inDays) {
+    if (inTimestamp == Timestamps.NONE) {
+      return 0;
+    }
+    long day = Timestamps.epochDay(inTimestamp);
+    return itemPurchases(inItemId, day - inDays, day);
+  }
+
+  /**
+   * @return clicks on a category in the inHours whole hours before the hour of inTimestamp
+   */
+  public int categoryClicksBefore(int inCategoryId, long inTimestamp, int inHours) {
+    if (inTimestamp == Timestamps.NONE) {
+      return 0;
+    }
+    long hour = hour(inTimestamp);
+    return categoryClicks(inCategoryId, hour - inHours, hour);
+  }
+
+  private static long hour(long inTimestamp) {
+    return Math.floorDiv(inTimestamp, Timestamps.MILLIS_PER_HOUR);
+  }
+
+  /**
+   * Bucketed counts for one kind of event, a row per id.
+   */
+  private static class Counts {
+    private final IdDictionary ids = new IdDictionary();
+
+    /**
+     * Bucket of the first slot of each row.
+     */
+    private long[] origins = new long[16];
+
+    private int[][] rows = new int[16][];
+
+    /**
+     * prefix[r][i] is the sum of rows[r][0, i), null while stale.
+     */
+    private int[][] prefix = new int[16][];
+
+    private void add(int inId, long inBucket, int inCount) {
+      int r = ids.encode(inId);
+      if (r >= rows.length) {
+        int capacity = Math.max(r + 1, rows.length + (rows.length >> 1));
+        origins = Arrays.copyOf(origins, capacity);
+        rows = Arrays.copyOf(rows, capacity);
+        prefix = Arrays.copyOf(prefix, capacity);
+      }
+      int[] row = rows[r];
+      if (row == null) {
+        row = new int[4];
+        origins[r] = inBucket;
+      } else if (inBucket < origins[r]) {
+        // Earlier than anything so far - move the row along, with some slack for more of the same
+        int shift = (int) (origins[r] - inBucket) + (row.length >> 2);
+        int[] moved = new int[row.length + shift];
+        System.arraycopy(row, 0, moved, shift, row.length);
+        row = moved;
+        origins[r] -= shift;
+      } else if (inBucket - origins[r] >= row.length) {
+        row = Arrays.copyOf(row,
+            (int) Math.max(inBucket - origins[r] + 1, row.length + (row.length >> 1)));
+      }
+      row[(int) (inBucket - origins[r])] += inCount;
+      rows[r] = row;
+      prefix[r] = null;
+    }
+
+    private void merge(Counts inOther) {
+      for (int o = 0; o < inOther.ids.size(); o++) {
+        int[] row = inOther.rows[o];
+        for (int i = 0; i < row.length; i++) {
+          if (row[i] != 0) {
+            add(inOther.ids.decode(o), inOther.origins[o] + i, row[i]);
+          }
+        }
+      }
+    }
+
+    private void prepare() {
+      for (int r = 0; r < ids.size(); r++) {
+        prefix(r);
+      }
+    }
+
+    private int sum(int inId, long inFrom, long inTo) {
+      int r = ids.lookup(inId);
+      if (r < 0 || inTo <= inFrom) {
+        return 0;
+      }
+      int[] p = prefix(r);
+      return upTo(p, inTo - origins[r]) - upTo(p, inFrom - origins[r]);
+    }
+
+    private int[] prefix(int inRow) {
+      int[] p = prefix[inRow];
+      if (p == null) {
+        int[] row = rows[inRow];
+        p = new int[row.length + 1];
+        for (int i = 0; i < row.length; i++) {
+          p[i + 1] = p[i] + row[i];
+        }
+        prefix[inRow] = p;
+      }
+      return p;
+    }
+
+    /**
+     * @return the sum of the row's buckets before slot inSlot
+     */
+    private static int upTo(int[] inPrefix, long inSlot) {
+      return inSlot <= 0 ? 0 : inPrefix[(int) Math.min(inSlot, inPrefix.length - 1)];
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package data.yoochoose;
+
+import java.util.Arrays;
+
+/**
+ * Streaming, mergeable quantile sketch (KLL - Karnin, Lang and Liberty, "Optimal Quantile
+ * Approximation in Streams"). Keeps O(k) values however many are added, with a rank error of
+ * roughly 1.7 / k, so prices, dwell times etc. can be bucketed by their distribution without
+ * sorting all of them.
+ *
+ * Values go into a stack of compactors. Level h holds values that each stand for 2^h inputs; when
+ * a level is full it is sorted and every other value (from a random offset) is promoted to the next
+ * level. Sketches filled on different threads can be merged. The exact count, minimum and maximum
+ * are tracked as well. Not thread-safe.
+ */
+public class QuantileSketch {
+
+  public static final int DEFAULT_K = 200;
+
+  private static final double C = 2.0 / 3.0;
+
+  private final int k;
+
+  private double[][] levels = new double[1][];
+
+  private int[] sizes = new int[1];
+
+  private int retained;
+
+  private int maxRetained;
+
+  private long count;
+
+  private double min = Double.NaN;
+
+  private double max = Double.NaN;
+
+  private long random;
+
+  /**
+   * Sorted values and cumulative weights, built on the first query after an update.
+   */
+  private double[] sortedValues;
+
+  private long[] cumulativeWeights;
+
+  public QuantileSketch() {
+    this(DEFAULT_K);
+  }
+
+  public QuantileSketch(int inK) {
+    k = Math.max(inK, 8);
+    random = 0x9E3779B97F4A7C15L ^ k;
+    levels[0] = new double[capacity(0)];
+    maxRetained = capacity(0);
+  }
+
+  public void add(double inValue) {
+    if (Double.isNaN(inValue)) {
+      return;
+    }
+    if (count == 0) {
+      min = inValue;
+      max = inValue;
+    } else {
+      min = Math.min(min, inValue);
+      max = Math.max(max, inValue);
+    }
+    count++;
+    append(0, inValue);
+    retained++;
+    if (retained >= maxRetained) {
+      compress();
+    }
+    sortedValues = null;
+  }
+
+  /**
+   * Folds another sketch into this one, the other is left unchanged.
+   */
+  public void merge(QuantileSketch inOther) {
+    if (inOther.count == 0) {
+      return;
+    }
+    while (levels.length < inOther.levels.length) {
+      addLevel();
+    }
+    for (int h = 0; h < inOther.levels.length; h++) {
+      for (int i = 0; i < inOther.sizes[h]; i++) {
+        append(h, inOther.levels[h][i]);
+      }
+      retained += inOther.sizes[h];
+    }
+    min = count == 0 ? inOther.min : Math.min(min, inOther.min);
+    max = count == 0 ? inOther.max : Math.max(max, inOther.max);
+    count += inOther.count;
+    while (retained >= maxRetained) {
+      compress();
+    }
+    sortedValues = null;
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * @return the smallest value added, NaN if empty
+   */
+  public double min() {
+    return min;
+  }
+
+  /**
+   * @return the largest value added, NaN if empty
+   */
+  public double max() {
+    return max;
+  }
+
+  /**
+   * @param inFraction between 0 and 1, e.g. 0.5 for the median
+   * @return the approximate value at that rank, NaN if empty
+   */
+  public double quantile(double inFraction) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (inFraction <= 0.0) {
+      return min;
+    }
+    if (inFraction >= 1.0) {
+      return max;
+    }
+    prepare();
+    long total = cumulativeWeights[cumulativeWeights.length - 1];
+    long rank = (long) Math.ceil(inFraction * total);
+    int i = Arrays.binarySearch(cumulativeWeights, rank);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return sortedValues[Math.min(i, sortedValues.length - 1)];
+  }
+
+  /**
+   * Equi-depth bucket boundaries: inBuckets - 1 cut points splitting the values into buckets of
+   * (approximately) equal counts. Duplicate cut points are possible for heavily repeated values.
+   *
+   * @see #bucket(double[], double)
+   */
+  public double[] boundaries(int inBuckets) {
+    double[] rVal = new double[Math.max(inBuckets - 1, 0)];
+    for (int b = 0; b < rVal.length; b++) {
+      rVal[b] = quantile((double) (b + 1) / inBuckets);
+    }
+    return rVal;
+  }
+
+  /**
+   * @return the bucket a value falls into given boundaries from {@link #boundaries(int)}, 0 to
+   *         boundaries.length - values equal to a cut point go into the lower bucket
+   */
+  public static int bucket(double[] inBoundaries, double inValue) {
+    int lo = 0;
+    int hi = inBoundaries.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (inBoundaries[mid] < inValue) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return the values retained, for testing the space bound
+   */
+  int retained() {
+    return retained;
+  }
+
+  private int capacity(int inLevel) {
+    int depth = levels.length - inLevel - 1;
+    return (int) Math.ceil(k * Math.pow(C, depth)) + 1;
+  }
+
+  private void append(int inLevel, double inValue) {
+    double[] level = levels[inLevel];
+    if (sizes[inLevel] == level.length) {
+      levels[inLevel] = level = Arrays.copyOf(level, Math.max(level.length * 2, 4));
+    }
+    level[sizes[inLevel]++] = inValue;
+  }
+
+  private void addLevel() {
+    int h = levels.length;
+    levels = Arrays.copyOf(levels, h + 1);
+    sizes = Arrays.copyOf(sizes, h + 1);
+    levels[h] = new double[4];
+    maxRetained = 0;
+    for (int l = 0; l <= h; l++) {
+      maxRetained += capacity(l);
+    }
+  }
+
+  /**
+   * Compacts the lowest level that is at capacity.
+   */
+  private void compress() {
+    for (int h = 0; h < levels.length; h++) {
+      if (sizes[h] >= capacity(h)) {
+        if (h + 1 == levels.length) {
+          addLevel();
+        }
+        compact(h);
+        return;
+      }
+    }
+  }
+
+  private void compact(int inLevel) {
+    double[] level = levels[inLevel];
+    int n = sizes[inLevel];
+    // An odd value out stays behind
+    int kept = n % 2;
+    int m = n - kept;
+    Arrays.sort(level, 0, m);
+    random ^= random << 13;
+    random ^= random >>> 7;
+    random ^= random << 17;
+    for (int i = (int) (random & 1); i < m; i += 2) {
+      append(inLevel + 1, level[i]);
+    }
+    if (kept == 1) {
+      level[0] = level[n - 1];
+    }
+    sizes[inLevel] = kept;
+    retained -= m / 2;
+  }
+
+  private void prepare() {
+    if (sortedValues != null) {
+      return;
+    }
+    int n = 0;
+    for (int h = 0; h < levels.length; h++) {
+      n += sizes[h];
+    }
+    // Pack value and level into one sortable pair of arrays
+    double[] values = new double[n];
+    int[] weightsLog = new int[n];
+    Integer[] order = new Integer[n];
+    int i = 0;
+    for (int h = 0; h < levels.length; h++) {
+      for (int j = 0; j < sizes[h]; j++) {
+        values[i] = levels[h][j];
+        weightsLog[i] = h;
+        order[i] = i;
+        i++;
+      }
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+    sortedValues = new double[n];
+    cumulativeWeights = new long[n];
+    long total = 0;
+    for (int j = 0; j < n; j++) {
+      sortedValues[j] = values[order[j]];
+      total += 1L << weightsLog[order[j]];
+      cumulativeWeights[j] = total;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package data.yoochoose;
+
+/**
+ * Computes all session-level aggregates (unique items and categories, popular item / category
+ * views and the dominant category) in a single pass over a session's events. The scratch sets and
+ * counters are reused from session to session, so a session costs time linear in its length and no
+ * allocation once the scratch space has grown to the longest session.
+ *
+ * Usage: {@link #reset()}, then {@link #click(int, int)} / {@link #purchase(int)} for each event in
+ * order, then read the results. With a {@link PopularityIndex} set, {@link #reset(long)} also
+ * sums the recent purchases of the session's items, and with {@link CoOccurrence} matrices set the
+ * session's items are linked up through their top neighbours. With a {@link MinHashIndex} set,
+ * {@link #findSimilar(int)} looks up the sessions that clicked similar items.
+ */
+public class SessionKernel {
+
+  private final IntSet items = new IntSet();
+
+  private final IntIntMap categoryCounts = new IntIntMap();
+
+  /**
+   * Category to the index of the click it was first seen on.
+   */
+  private final IntIntMap categoryFirstSeen = new IntIntMap();
+
+  private int clicks;
+
+  private IntSet popularItems = new IntSet();
+
+  private IntSet popularCategories = new IntSet();
+
+  private boolean viewedPopularItem;
+
+  private boolean viewedPopularCategory;
+
+  private int dominantCategory;
+
+  private int dominantCount;
+
+  private PopularityIndex popularity;
+
+  private int recentDays;
+
+  private long sessionStart = Timestamps.NONE;
+
+  private int recentPurchases;
+
+  private CoOccurrence coViews;
+
+  private CoOccurrence coPurchases;
+
+  /**
+   * Whether the sessions themselves were counted into {@link #coViews} and {@link #coPurchases}.
+   */
+  private boolean ownCounted = true;
+
+  /**
+   * The first {@link CoOccurrence#MAX_SESSION_ITEMS} distinct items clicked, as the matrices
+   * counted them.
+   */
+  private final IntSet viewed = new IntSet();
+
+  private final int[] viewedItems = new int[CoOccurrence.MAX_SESSION_ITEMS];
+
+  private int viewedCount;
+
+  /**
+   * The first {@link CoOccurrence#MAX_SESSION_ITEMS} distinct items purchased.
+   */
+  private final IntSet purchased = new IntSet();
+
+  private int purchasedCount;
+
+  private MinHashIndex similarSessions;
+
+  private final MinHashIndex.Query similar = new MinHashIndex.Query();
+
+  public SessionKernel() {}
+
+  /**
+   * A kernel with the same popular sets, indexes and matrices as inSettings, e.g. for another
+   * thread. These are shared, not copied, and must not change while either kernel is in use.
+   */
+  public SessionKernel(SessionKernel inSettings) {
+    popularItems = inSettings.popularItems;
+    popularCategories = inSettings.popularCategories;
+    popularity = inSettings.popularity;
+    recentDays = inSettings.recentDays;
+    coViews = inSettings.coViews;
+    coPurchases = inSettings.coPurchases;
+    ownCounted = inSettings.ownCounted;
+    similarSessions = inSettings.similarSessions;
+  }
+
+  /**
+   * Sets the items and categories that count as popular, e.g. the most purchased ones.
+   */
+  public void setPopular(IntSet inItems, IntSet inCategories) {
+    popularItems = inItems;
+    popularCategories = inCategories;
+  }
+
+  /**
+   * Sets the index {@link #recentPurchases()} are looked up in, and how many days back they go.
+   */
+  public void setPopularity(PopularityIndex inIndex, int inDays) {
+    popularity = inIndex;
+    recentDays = inDays;
+  }
+
+  /**
+   * Sets the co-view and co-purchase matrices for {@link #coViewLinks()} and
+   * {@link #coPurchaseLinks()}.
+   */
+  public void setCoOccurrence(CoOccurrence inViews, CoOccurrence inPurchases) {
+    setCoOccurrence(inViews, inPurchases, true);
+  }
+
+  /**
+   * As {@link #setCoOccurrence(CoOccurrence, CoOccurrence)}, for matrices the sessions were not
+   * counted into (unless inOwnCounted), e.g. those of a training run for test sessions. Links then
+   * leave nothing out.
+   */
+  public void setCoOccurrence(CoOccurrence inViews, CoOccurrence inPurchases,
+      boolean inOwnCounted) {
+    coViews = inViews;
+    coPurchases = inPurchases;
+    ownCounted = inOwnCounted;
+  }
+
+  public void setSimilarSessions(MinHashIndex inIndex) {
+    similarSessions = inIndex;
+  }
+
+  /**
+   * Resets for a session that started at inStart, which recent purchases are counted back from.
+   */
+  public void reset(long inStart) {
+    reset();
+    sessionStart = inStart;
+  }
+
+  public void reset() {
+    sessionStart = Timestamps.NONE;
+    recentPurchases = 0;
+    viewed.clear();
+    viewedCount = 0;
+    purchased.clear();
+    purchasedCount = 0;
+    items.clear();
+    categoryCounts.clear();
+    categoryFirstSeen.clear();
+    clicks = 0;
+    viewedPopularItem = false;
+    viewedPopularCategory = false;
+    dominantCategory = 0;
+    dominantCount = 0;
+  }
+
+  public void click(int inItemId, int inCategoryId) {
+    event(inItemId);
+    if (viewedCount < viewedItems.length && viewed.add(inItemId)) {
+      viewedItems[viewedCount++] = inItemId;
+    }
+    viewedPopularCategory |= popularCategories.contains(inCategoryId);
+    int count = categoryCounts.addTo(inCategoryId, 1);
+    if (count == 1) {
+      categoryFirstSeen.put(inCategoryId, clicks);
+    }
+    clicks++;
+    // Ties go to the category seen first in the session
+    if (count > dominantCount || (count == dominantCount
+        && categoryFirstSeen.get(inCategoryId, 0) < categoryFirstSeen.get(dominantCategory, 0))) {
+      dominantCount = count;
+      dominantCategory = inCategoryId;
+    }
+  }
+
+  public void purchase(int inItemId) {
+    event(inItemId);
+    if (purchasedCount < CoOccurrence.MAX_SESSION_ITEMS && purchased.add(inItemId)) {
+      purchasedCount++;
+    }
+  }
+
+  public int uniqueItems() {
+    return items.size();
+  }
+
+  /**
+   * @return the number of distinct categories clicked
+   */
+  public int uniqueCategories() {
+    return categoryCounts.size();
+  }
+
+  public boolean viewedPopularItem() {
+    return viewedPopularItem;
+  }
+
+  public boolean viewedPopularCategory() {
+    return viewedPopularCategory;
+  }
+
+  /**
+   * @return the category clicked most often (the first seen of those if tied), 0 if there were no
+   *         clicks
+   */
+  public int dominantCategory() {
+    return dominantCategory;
+  }
+
+  /**
+   * @return purchases of the session's distinct items in the whole days before it started, 0
+   *         without a popularity index or start time
+   */
+  public int recentPurchases() {
+    return recentPurchases;
+  }
+
+  /**
+   * @return the number of (item, neighbour) links between clicked items, i.e. how often a clicked
+   *         item is among the top co-viewed neighbours of another
+   */
+  public int coViewLinks() {
+    return links(coViews, viewed);
+  }
+
+  /**
+   * @return the number of (item, neighbour) links between clicked items through the top
+   *         co-purchased neighbours, i.e. how much the session browses items bought together
+   */
+  public int coPurchaseLinks() {
+    return links(coPurchases, purchased);
+  }
+
+  /**
+   * Looks up the sessions similar to this one (by its first
+   * {@link CoOccurrence#MAX_SESSION_ITEMS} distinct clicked items), call after the session's
+   * events. inSessionId is the session's own id, which is left out.
+   */
+  public void findSimilar(int inSessionId) {
+    similar.find(similarSessions, viewedItems, viewedCount, inSessionId);
+  }
+
+  /**
+   * @return the number of similar sessions found by {@link #findSimilar(int)}
+   */
+  public int similarSessions() {
+    return similar.sessions();
+  }
+
+  /**
+   * @return how many of the similar sessions found by {@link #findSimilar(int)} ended in a purchase
+   */
+  public int similarPurchasers() {
+    return similar.purchasers();
+  }
+
+  /**
+   * Counts links between the clicked items, leaving out what this session itself added to the
+   * matrix (one for each pair of its own items) so a link never gives away the session's label.
+   * Without its own count a neighbour may also not have made the top ones of a full row, so it is
+   * taken as absent once lighter than the row's last.
+   */
+  private int links(CoOccurrence inMatrix, IntSet inOwn) {
+    if (inMatrix == null) {
+      return 0;
+    }
+    int rVal = 0;
+    for (int i = 0; i < viewedCount; i++) {
+      int r = inMatrix.row(viewedItems[i]);
+      if (r < 0) {
+        continue;
+      }
+      boolean own = ownCounted && inOwn.contains(viewedItems[i]);
+      int last = inMatrix.isFull(r) ? inMatrix.weight(inMatrix.end(r) - 1) : 1;
+      for (int s = inMatrix.start(r); s < inMatrix.end(r); s++) {
+        int other = inMatrix.neighbour(s);
+        if (viewed.contains(other)
+            && (!own || !inOwn.contains(other) || inMatrix.weight(s) - 1 >= last)) {
+          rVal++;
+        }
+      }
+    }
+    return rVal;
+  }
+
+  private void event(int inItemId) {
+    if (items.add(inItemId) && popularity != null) {
+      recentPurchases += popularity.itemPurchasesBefore(inItemId, sessionStart, recentDays);
+    }
+    viewedPopularItem |= popularItems.contains(inItemId);
+  }
+}
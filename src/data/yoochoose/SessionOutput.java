@@ -0,0 +1,145 @@
+package data.yoochoose;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the encoded sessions of an output run go, per shard: a text file of lines plus a .label
+ * file of session ids (VW, LIBSVM), or one binary {@link CsrWriter} file holding both (CSR). Or,
+ * for rows described by a {@link FeaturePlan#describing(int)} plan, a {@link FeatureMatrix}.
+ * Knows the plan and format sessions are to be encoded with.
+ */
+abstract class SessionOutput implements Closeable {
+
+  private final FeaturePlan plan;
+
+  private final Format format;
+
+  private SessionOutput(FeaturePlan inPlan, Format inF) {
+    plan = inPlan;
+    format = inF;
+  }
+
+  /**
+   * Opens the files of inFNames, one per shard.
+   */
+  static SessionOutput open(String[] inFNames, FeaturePlan inPlan, Format inF, int inBufferSize,
+      int inQueueDepth, boolean inSyncOnClose) throws IOException {
+    if (inF == Format.CSR) {
+      return new Csr(inFNames, inPlan, inBufferSize, inQueueDepth, inSyncOnClose);
+    }
+    return new Text(inFNames, inPlan, inF, inBufferSize, inQueueDepth, inSyncOnClose);
+  }
+
+  /**
+   * Adds the rows to inMatrix, which is one shard.
+   */
+  static SessionOutput into(FeatureMatrix.Builder inMatrix, int inNumEvents) {
+    return new Matrix(inMatrix, inNumEvents);
+  }
+
+  FeaturePlan plan() {
+    return plan;
+  }
+
+  Format format() {
+    return format;
+  }
+
+  /**
+   * Writes complete lines (or CSR rows) and their session ids, one per line, to shard inShard.
+   */
+  abstract void write(int inShard, LineEncoder inLines, LineEncoder inLabels) throws IOException;
+
+  /**
+   * Shard i's file is file 2i of one writer and its .label file 2i + 1.
+   */
+  private static class Text extends SessionOutput {
+    private final AsyncChannelWriter out;
+
+    private Text(String[] inFNames, FeaturePlan inPlan, Format inF, int inBufferSize,
+        int inQueueDepth, boolean inSyncOnClose) throws IOException {
+      super(inPlan, inF);
+      String[] files = new String[inFNames.length * 2];
+      for (int i = 0; i < inFNames.length; i++) {
+        files[i * 2] = inFNames[i];
+        files[i * 2 + 1] = inFNames[i] + ".label";
+      }
+      out = new AsyncChannelWriter(files, inBufferSize, inQueueDepth, inSyncOnClose);
+    }
+
+    @Override
+    void write(int inShard, LineEncoder inLines, LineEncoder inLabels) throws IOException {
+      out.write(inShard * 2, inLines);
+      out.write(inShard * 2 + 1, inLabels);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * The rows hold the session ids, so no .label files. Every shard is as wide as the plan's ids.
+   */
+  private static class Csr extends SessionOutput {
+    private final CsrWriter[] out;
+
+    private Csr(String[] inFNames, FeaturePlan inPlan, int inBufferSize, int inQueueDepth,
+        boolean inSyncOnClose) throws IOException {
+      super(inPlan, Format.CSR);
+      out = new CsrWriter[inFNames.length];
+      try {
+        for (int i = 0; i < inFNames.length; i++) {
+          out[i] = new CsrWriter(inFNames[i], inBufferSize, inQueueDepth, inSyncOnClose);
+        }
+      } catch (IOException ie) {
+        close();
+        throw ie;
+      }
+    }
+
+    @Override
+    void write(int inShard, LineEncoder inLines, LineEncoder inLabels) throws IOException {
+      out[inShard].write(inLines);
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOException failure = null;
+      for (CsrWriter shard : out) {
+        if (shard != null) {
+          shard.setColumns(plan().columns());
+          try {
+            shard.close();
+          } catch (IOException ie) {
+            failure = failure == null ? ie : failure;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  private static class Matrix extends SessionOutput {
+    private final FeatureMatrix.Builder matrix;
+
+    private Matrix(FeatureMatrix.Builder inMatrix, int inNumEvents) {
+      super(FeaturePlan.describing(inNumEvents), Format.CSR);
+      matrix = inMatrix;
+    }
+
+    @Override
+    void write(int inShard, LineEncoder inLines, LineEncoder inLabels) {
+      matrix.add(inLines);
+    }
+
+    @Override
+    public void close() {
+      // Nothing to release
+    }
+  }
+}
@@ -0,0 +1,355 @@
+package data.yoochoose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Out-of-core event buffer: an external sort of events by session, so datasets far larger than the
+ * heap can be turned into sessions.
+ *
+ * Events are collected in a fixed-size buffer sized from a memory budget. Whenever it fills up it
+ * is sorted by (session id, arrival) and spilled to a binary run file.
+ * {@link #forEachSession(EventStore, Consumer)} then k-way merges the runs and hands each complete
+ * session over in a reusable {@link EventStore}, so only one session plus one read buffer per run
+ * is in memory at a time. If there are more runs than can be merged at once they are first merged
+ * down in passes.
+ *
+ * Ties between runs are broken by run order, so each session's events arrive in the order they
+ * were added - sealing the store then orders them by time exactly as for a fully in-memory load.
+ * Sessions come out in ascending session id order rather than first-seen order.
+ */
+public class SessionSpill {
+
+  /**
+   * session, timestamp, item, category, price, quantity, flags.
+   */
+  private static final int RECORD_SIZE = 4 + 8 + 4 + 4 + 4 + 2 + 1;
+
+  /**
+   * Buffered bytes per event - the record columns plus the sort key.
+   */
+  private static final int BYTES_PER_EVENT = RECORD_SIZE + 8;
+
+  private static final int MIN_CAPACITY = 1_024;
+
+  private static final int DEFAULT_FAN_IN = 64;
+
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private static final Logger LOG = LoggerFactory.getLogger(SessionSpill.class);
+
+  private final File dir;
+
+  private final int fanIn;
+
+  private final List<Run> runs = new ArrayList<>();
+
+  private final int[] session;
+
+  private final long[] timestamp;
+
+  private final int[] item;
+
+  private final int[] category;
+
+  private final int[] price;
+
+  private final short[] quantity;
+
+  private final byte[] flags;
+
+  private final long[] keys;
+
+  private int size;
+
+  private long total;
+
+  /**
+   * @param inDir where run files are written, e.g. a local scratch disk
+   * @param inMemoryBudget bytes to use for buffering events before spilling a run
+   */
+  public SessionSpill(File inDir, long inMemoryBudget) {
+    this(inDir, inMemoryBudget, DEFAULT_FAN_IN);
+  }
+
+  SessionSpill(File inDir, long inMemoryBudget, int inFanIn) {
+    dir = inDir;
+    fanIn = Math.max(inFanIn, 2);
+    int capacity = (int) Math.min(Math.max(inMemoryBudget / BYTES_PER_EVENT, MIN_CAPACITY),
+        Integer.MAX_VALUE - 8);
+    session = new int[capacity];
+    timestamp = new long[capacity];
+    item = new int[capacity];
+    category = new int[capacity];
+    price = new int[capacity];
+    quantity = new short[capacity];
+    flags = new byte[capacity];
+    keys = new long[capacity];
+  }
+
+  public void addClick(int inSessionId, long inTimestamp, int inItemId, int inCategoryId,
+      boolean inSpecial) throws IOException {
+    int i = add(inSessionId, inTimestamp, inItemId);
+    category[i] = inCategoryId;
+    price[i] = 0;
+    quantity[i] = 0;
+    flags[i] = inSpecial ? EventStore.SPECIAL : 0;
+  }
+
+  public void addPurchase(int inSessionId, long inTimestamp, int inItemId, int inPrice,
+      int inQuantity) throws IOException {
+    int i = add(inSessionId, inTimestamp, inItemId);
+    category[i] = 0;
+    price[i] = inPrice;
+    quantity[i] = (short) Math.min(inQuantity, Short.MAX_VALUE);
+    flags[i] = EventStore.PURCHASE;
+  }
+
+  /**
+   * @return the number of events added
+   */
+  public long size() {
+    return total;
+  }
+
+  /**
+   * @return the number of run files currently on disk
+   */
+  public int runCount() {
+    return runs.size();
+  }
+
+  /**
+   * Merges all events added so far into sessions. Each session is loaded into inTarget (which is
+   * cleared first, keeping its item and category dictionaries) and sealed before being passed to
+   * the handler. Can be called repeatedly.
+   *
+   * @return the number of sessions
+   * @throws IOException
+   */
+  public int forEachSession(EventStore inTarget, Consumer<EventStore> inHandler)
+      throws IOException {
+    spill();
+    while (runs.size() > fanIn) {
+      mergePass();
+    }
+    int rVal = 0;
+    PriorityQueue<RunReader> heap = open(runs);
+    try {
+      while (!heap.isEmpty()) {
+        int s = heap.peek().session;
+        inTarget.clear();
+        // Equal sessions come off the heap in run order, i.e. arrival order
+        while (!heap.isEmpty() && heap.peek().session == s) {
+          RunReader r = heap.poll();
+          do {
+            r.addTo(inTarget);
+          } while (r.advance() && r.session == s);
+          if (r.remaining >= 0) {
+            heap.add(r);
+          }
+        }
+        inTarget.seal();
+        inHandler.accept(inTarget);
+        rVal++;
+      }
+    } finally {
+      close(heap);
+    }
+    return rVal;
+  }
+
+  private int add(int inSessionId, long inTimestamp, int inItemId) throws IOException {
+    if (size == session.length) {
+      spill();
+    }
+    int i = size++;
+    session[i] = inSessionId;
+    timestamp[i] = inTimestamp;
+    item[i] = inItemId;
+    total++;
+    return i;
+  }
+
+  /**
+   * Sorts the buffer by (session, arrival) and writes it out as a new run.
+   */
+  private void spill() throws IOException {
+    if (size == 0) {
+      return;
+    }
+    for (int i = 0; i < size; i++) {
+      keys[i] = ((long) session[i] << 32) | i;
+    }
+    Arrays.sort(keys, 0, size);
+    Run run = new Run(File.createTempFile("events-", ".run", dir), runs.size());
+    try (DataOutputStream out = output(run.file)) {
+      for (int k = 0; k < size; k++) {
+        int i = (int) keys[k];
+        write(out, session[i], timestamp[i], item[i], category[i], price[i], quantity[i],
+            flags[i]);
+      }
+    }
+    run.count = size;
+    runs.add(run);
+    LOG.debug("Spilled {} events to {}", size, run.file);
+    size = 0;
+  }
+
+  /**
+   * Merges each group of fanIn consecutive runs into one. Merging neighbours keeps the run order,
+   * and with it arrival order for ties.
+   */
+  private void mergePass() throws IOException {
+    List<Run> merged = new ArrayList<>();
+    for (int from = 0; from < runs.size(); from += fanIn) {
+      List<Run> group = runs.subList(from, Math.min(from + fanIn, runs.size()));
+      Run run = new Run(File.createTempFile("events-", ".run", dir), merged.size());
+      PriorityQueue<RunReader> heap = open(group);
+      try (DataOutputStream out = output(run.file)) {
+        while (!heap.isEmpty()) {
+          RunReader r = heap.poll();
+          int s = r.session;
+          do {
+            write(out, r.session, r.timestamp, r.item, r.category, r.price, r.quantity, r.flags);
+            run.count++;
+          } while (r.advance() && r.session == s);
+          if (r.remaining >= 0) {
+            heap.add(r);
+          }
+        }
+      } finally {
+        close(heap);
+      }
+      for (Run g : group) {
+        if (!g.file.delete()) {
+          LOG.warn("Could not delete {}", g.file);
+        }
+      }
+      merged.add(run);
+    }
+    LOG.info("Merged {} runs into {}", runs.size(), merged.size());
+    runs.clear();
+    runs.addAll(merged);
+  }
+
+  private PriorityQueue<RunReader> open(List<Run> inRuns) throws IOException {
+    PriorityQueue<RunReader> rVal = new PriorityQueue<>(Math.max(inRuns.size(), 1),
+        (a, b) -> a.session != b.session ? Integer.compare(a.session, b.session)
+            : Integer.compare(a.run.ordinal, b.run.ordinal));
+    try {
+      for (Run run : inRuns) {
+        RunReader r = new RunReader(run);
+        if (r.advance()) {
+          rVal.add(r);
+        } else {
+          r.in.close();
+        }
+      }
+    } catch (IOException ie) {
+      close(rVal);
+      throw ie;
+    }
+    return rVal;
+  }
+
+  private void close(PriorityQueue<RunReader> inHeap) throws IOException {
+    for (RunReader r : inHeap) {
+      r.in.close();
+    }
+  }
+
+  private static DataOutputStream output(File inFile) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(inFile),
+        IO_BUFFER_SIZE));
+  }
+
+  private static void write(DataOutputStream out, int inSession, long inTimestamp, int inItem,
+      int inCategory, int inPrice, short inQuantity, byte inFlags) throws IOException {
+    out.writeInt(inSession);
+    out.writeLong(inTimestamp);
+    out.writeInt(inItem);
+    out.writeInt(inCategory);
+    out.writeInt(inPrice);
+    out.writeShort(inQuantity);
+    out.writeByte(inFlags);
+  }
+
+  /**
+   * A sorted run file, ordinal is its position in arrival order.
+   */
+  private static class Run {
+    private final File file;
+    private final int ordinal;
+    private long count;
+
+    private Run(File inFile, int inOrdinal) {
+      file = inFile;
+      ordinal = inOrdinal;
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Sequential reader over a run, holding the current record.
+   */
+  private static class RunReader {
+    private final Run run;
+    private final DataInputStream in;
+    private long remaining;
+    private int session;
+    private long timestamp;
+    private int item;
+    private int category;
+    private int price;
+    private short quantity;
+    private byte flags;
+
+    private RunReader(Run inRun) throws IOException {
+      run = inRun;
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(inRun.file),
+          IO_BUFFER_SIZE));
+      remaining = inRun.count;
+    }
+
+    /**
+     * @return false (and closes the file) once the run is exhausted, remaining is then -1
+     */
+    private boolean advance() throws IOException {
+      if (remaining-- == 0) {
+        in.close();
+        return false;
+      }
+      session = in.readInt();
+      timestamp = in.readLong();
+      item = in.readInt();
+      category = in.readInt();
+      price = in.readInt();
+      quantity = in.readShort();
+      flags = in.readByte();
+      return true;
+    }
+
+    private void addTo(EventStore inTarget) {
+      if ((flags & EventStore.PURCHASE) != 0) {
+        inTarget.addPurchase(session, timestamp, item, price, quantity);
+      } else {
+        inTarget.addClick(session, timestamp, item, category, (flags & EventStore.SPECIAL) != 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package data.yoochoose;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Decodes the fixed-layout YOOCHOOSE timestamps (yyyy-MM-dd'T'HH:mm:ss.SSS'Z') into epoch millis
+ * and derives calendar fields from them arithmetically. Replaces DateTimeFormatter parsing and a
+ * LocalDateTime per event.
+ *
+ * Timestamps are treated as UTC, which matches the previous LocalDateTime handling where the
+ * trailing 'Z' was simply ignored.
+ */
+public final class Timestamps {
+
+  /**
+   * Marker for an absent or unparseable timestamp (e.g. rows from solution.dat).
+   */
+  public static final long NONE = Long.MIN_VALUE;
+
+  public static final long MILLIS_PER_SECOND = 1_000L;
+
+  public static final long MILLIS_PER_HOUR = 3_600_000L;
+
+  public static final long MILLIS_PER_DAY = 86_400_000L;
+
+  private static final int LENGTH = 24;
+
+  private Timestamps() {}
+
+  /**
+   * Decodes a timestamp directly from bytes, e.g. a field of a mapped *.dat file.
+   *
+   * @throws DateTimeParseException if the bytes are not in the expected layout
+   */
+  public static long parse(ByteBuffer inBuf, int inOffset, int inLength) {
+    if (inLength == LENGTH) {
+      int year = number(inBuf, inOffset, 4);
+      int month = number(inBuf, inOffset + 5, 2);
+      int day = number(inBuf, inOffset + 8, 2);
+      int hour = number(inBuf, inOffset + 11, 2);
+      int minute = number(inBuf, inOffset + 14, 2);
+      int second = number(inBuf, inOffset + 17, 2);
+      int millis = number(inBuf, inOffset + 20, 3);
+      if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0 && second >= 0
+          && millis >= 0 && inBuf.get(inOffset + 4) == '-' && inBuf.get(inOffset + 7) == '-'
+          && inBuf.get(inOffset + 10) == 'T' && inBuf.get(inOffset + 13) == ':'
+          && inBuf.get(inOffset + 16) == ':' && inBuf.get(inOffset + 19) == '.'
+          && inBuf.get(inOffset + 23) == 'Z') {
+        return toEpochMillis(year, month, day, hour, minute, second, millis);
+      }
+    }
+    byte[] raw = new byte[inLength];
+    for (int i = 0; i < inLength; i++) {
+      raw[i] = inBuf.get(inOffset + i);
+    }
+    String text = new String(raw, StandardCharsets.US_ASCII);
+    throw new DateTimeParseException("Unexpected timestamp layout", text, 0);
+  }
+
+  /**
+   * @throws DateTimeParseException if the text is not in the expected layout
+   */
+  public static long parse(CharSequence inText) {
+    if (inText.length() == LENGTH) {
+      int year = number(inText, 0, 4);
+      int month = number(inText, 5, 2);
+      int day = number(inText, 8, 2);
+      int hour = number(inText, 11, 2);
+      int minute = number(inText, 14, 2);
+      int second = number(inText, 17, 2);
+      int millis = number(inText, 20, 3);
+      if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0 && second >= 0
+          && millis >= 0 && inText.charAt(4) == '-' && inText.charAt(7) == '-'
+          && inText.charAt(10) == 'T' && inText.charAt(13) == ':' && inText.charAt(16) == ':'
+          && inText.charAt(19) == '.' && inText.charAt(23) == 'Z') {
+        return toEpochMillis(year, month, day, hour, minute, second, millis);
+      }
+    }
+    throw new DateTimeParseException("Unexpected timestamp layout", inText, 0);
+  }
+
+  public static long toEpochMillis(int inYear, int inMonth, int inDay, int inHour, int inMinute,
+      int inSecond, int inMillis) {
+    if (inMonth < 1 || inMonth > 12 || inDay < 1 || inDay > 31 || inHour > 23 || inMinute > 59
+        || inSecond > 59) {
+      throw new DateTimeParseException("Field out of range", inYear + "-" + inMonth + "-" + inDay
+          + "T" + inHour + ":" + inMinute + ":" + inSecond, 0);
+    }
+    return epochDay(inYear, inMonth, inDay) * MILLIS_PER_DAY + inHour * MILLIS_PER_HOUR
+        + inMinute * 60_000L + inSecond * MILLIS_PER_SECOND + inMillis;
+  }
+
+  /**
+   * Whole seconds from the first to the second timestamp, truncated towards zero (the same result
+   * as LocalDateTime.until(.., ChronoUnit.SECONDS)).
+   */
+  public static long secondsBetween(long inFrom, long inTo) {
+    return (inTo - inFrom) / MILLIS_PER_SECOND;
+  }
+
+  public static long epochDay(long inMillis) {
+    return Math.floorDiv(inMillis, MILLIS_PER_DAY);
+  }
+
+  public static int year(long inMillis) {
+    long z = epochDay(inMillis) + 719_468L;
+    long era = Math.floorDiv(z, 146_097L);
+    long doe = z - era * 146_097L;
+    long yoe = (doe - doe / 1_460 + doe / 36_524 - doe / 146_096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    return (int) (yoe + era * 400 + (mp >= 10 ? 1 : 0));
+  }
+
+  /**
+   * @return the month of year, 1 to 12
+   */
+  public static int month(long inMillis) {
+    long mp = (5 * dayOfYearFromMarch(inMillis) + 2) / 153;
+    return (int) (mp < 10 ? mp + 3 : mp - 9);
+  }
+
+  /**
+   * @return the day of month, 1 to 31
+   */
+  public static int dayOfMonth(long inMillis) {
+    long doy = dayOfYearFromMarch(inMillis);
+    long mp = (5 * doy + 2) / 153;
+    return (int) (doy - (153 * mp + 2) / 5 + 1);
+  }
+
+  /**
+   * @return the ISO day of week, 1 (Monday) to 7 (Sunday)
+   */
+  public static int dayOfWeek(long inMillis) {
+    // 1970-01-01 was a Thursday
+    return (int) Math.floorMod(epochDay(inMillis) + 3, 7L) + 1;
+  }
+
+  public static int hour(long inMillis) {
+    return (int) (Math.floorMod(inMillis, MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+  }
+
+  public static int minute(long inMillis) {
+    return (int) (Math.floorMod(inMillis, MILLIS_PER_HOUR) / 60_000L);
+  }
+
+  public static int second(long inMillis) {
+    return (int) (Math.floorMod(inMillis, 60_000L) / MILLIS_PER_SECOND);
+  }
+
+  /**
+   * Days since 1970-01-01 for a proleptic Gregorian date, see Howard Hinnant's
+   * chrono-compatible low-level date algorithms (days_from_civil / civil_from_days).
+   */
+  private static long epochDay(int inYear, int inMonth, int inDay) {
+    long y = inMonth <= 2 ? inYear - 1 : inYear;
+    long era = Math.floorDiv(y, 400L);
+    long yoe = y - era * 400;
+    long doy = (153 * (inMonth > 2 ? inMonth - 3 : inMonth + 9) + 2) / 5 + inDay - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146_097L + doe - 719_468L;
+  }
+
+  private static long dayOfYearFromMarch(long inMillis) {
+    long z = epochDay(inMillis) + 719_468L;
+    long doe = z - Math.floorDiv(z, 146_097L) * 146_097L;
+    long yoe = (doe - doe / 1_460 + doe / 36_524 - doe / 146_096) / 365;
+    return doe - (365 * yoe + yoe / 4 - yoe / 100);
+  }
+
+  private static int number(ByteBuffer inBuf, int inOffset, int inDigits) {
+    int rVal = 0;
+    for (int i = 0; i < inDigits; i++) {
+      int d = inBuf.get(inOffset + i) - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      rVal = rVal * 10 + d;
+    }
+    return rVal;
+  }
+
+  private static int number(CharSequence inText, int inOffset, int inDigits) {
+    int rVal = 0;
+    for (int i = 0; i < inDigits; i++) {
+      int d = inText.charAt(inOffset + i) - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      rVal = rVal * 10 + d;
+    }
+    return rVal;
+  }
+}
@@ -0,0 +1,260 @@
+package data.yoochoose;
+
+/**
+ * Streaming top-k (heavy hitter) counter over int ids, e.g. the most purchased items.
+ *
+ * The exact mode counts every id in an {@link IntIntMap}. The approximate mode uses the
+ * Space-Saving algorithm (Metwally et al., "Efficient Computation of Frequent and Top-k Elements
+ * in Data Streams") with a fixed number of counters, so memory stays bounded for very large
+ * catalogues: every id occurring more than total / capacity times is guaranteed to be tracked, and
+ * counts are overestimated by at most the count of the counter that was evicted to make room.
+ *
+ * Either way the top k are picked with a bounded heap - ties on count go to the smaller id, so no
+ * id is dropped just because it shares a count with another - and published as an {@link IntSet}
+ * for O(1) membership checks.
+ */
+public class TopK {
+
+  private final int k;
+
+  /**
+   * Exact counts, null in approximate mode.
+   */
+  private final IntIntMap counts;
+
+  /**
+   * Space-Saving counters as a min-heap on count, unused in exact mode.
+   */
+  private final int[] ids;
+
+  private final int[] values;
+
+  /**
+   * Id to heap position of its counter.
+   */
+  private final IntIntMap positions;
+
+  private int size;
+
+  private long total;
+
+  private TopK(int inK, int inCapacity) {
+    k = inK;
+    if (inCapacity <= 0) {
+      counts = new IntIntMap();
+      ids = null;
+      values = null;
+      positions = null;
+    } else {
+      counts = null;
+      ids = new int[Math.max(inCapacity, inK)];
+      values = new int[ids.length];
+      positions = new IntIntMap(ids.length);
+    }
+  }
+
+  public static TopK exact(int inK) {
+    return new TopK(inK, 0);
+  }
+
+  /**
+   * @param inK
+   * @param inCapacity the number of counters, at least inK - a few times inK gives good accuracy
+   */
+  public static TopK approximate(int inK, int inCapacity) {
+    return new TopK(inK, Math.max(inCapacity, 1));
+  }
+
+  public void add(int inId) {
+    add(inId, 1);
+  }
+
+  public void add(int inId, int inWeight) {
+    total += inWeight;
+    if (counts != null) {
+      counts.addTo(inId, inWeight);
+      return;
+    }
+    int p = positions.get(inId, -1);
+    if (p >= 0) {
+      values[p] += inWeight;
+      siftDown(p);
+    } else if (size < ids.length) {
+      p = size++;
+      ids[p] = inId;
+      values[p] = inWeight;
+      siftUp(p);
+    } else {
+      // Evict the smallest counter, the newcomer inherits its count as the error bound
+      positions.remove(ids[0]);
+      ids[0] = inId;
+      values[0] += inWeight;
+      siftDown(0);
+    }
+  }
+
+  /**
+   * @return the (estimated) count of an id, 0 if not tracked
+   */
+  public int count(int inId) {
+    if (counts != null) {
+      return counts.get(inId, 0);
+    }
+    int p = positions.get(inId, -1);
+    return p < 0 ? 0 : values[p];
+  }
+
+  /**
+   * @return the number of distinct ids counted - in approximate mode only those still tracked
+   */
+  public int distinct() {
+    return counts != null ? counts.size() : size;
+  }
+
+  /**
+   * @return the sum of all weights added
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * @return the top k ids, highest count first
+   */
+  public int[] top() {
+    Selection s = new Selection(k);
+    if (counts != null) {
+      counts.forEach(s::offer);
+    } else {
+      for (int i = 0; i < size; i++) {
+        s.offer(ids[i], values[i]);
+      }
+    }
+    return s.drain();
+  }
+
+  /**
+   * @return the top k ids as a set
+   */
+  public IntSet members() {
+    int[] top = top();
+    IntSet rVal = new IntSet(top.length);
+    for (int id : top) {
+      rVal.add(id);
+    }
+    return rVal;
+  }
+
+  private void siftUp(int inPos) {
+    int p = inPos;
+    int id = ids[p];
+    int v = values[p];
+    while (p > 0 && values[(p - 1) / 2] > v) {
+      ids[p] = ids[(p - 1) / 2];
+      values[p] = values[(p - 1) / 2];
+      positions.put(ids[p], p);
+      p = (p - 1) / 2;
+    }
+    ids[p] = id;
+    values[p] = v;
+    positions.put(id, p);
+  }
+
+  private void siftDown(int inPos) {
+    int p = inPos;
+    int id = ids[p];
+    int v = values[p];
+    while (true) {
+      int c = 2 * p + 1;
+      if (c >= size) {
+        break;
+      }
+      if (c + 1 < size && values[c + 1] < values[c]) {
+        c++;
+      }
+      if (values[c] >= v) {
+        break;
+      }
+      ids[p] = ids[c];
+      values[p] = values[c];
+      positions.put(ids[p], p);
+      p = c;
+    }
+    ids[p] = id;
+    values[p] = v;
+    positions.put(id, p);
+  }
+
+  /**
+   * Bounded min-heap of the best (id, count) pairs seen, the root being the worst of them.
+   */
+  private static class Selection {
+    private final int[] ids;
+    private final int[] values;
+    private int size;
+
+    private Selection(int inK) {
+      ids = new int[Math.max(inK, 0)];
+      values = new int[ids.length];
+    }
+
+    private void offer(int inId, int inValue) {
+      if (size < ids.length) {
+        int p = size++;
+        // Sift up
+        while (p > 0 && worse(inId, inValue, ids[(p - 1) / 2], values[(p - 1) / 2])) {
+          ids[p] = ids[(p - 1) / 2];
+          values[p] = values[(p - 1) / 2];
+          p = (p - 1) / 2;
+        }
+        ids[p] = inId;
+        values[p] = inValue;
+      } else if (size > 0 && worse(ids[0], values[0], inId, inValue)) {
+        replaceRoot(inId, inValue);
+      }
+    }
+
+    /**
+     * @return the ids, best first
+     */
+    private int[] drain() {
+      int[] rVal = new int[size];
+      for (int i = size - 1; i >= 0; i--) {
+        rVal[i] = ids[0];
+        size--;
+        if (size > 0) {
+          replaceRoot(ids[size], values[size]);
+        }
+      }
+      return rVal;
+    }
+
+    private void replaceRoot(int inId, int inValue) {
+      int p = 0;
+      while (true) {
+        int c = 2 * p + 1;
+        if (c >= size) {
+          break;
+        }
+        if (c + 1 < size && worse(ids[c + 1], values[c + 1], ids[c], values[c])) {
+          c++;
+        }
+        if (!worse(ids[c], values[c], inId, inValue)) {
+          break;
+        }
+        ids[p] = ids[c];
+        values[p] = values[c];
+        p = c;
+      }
+      ids[p] = inId;
+      values[p] = inValue;
+    }
+
+    /**
+     * Lower count is worse, then the larger id.
+     */
+    private static boolean worse(int inId1, int inValue1, int inId2, int inValue2) {
+      return inValue1 < inValue2 || (inValue1 == inValue2 && inId1 > inId2);
+    }
+  }
+}
@@ -1,30 +1,28 @@
 package data.yoochoose;
 
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import au.com.bytecode.opencsv.CSVReader;
+import data.yoochoose.FeaturePlan.EventFeature;
+import data.yoochoose.FeaturePlan.KeyedFeature;
+import data.yoochoose.FeaturePlan.SessionFeature;
 
 /**
  * See http://2015.recsyschallenge.com/
@@ -58,27 +56,78 @@ public class YoochooseParser {
 
   private static final String FEAT_SEP = " ";
 
-  private static final String FEAT_VAL_SEP = ":";
+  private static final int BASKET_QUEUE_SIZE = 4_096;
 
-  private Set<Integer> uniques;
+  private static final int POPULAR_ITEMS = 400;
 
-  private Map<Integer, Integer> similar;
+  private static final int POPULAR_CATEGORIES = 100;
 
-  private Map<String, Integer> labelMappings;
+  /**
+   * How many days before a session its items' recent purchases are counted over.
+   */
+  private static final int RECENT_DAYS = 7;
+
+  /**
+   * Top co-viewed / co-purchased neighbours kept per item.
+   */
+  private static final int NEIGHBOURS = 20;
+
+  /**
+   * Exists only to be re-used to reduce GCing.
+   */
+  private final SessionKernel kernel;
+
+  /**
+   * The output labels / LIBSVM ids of every feature, see {@link FeaturePlan}.
+   */
+  private FeaturePlan plan;
+
+  /**
+   * Exists only to be re-used to reduce GCing, holds the line being written.
+   */
+  private final LineEncoder line = new LineEncoder();
 
-  private int labelCounter;
+  private final LineEncoder labelLine = new LineEncoder(64);
 
-  private Map<Integer, Integer> itemsPurchased;
+  /**
+   * Output buffering, see {@link #setOutputBuffers(int, int, boolean)}.
+   */
+  private int outputBufferSize = AsyncChannelWriter.DEFAULT_BUFFER_SIZE;
+
+  private int outputQueueDepth = AsyncChannelWriter.DEFAULT_QUEUE_DEPTH;
+
+  private boolean syncOnClose;
 
-  private Map<Integer, Integer> categoriesBrowsed;
+  private TopK itemsPurchased;
+
+  private TopK categoriesBrowsed;
+
+  /**
+   * Dense ids for the items seen in purchases, indexing {@link #items}.
+   */
+  private IdDictionary itemIds;
 
-  private Map<Integer, Integer> mostPopularItems;
+  private ItemTable items;
 
-  private Map<Integer, Item> items;
+  /**
+   * Approximate distinct counts, fed as events are read.
+   */
+  private Cardinalities cardinalities;
 
-  private Map<Integer, Integer> mostPopularCategories;
+  /**
+   * Item and category counts by day / hour, fed as events are read.
+   */
+  private PopularityIndex popularity;
 
-  private Set<Integer> multiPurchases;
+  /**
+   * Items clicked in the same sessions, as of the last {@link #analyse()}.
+   */
+  private CoOccurrence coViews;
+
+  /**
+   * Items purchased in the same sessions, as of the last {@link #analyse()}.
+   */
+  private CoOccurrence coPurchases;
 
   private Map<Integer, List<Event>> clickers;
   private Map<Integer, List<Event>> buyers;
@@ -90,23 +139,61 @@ public class YoochooseParser {
   private final boolean balanced;
 
   public YoochooseParser(int inClickers, int inBuyers, Format inF, Mode inM, boolean inBalanced) {
-    uniques = new HashSet<>();
-    itemsPurchased = new HashMap<>();
-    categoriesBrowsed = new HashMap<>();
-    mostPopularItems = new HashMap<>();
-    mostPopularCategories = new HashMap<>();
-    // We always want the highest count first
-    similar = new TreeMap<>(Collections.reverseOrder());
+    kernel = new SessionKernel();
+    itemsPurchased = TopK.exact(POPULAR_ITEMS);
+    categoriesBrowsed = TopK.exact(POPULAR_CATEGORIES);
     clickers = new HashMap<>(inClickers);
     buyers = new HashMap<>(inBuyers);
-    labelMappings = new HashMap<>();
-    multiPurchases = new HashSet<>();
-    items = new HashMap<>();
+    plan = new FeaturePlan(inF, NUM_EVENTS);
+    itemIds = new IdDictionary();
+    items = new ItemTable();
+    cardinalities = new Cardinalities();
+    popularity = new PopularityIndex();
+    kernel.setPopularity(popularity, RECENT_DAYS);
     mode = inM;
     format = inF;
     balanced = inBalanced;
   }
 
+  /**
+   * Hashes LIBSVM (and CSR) features into 2^inBits ids rather than numbering them in the order they
+   * are first seen, so train and test files written by separate runs share their ids. If inSigned,
+   * hashing also flips the sign of about half the values to offset collisions. No effect on VW
+   * output.
+   *
+   * @param inBits
+   * @param inSigned
+   */
+  public void setFeatureHashing(int inBits, boolean inSigned) {
+    plan = FeaturePlan.hashed(format, NUM_EVENTS, inBits, inSigned);
+  }
+
+  /**
+   * Sets how the output and label files are buffered: inBufferSize bytes per buffer, with up to
+   * inQueueDepth full buffers waiting for the background writer. If inSyncOnClose, the files are
+   * forced to disk before output returns. See {@link AsyncChannelWriter}.
+   * 
+   * @param inBufferSize
+   * @param inQueueDepth
+   * @param inSyncOnClose
+   */
+  public void setOutputBuffers(int inBufferSize, int inQueueDepth, boolean inSyncOnClose) {
+    outputBufferSize = inBufferSize;
+    outputQueueDepth = inQueueDepth;
+    syncOnClose = inSyncOnClose;
+  }
+
+  /**
+   * Finds the popular items and categories with approximate (Space-Saving) counters rather than
+   * exact counts, bounding memory for very large catalogues. Call before {@link #analyse()}.
+   * 
+   * @param inCounters the number of counters per top-k, a few times the number of popular ids
+   */
+  public void approximatePopularity(int inCounters) {
+    itemsPurchased = TopK.approximate(POPULAR_ITEMS, inCounters);
+    categoriesBrowsed = TopK.approximate(POPULAR_CATEGORIES, inCounters);
+  }
+
   public void output(String inFName) {
     LOG.info("Creating {} file from data loaded", format);
     long startTime = System.currentTimeMillis();
@@ -114,14 +201,12 @@ public class YoochooseParser {
     int i = 0;
     int j = 0;
 
-    try (PrintWriter mainFile = new PrintWriter(new BufferedWriter(new FileWriter(inFName)));
-        PrintWriter labelsFile =
-            new PrintWriter(new BufferedWriter(new FileWriter(inFName + ".label")))) {
+    try (SessionOutput out = SessionOutput.open(new String[] {inFName}, plan, format,
+        outputBufferSize, outputQueueDepth, syncOnClose)) {
       // We need a separate iterator for buyers
       Iterator<Entry<Integer, List<Event>>> buyerEntries = buyers.entrySet().iterator();
       for (Map.Entry<Integer, List<Event>> clickerEntry : clickers.entrySet()) {
-        writeSession(clickerEntry, mainFile, format, mode);
-        writeLabel(clickerEntry.getKey(), labelsFile);
+        writeSession(clickerEntry, out, format, mode);
         i++;
 
         // Only iterate over buyers collxn in TRAIN mode - in TEST mode it will be empty
@@ -133,8 +218,7 @@ public class YoochooseParser {
           }
           if (buyerEntries.hasNext()) {
             Map.Entry<Integer, List<Event>> buyerEntry = buyerEntries.next();
-            writeSession(buyerEntry, mainFile, format, mode);
-            writeLabel(buyerEntry.getKey(), labelsFile);
+            writeSession(buyerEntry, out, format, mode);
             i++;
           }
         }
@@ -151,16 +235,11 @@ public class YoochooseParser {
     }
   }
 
-  private void writeLabel(Integer inSessionId, PrintWriter out2) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(inSessionId + "\n");
-    out2.write(sb.toString());
-  }
-
-  private void writeSession(Entry<Integer, List<Event>> entry, PrintWriter out, Format inF,
-      Mode inM) {
+  private void writeSession(Entry<Integer, List<Event>> entry, SessionOutput out, Format inF,
+      Mode inM) throws IOException {
     List<Event> events = entry.getValue();
-    StringBuilder sb = new StringBuilder();
+    LineEncoder enc = line;
+    enc.clear();
     Event lastE = events.get(events.size() - 1);
 
     Integer visitorId = entry.getKey();
@@ -169,16 +248,17 @@ public class YoochooseParser {
     if (lastE instanceof Purchase) {
       buyer = true;
     }
-    sb.append(buildStart(buyer, inM, inF, visitorId));
+    buildStart(enc, buyer, inM, inF, visitorId);
 
     // Output session-level features
-    sb.append(buildSessionFeatures(inF, events));
+    buildSessionFeatures(enc, events);
 
     // Now transform and output the events themselves
-    sb.append(buildEvents(inF, events));
+    buildEvents(enc, events);
 
-    sb.append("\n");
-    out.write(sb.toString());
+    plan.endLine(enc);
+    labelLine.clear();
+    out.write(0, enc, labelLine.put(visitorId).put('\n'));
 
     // Write out the session ID as a comment for LIBSVM
     StringBuilder sb2 = new StringBuilder();
@@ -186,8 +266,7 @@ public class YoochooseParser {
 
   }
 
-  private StringBuilder buildEvents(Format inF, List<Event> events) {
-    StringBuilder sb = new StringBuilder();
+  private void buildEvents(LineEncoder enc, List<Event> events) {
     int eLimit = NUM_EVENTS;
     if (events.size() < NUM_EVENTS) {
       eLimit = events.size();
@@ -204,49 +283,29 @@ public class YoochooseParser {
         duration = calculateDuration(e, nextE);
       }
 
-      LocalDateTime ldt = e.getDate();
-      String prefix = "";
-      if (Format.VW.equals(inF)) {
-        sb.append("|Event" + eventCtr + FEAT_SEP);
-      } else {
-        prefix += "Event" + eventCtr + FEAT_SEP;
-      }
-      append(sb, prefix + "mth", ldt.getMonthValue());
-      append(sb, prefix + "day", ldt.getDayOfMonth());
-      append(sb, prefix + "hour", ldt.getHour());
-      append(sb, prefix + "minute", ldt.getMinute());
-      append(sb, prefix + "second", ldt.getSecond());
-      append(sb, prefix + e.getItemId() + "-itemId", 1);
-      append(sb, prefix + e.getItemId() + "item-was-purchased",
-          wasPurchased(e.getItemId()) ? 1 : 0);
-      append(sb, prefix + e.getItemId() + "item-was-multi-purchase",
-          wasMultiPurchase(e.getItemId()) ? 1 : 0);
-      append(sb, prefix + e.getItemId() + "item-price", itemPrice(e.getItemId()));
-      append(sb, prefix + "dwellTime", duration);
+      long ts = e.getTimestamp();
+      int item = itemIds.lookup(e.getItemId());
+      int itemId = e.getItemId();
+      plan.namespace(enc, eventCtr);
+      plan.event(enc, eventCtr, EventFeature.MONTH, Timestamps.month(ts));
+      plan.event(enc, eventCtr, EventFeature.DAY, Timestamps.dayOfMonth(ts));
+      plan.event(enc, eventCtr, EventFeature.HOUR, Timestamps.hour(ts));
+      plan.event(enc, eventCtr, EventFeature.MINUTE, Timestamps.minute(ts));
+      plan.event(enc, eventCtr, EventFeature.SECOND, Timestamps.second(ts));
+      plan.keyed(enc, eventCtr, KeyedFeature.ITEM, itemId, 1);
+      plan.keyed(enc, eventCtr, KeyedFeature.ITEM_PURCHASED, itemId,
+          items.isPurchased(item) ? 1 : 0);
+      plan.keyed(enc, eventCtr, KeyedFeature.ITEM_MULTI_PURCHASE, itemId,
+          items.isMultiPurchase(item) ? 1 : 0);
+      plan.keyed(enc, eventCtr, KeyedFeature.ITEM_PRICE, itemId, items.price(item));
+      plan.event(enc, eventCtr, EventFeature.DWELL_TIME, duration);
       if (e instanceof Click) {
         Click c = (Click) e;
-        append(sb, prefix + c.getCategoryId() + "-catId", 1);
-        append(sb, prefix + "special", c.isSpecial() ? 1 : 0);
-        append(sb, prefix + "category-simplified", simplifyCategory(c));
+        plan.keyed(enc, eventCtr, KeyedFeature.CATEGORY, c.getCategoryId(), 1);
+        plan.event(enc, eventCtr, EventFeature.SPECIAL, c.isSpecial() ? 1 : 0);
+        plan.event(enc, eventCtr, EventFeature.CATEGORY_SIMPLIFIED, simplifyCategory(c));
       }
     }
-    return sb;
-  }
-
-  private int itemPrice(int itemId) {
-    int price = 0;
-    if (items.containsKey(itemId)) {
-      price = items.get(itemId).getPrice();
-    }
-    return price;
-  }
-
-  private boolean wasMultiPurchase(int itemId) {
-    return multiPurchases.contains(itemId);
-  }
-
-  private boolean wasPurchased(int itemId) {
-    return itemsPurchased.containsKey(itemId);
   }
 
   /**
@@ -272,70 +331,60 @@ public class YoochooseParser {
     }
   }
 
-  private StringBuilder buildSessionFeatures(Format inF, List<Event> events) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(mapLabel("AggregateFeatures numClicks") + FEAT_VAL_SEP + events.size() + FEAT_SEP
-        + mapLabel("lifespan") + FEAT_VAL_SEP
-        + calculateDuration(events.get(0), events.get(events.size() - 1)));
+  private void buildSessionFeatures(LineEncoder enc, List<Event> events) {
+    plan.first(enc, SessionFeature.NUM_CLICKS, events.size());
+    plan.session(enc, SessionFeature.LIFESPAN,
+        calculateDuration(events.get(0), events.get(events.size() - 1)));
 
-    LocalDateTime ldt1 = events.get(0).getDate();
-    LocalDateTime ldt2 = events.get(events.size() - 1).getDate();
+    long ts1 = events.get(0).getTimestamp();
+    long ts2 = events.get(events.size() - 1).getTimestamp();
 
     // Now add in date / time features that span the session
-    append(sb, "sMonth", ldt1.getMonthValue());
-    append(sb, "sDay", ldt1.getDayOfMonth());
-    append(sb, "sWeekDay", ldt1.getDayOfWeek().getValue());
-    append(sb, "sHour", ldt1.getHour());
-    append(sb, "sMin", ldt1.getMinute());
-    append(sb, "sSec", ldt1.getSecond());
-
-    append(sb, "eMonth", ldt2.getMonthValue());
-    append(sb, "eDay", ldt2.getDayOfMonth());
-    append(sb, "eWeekDay", ldt2.getDayOfWeek().getValue());
-    append(sb, "eHour", ldt2.getHour());
-    append(sb, "eMin", ldt2.getMinute());
-    append(sb, "eSec", ldt2.getSecond());
+    plan.session(enc, SessionFeature.START_MONTH, Timestamps.month(ts1));
+    plan.session(enc, SessionFeature.START_DAY, Timestamps.dayOfMonth(ts1));
+    plan.session(enc, SessionFeature.START_WEEKDAY, Timestamps.dayOfWeek(ts1));
+    plan.session(enc, SessionFeature.START_HOUR, Timestamps.hour(ts1));
+    plan.session(enc, SessionFeature.START_MINUTE, Timestamps.minute(ts1));
+    plan.session(enc, SessionFeature.START_SECOND, Timestamps.second(ts1));
+
+    plan.session(enc, SessionFeature.END_MONTH, Timestamps.month(ts2));
+    plan.session(enc, SessionFeature.END_DAY, Timestamps.dayOfMonth(ts2));
+    plan.session(enc, SessionFeature.END_WEEKDAY, Timestamps.dayOfWeek(ts2));
+    plan.session(enc, SessionFeature.END_HOUR, Timestamps.hour(ts2));
+    plan.session(enc, SessionFeature.END_MINUTE, Timestamps.minute(ts2));
+    plan.session(enc, SessionFeature.END_SECOND, Timestamps.second(ts2));
+
+    // All remaining session aggregates come from one pass over the events
+    kernel.reset(ts1);
+    for (Event e : events) {
+      if (e instanceof Click) {
+        kernel.click(e.getItemId(), ((Click) e).getCategoryId());
+      } else {
+        kernel.purchase(e.getItemId());
+      }
+    }
 
     // Now add in # unique items and categories
-    append(sb, "numItems", getUniqueItems(events));
-    append(sb, "numCategories", getUniqueCategories(events));
+    plan.session(enc, SessionFeature.NUM_ITEMS, kernel.uniqueItems());
+    plan.session(enc, SessionFeature.NUM_CATEGORIES, kernel.uniqueCategories());
 
 
     // Rough approximation for popular, purchased items
-    append(sb, "viewedPopularItems", didViewPopularItems(events) ? 1.0 : 0.0);
+    plan.session(enc, SessionFeature.VIEWED_POPULAR_ITEMS, kernel.viewedPopularItem() ? 1.0 : 0.0);
 
     // Rough approximation for popular, purchased categories
-    append(sb, "viewedPopularCats", didViewPopularCats(events) ? 1.0 : 0.0);
+    plan.session(enc, SessionFeature.VIEWED_POPULAR_CATS,
+        kernel.viewedPopularCategory() ? 1.0 : 0.0);
 
     // Rough approximation for content similarity by category
-    append(sb, "catSimilarity", dominantCategory(events));
+    plan.session(enc, SessionFeature.CAT_SIMILARITY, kernel.dominantCategory());
 
-    return sb;
-  }
+    // Purchases of the session's items in the days before it started, nothing from its own day
+    plan.session(enc, SessionFeature.RECENT_PURCHASES, kernel.recentPurchases());
 
-  private void append(StringBuilder sb, String inL, Object inValue) {
-    sb.append(FEAT_SEP + mapLabel(inL) + FEAT_VAL_SEP + inValue.toString());
-  }
-
-  /**
-   * Maps all string inputs into a number space for LIBSVM format. A mapping is used consistently
-   * within a run, but is not guaranteed to be the same across multiple runs.
-   * 
-   * @param inL
-   * @return
-   */
-  private String mapLabel(String inL) {
-    switch (format) {
-      case VW:
-        return inL;
-      case LIBSVM:
-        if (!labelMappings.containsKey(inL)) {
-          labelMappings.put(inL, labelCounter++);
-        }
-        return labelMappings.get(inL).toString();
-      default:
-        return "";
-    }
+    // Links between the clicked items through their top co-viewed / co-purchased neighbours
+    plan.session(enc, SessionFeature.CO_VIEW_LINKS, kernel.coViewLinks());
+    plan.session(enc, SessionFeature.CO_PURCHASE_LINKS, kernel.coPurchaseLinks());
   }
 
   /**
@@ -344,154 +393,173 @@ public class YoochooseParser {
    * optional as (a) LIBSVM format does not support tags as VW does (xgboost errors and fails to
    * parse), and for test files for both we don't know the labels for sessions.
    * 
+   * @param enc
    * @param isBuyer
    * @param inM
    * @param inF
    * @param inVisitorId
-   * @return
    */
-  private String buildStart(boolean isBuyer, Mode inM, Format inF, Integer inVisitorId) {
+  private void buildStart(LineEncoder enc, boolean isBuyer, Mode inM, Format inF,
+      int inVisitorId) {
     String label = isBuyer ? BUYER_LABEL : CLICKER_LABEL;
     switch (inF) {
       case VW:
         if (Mode.TRAIN.equals(inM)) {
           // Label [Importance] [Base] ['Tag]
-          return label + " 1.0 '" + inVisitorId + VW_DELIMITER;
+          enc.put(label).put(" 1.0 '").put(inVisitorId).put(VW_DELIMITER);
         } else {
-          return "'" + inVisitorId + VW_DELIMITER;
+          enc.put('\'').put(inVisitorId).put(VW_DELIMITER);
         }
+        break;
       case LIBSVM:
-        return label + FEAT_SEP;
+        enc.put(label).put(FEAT_SEP);
+        break;
+      case CSR:
+        CsrWriter.startRow(enc, inVisitorId, isBuyer ? 1.0f : 0.0f);
+        break;
       default:
-        return "";
+        break;
     }
   }
 
-  /**
-   * Returns the category seen most often in a session.
-   * @param events
-   * @return
-   */
-  private int dominantCategory(List<Event> events) {
-    int rVal = 0;
-    similar.clear();
-    for (Event e : events) {
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        int quantity = 1;
-        if (similar.containsKey(c.getCategoryId())) {
-          quantity = similar.get(c.getCategoryId()) + 1;
-        }
-        similar.put(c.getCategoryId(), quantity);
-      }
-
-      Map<Integer, Integer> sorted = sortByValue(Collections.reverseOrder(), 1_000, similar);
-      for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
-        // This should be the highest frequency of category
-        return entry.getValue();
-      }
+  private static long calculateDuration(Event e1, Event e2) {
+    if (e1 == null || e2 == null) {
+      return 0l;
     }
-    return rVal;
-  }
-
-  private boolean didViewPopularItems(List<Event> events) {
-    for (Event e : events) {
-      if (mostPopularItems.containsValue(e.getItemId())) {
-        return true;
-      }
+    long ts1 = e1.getTimestamp();
+    long ts2 = e2.getTimestamp();
+    if (ts1 == Timestamps.NONE || ts2 == Timestamps.NONE) {
+      return 0L;
     }
-    return false;
+
+    return Timestamps.secondsBetween(ts1, ts2);
   }
 
-  private boolean didViewPopularCats(List<Event> events) {
-    for (Event e : events) {
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        if (mostPopularItems.containsValue(c.getCategoryId())) {
-          return true;
-        }
-      }
-    }
-    return false;
+  public void analyse() {
+    SessionStats clicked = internalAnalyse(clickers);
+    SessionStats bought = internalAnalyse(buyers);
+    clicked.coViews.merge(bought.coViews);
+    clicked.coPurchases.merge(bought.coPurchases);
+    coViews = clicked.coViews.build(NEIGHBOURS);
+    coPurchases = clicked.coPurchases.build(NEIGHBOURS);
+    kernel.setCoOccurrence(coViews, coPurchases);
+    LOG.info("{} co-viewed pairs over {} items, {} co-purchased pairs over {} items",
+        clicked.coViews.pairs(), coViews.rows(), clicked.coPurchases.pairs(), coPurchases.rows());
+    cardinalities.log(LOG);
   }
 
-  private int getUniqueCategories(List<Event> events) {
-    for (Event e : events) {
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        int x = c.getCategoryId();
-        uniques.add(x);
+  private SessionStats internalAnalyse(Map<Integer, List<Event>> inSet) {
+    // One parallel pass over the sessions, purchase counts are folded in per thread and only
+    // applied to the (single-threaded) top-k counters and item table at the end
+    SessionStats st = inSet.values().parallelStream().collect(SessionStats::new,
+        SessionStats::add, SessionStats::merge);
+    st.purchases.forEach((itemId, count) -> {
+      itemsPurchased.add(itemId, count);
+      int item = itemIds.lookup(itemId);
+      if (item >= 0) {
+        items.set(item, ItemTable.PURCHASED);
       }
-    }
-    int rVal = uniques.size();
-    uniques.clear();
-    return rVal;
+    });
+    st.categories.forEach(categoriesBrowsed::add);
+    LOG.info(
+        "All max: {} secs, purchasers max: {} secs, avg: {} secs, single click {}, single purchase {}, unknown {}, max events {}, avg events {}",
+        st.allMins, st.purchaserMins, (float) st.average / clickers.size(), st.singleClick,
+        st.singlePurchase, st.unknownEventType, st.maxEvents,
+        (float) st.avgEvents / clickers.size());
+    // LOG.info("Top 70 Event buckets are: \n{}", output(eventBuckets, numPurchasers, 70));
+    // We use these later to calculate popularity features in the output file
+    kernel.setPopular(itemsPurchased.members(), categoriesBrowsed.members());
+    LOG.info("Top {} items purchased: \n{}", POPULAR_ITEMS, topToString(itemsPurchased));
+    LOG.info("Top {} cats browsed: \n{}", POPULAR_CATEGORIES, topToString(categoriesBrowsed));
+    LOG.info("Unique items: {}", itemIds.size());
+    LOG.info("Unique items purchased: {}", itemsPurchased.distinct());
+    LOG.info("Unique categories: {}", categoriesBrowsed.distinct());
+    LOG.info("Dwell time deciles: {}", Arrays.toString(st.dwellTimes.boundaries(10)));
+    LOG.info("Lifespan deciles: {}", Arrays.toString(st.lifespans.boundaries(10)));
+    return st;
   }
 
-  private int getUniqueItems(List<Event> events) {
-    for (Event e : events) {
-      int x = e.getItemId();
-      uniques.add(x);
-    }
-    int rVal = uniques.size();
-    uniques.clear();
-    return rVal;
+  /**
+   * @return approximate distinct session, item and category counts of the events read so far
+   */
+  public Cardinalities cardinalities() {
+    return cardinalities;
   }
 
-  private long calculateDuration(Event e1, Event e2) {
-    if (e1 == null || e2 == null) {
-      return 0l;
-    }
-    LocalDateTime ldt1 = e1.getDate();
-    LocalDateTime ldt2 = e2.getDate();
-    if (ldt1 == null || ldt2 == null) {
-      return 0L;
-    }
+  /**
+   * @return the top co-viewed neighbours per item, as of the last {@link #analyse()}
+   */
+  public CoOccurrence coViews() {
+    return coViews;
+  }
 
-    return ldt1.until(ldt2, ChronoUnit.SECONDS);
+  /**
+   * @return the top co-purchased neighbours per item, as of the last {@link #analyse()}
+   */
+  public CoOccurrence coPurchases() {
+    return coPurchases;
   }
 
-  public void analyse() {
-    internalAnalyse(clickers);
-    internalAnalyse(buyers);
+  /**
+   * @return item and category counts by day / hour of the events read so far
+   */
+  public PopularityIndex popularity() {
+    return popularity;
   }
 
-  private void internalAnalyse(Map<Integer, List<Event>> inSet) {
+  /**
+   * Mergeable per-thread accumulator for {@link YoochooseParser#internalAnalyse(Map)}.
+   */
+  private static class SessionStats {
     // I know 262 is the max from inspecting the data, hence why we use 270 here..
-    Map<Integer, Integer> eventBuckets = new HashMap<>(270);
-    long allMins = 0;
-    long average = 0;
-    long purchaserMins = 0;
-    long singleClick = 0;
-    long singlePurchase = 0;
-    long unknownEventType = 0;
-    long avgEvents = 0;
-    int maxEvents = 0;
-    
-    for (Map.Entry<Integer, List<Event>> e : inSet.entrySet()) {
-      List<Event> events = e.getValue();
+    private final IntIntMap eventBuckets = new IntIntMap(270);
+    private final IntIntMap purchases = new IntIntMap();
+    private final IntIntMap categories = new IntIntMap();
+    private final QuantileSketch dwellTimes = new QuantileSketch();
+    private final QuantileSketch lifespans = new QuantileSketch();
+    private final CoOccurrence.Builder coViews = new CoOccurrence.Builder();
+    private final CoOccurrence.Builder coPurchases = new CoOccurrence.Builder();
+    private long allMins;
+    private long average;
+    private long purchaserMins;
+    private long singleClick;
+    private long singlePurchase;
+    private long unknownEventType;
+    private long avgEvents;
+    private int maxEvents;
+
+    private void add(List<Event> events) {
+      for (Event event : events) {
+        if (event instanceof Click) {
+          coViews.add(event.getItemId());
+        } else {
+          coPurchases.add(event.getItemId());
+        }
+      }
+      coViews.endSession();
+      coPurchases.endSession();
 
       // Just looking for rogue / not-so-useful data
-      if (e.getValue().size() <= 1) {
-        Event event = e.getValue().get(0);
+      if (events.size() <= 1) {
+        Event event = events.get(0);
         if (event instanceof Click) {
           singleClick++;
         } else if (event instanceof Purchase) {
           singlePurchase++;
         }
-        continue;
+        return;
       }
       long mins = calculateDuration(events.get(0), events.get(events.size() - 1));
+      lifespans.add(mins);
+      for (int i = 0; i < events.size() - 1; i++) {
+        dwellTimes.add(calculateDuration(events.get(i), events.get(i + 1)));
+      }
       int numEvents = events.size();
       average += mins;
       avgEvents += numEvents;
       if (numEvents > maxEvents) {
         maxEvents = numEvents;
       }
-      int count = 1;
-      if (eventBuckets.containsKey(numEvents)) {
-        count += eventBuckets.get(numEvents);
-      }
 
       if (mins > allMins) {
         allMins = mins;
@@ -499,14 +567,10 @@ public class YoochooseParser {
       // Now look at Purchase data
       Event e2 = events.get(events.size() - 1);
       if (e2 instanceof Purchase) {
-        int itemCount = 1;
-        if (itemsPurchased.containsKey(e2.getItemId())) {
-          itemCount = itemsPurchased.get(e2.getItemId()) + 1;
-        }
-        itemsPurchased.put(e2.getItemId(), itemCount);
+        purchases.addTo(e2.getItemId(), 1);
 
         // We only count events for purchasers
-        eventBuckets.put(numEvents, count);
+        eventBuckets.addTo(numEvents, 1);
         if (mins > purchaserMins) {
           purchaserMins = mins;
         }
@@ -514,60 +578,38 @@ public class YoochooseParser {
         for (Event event : events) {
           if (event instanceof Click) {
             Click c = (Click) event;
-            int quantity = 1;
-            if (categoriesBrowsed.containsKey(c.getCategoryId())) {
-              quantity = categoriesBrowsed.get(c.getCategoryId()) + 1;
+            // 0 is not a real category - it simply represents data not present
+            if (c.getCategoryId() != 0) {
+              categories.addTo(c.getCategoryId(), 1);
             }
-            categoriesBrowsed.put(c.getCategoryId(), quantity);
           }
         }
       }
     }
-    // Get rid of 0 as it is not a real category - it simply represents data not present
-    categoriesBrowsed.remove(0);
-    LOG.info(
-        "All max: {} secs, purchasers max: {} secs, avg: {} secs, single click {}, single purchase {}, unknown {}, max events {}, avg events {}",
-        allMins, purchaserMins, (float) average / clickers.size(), singleClick, singlePurchase,
-        unknownEventType, maxEvents, (float) avgEvents / clickers.size());
-    // LOG.info("Top 70 Event buckets are: \n{}", output(eventBuckets, numPurchasers, 70));
-    // We use this map later to calculate a popularity feature in the output file
-    mostPopularItems = sortByValue(Collections.reverseOrder(), 400, itemsPurchased);
-    mostPopularCategories = sortByValue(Collections.reverseOrder(), 100, categoriesBrowsed);
-    LOG.info("Top 400 items purchased: \n{}", mapToString(mostPopularItems));
-    LOG.info("Top 100 cats browsed: \n{}", mapToString(mostPopularCategories));
-    LOG.info("Unique items: {}", items.size());
-    LOG.info("Unique items purchased: {}", itemsPurchased.size());
-    LOG.info("Unique categories: {}", categoriesBrowsed.size());
-    
-  }
 
-  private Map<Integer, Integer> sortByValue(Comparator<Integer> inC, int inLimit,
-      Map<Integer, Integer> inSrc) {
-    // Sort the map..
-    Map<Integer, Integer> sorted = new TreeMap<>(inC);
-    for (Map.Entry<Integer, Integer> e : inSrc.entrySet()) {
-      // We deliberately swap the ks and vs here
-      // as we now want to sort by frequency and not unique ID anymore
-      sorted.put(e.getValue(), e.getKey());
+    private void merge(SessionStats inOther) {
+      inOther.eventBuckets.forEach(eventBuckets::addTo);
+      inOther.purchases.forEach(purchases::addTo);
+      inOther.categories.forEach(categories::addTo);
+      dwellTimes.merge(inOther.dwellTimes);
+      lifespans.merge(inOther.lifespans);
+      coViews.merge(inOther.coViews);
+      coPurchases.merge(inOther.coPurchases);
+      allMins = Math.max(allMins, inOther.allMins);
+      average += inOther.average;
+      purchaserMins = Math.max(purchaserMins, inOther.purchaserMins);
+      singleClick += inOther.singleClick;
+      singlePurchase += inOther.singlePurchase;
+      unknownEventType += inOther.unknownEventType;
+      avgEvents += inOther.avgEvents;
+      maxEvents = Math.max(maxEvents, inOther.maxEvents);
     }
-    // Now we remove anything after the limit
-    Map<Integer, Integer> rVal = new TreeMap<>(inC);
-    for (Map.Entry<Integer, Integer> e : sorted.entrySet()) {
-      if (inLimit <= 0) {
-        break;
-      }
-      rVal.put(e.getKey(), e.getValue());
-      inLimit--;
-    }
-
-    return rVal;
   }
 
-  private Object mapToString(Map<Integer, Integer> inBuckets) {
+  private Object topToString(TopK inTop) {
     StringBuilder sb = new StringBuilder();
-
-    for (Map.Entry<Integer, Integer> e : inBuckets.entrySet()) {
-      sb.append(e.getKey() + ":" + e.getValue() + "\n");
+    for (int id : inTop.top()) {
+      sb.append(inTop.count(id) + ":" + id + "\n");
     }
     return sb.toString();
   }
@@ -580,102 +622,261 @@ public class YoochooseParser {
    */
   public void buildMap(String inFname, Event.Type inT, char inSeparatorChar) {
 
-    String format = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    DateTimeFormatter dtf = DateTimeFormatter.ofPattern(format);
     long startTime1 = System.currentTimeMillis();
     long startTime2 = System.currentTimeMillis();
     long currTime = 0L;
     int i = 0;
     int j = 0;
     LOG.info("Loading {}", inFname);
-    String[] nextLine = null;
-    try (CSVReader reader = new CSVReader(new FileReader(inFname), inSeparatorChar)) {
-      while ((nextLine = reader.readNext()) != null) {
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar)) {
+      try {
+        while (reader.next()) {
 
-        // Ignore blank lines (which only occur in solution.dat)
-        if ("".equals(nextLine[0])) {
-          continue;
-        }
+          // Ignore blank lines (which only occur in solution.dat)
+          if (reader.fieldLength(0) == 0) {
+            continue;
+          }
+
+          int vId = reader.intField(0);
+          switch (inT) {
+            case CLICK:
+              Click c = readClick(reader);
+              count(vId, c);
+              add(c, vId);
+              break;
+            case PURCHASE:
+              Purchase p = readPurchase(reader);
+              if (reader.fieldCount() >= 5) {
+                addOrUpdateItem(itemIds.encode(p.getItemId()), p.getPrice(), p.getQuantity());
+                count(vId, p);
+              }
+              move(p, vId);
+              break;
+            default:
+              LOG.error("Unsupported event type encountered");
+              break;
+          }
 
-        int vId = Integer.parseInt(nextLine[0]);
-        LocalDateTime dt = null;
 
-        try {
-          dt = LocalDateTime.parse(nextLine[1], dtf);
-        } catch (DateTimeParseException e) {
-          // This is an expected occurrence for the solution.dat file
+          currTime = System.currentTimeMillis();
+          i++;
+          if ((currTime - startTime2) > LOG_INTERVAL) {
+            LOG.info("{} events processed (rate: {}/sec)", i,
+                (float) ((i - j) / LOG_INTERVAL) * 1_000);
+            startTime2 = currTime;
+            j = i;
+          }
         }
-        switch (inT) {
-          case CLICK:
-            Click c = new Click();
-            c.setDate(dt);
-            c.setItemId(Integer.parseInt(nextLine[2]));
-            if ("S".equals(nextLine[3])) {
-              c.setSpecial(true);
-            } else {
-              c.setCategoryId(Integer.parseInt(nextLine[3]));
-            }
-            add(c, vId);
-            break;
-          case PURCHASE:
-            Purchase p = new Purchase();
-            p.setDate(dt);
-            try {
-              p.setItemId(Integer.parseInt(nextLine[2]));
-              p.setPrice(Integer.parseInt(nextLine[3]));
-              p.setQuantity(Integer.parseInt(nextLine[4]));
-              if (p.getQuantity() > 1) {
-                multiPurchases.add(p.getItemId());
-              }
-              addOrUpdateItem(Integer.parseInt(nextLine[2]), Integer.parseInt(nextLine[3]),
-                  Integer.parseInt(nextLine[4]));
 
+        LOG.info("{} data lines -> {} visitors, processed in {} secs", i,
+            (clickers.keySet().size() + buyers.keySet().size()), (currTime - startTime1) / 1000);
+      } catch (RuntimeException re) {
+        LOG.error("Error at line {} in file", i, re);
+        LOG.error("Complete line is: '{}'", reader.line());
+      }
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inFname, ie);
+    }
+  }
 
-            } catch (ArrayIndexOutOfBoundsException e) {
-              // Expected for solution.dat - do nothing
+  /**
+   * Loads a clicks and a buys file together by merge-joining them on session id, as an alternative
+   * to calling {@link #buildMap(String, Event.Type, char)} for each. The clicks file must be
+   * ordered by session id, the buys file can be in any order: it is parsed and grouped by session
+   * on a second thread, which holds all its purchases in memory, and the join starts once that is
+   * done. Every session goes straight into clickers or buyers with its purchases attached - nothing
+   * depends on load order, and purchases without any clicks are kept as purchase-only buyer
+   * sessions instead of being dropped.
+   * 
+   * @param inClicksFname
+   * @param inBuysFname
+   * @param inSeparatorChar
+   */
+  public void buildMaps(String inClicksFname, String inBuysFname, char inSeparatorChar) {
+    LOG.info("Joining {} and {}", inClicksFname, inBuysFname);
+    long startTime = System.currentTimeMillis();
+    BlockingQueue<Basket> baskets = new ArrayBlockingQueue<>(BASKET_QUEUE_SIZE);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    Future<List<Purchase>> buysReader =
+        pool.submit(() -> readBaskets(inBuysFname, inSeparatorChar, baskets));
+    int clicks = 0;
+    int purchaseOnly = 0;
+    try (MappedCsvReader reader = new MappedCsvReader(inClicksFname, inSeparatorChar)) {
+      try {
+        boolean moreClicks = nextRow(reader);
+        Basket basket = baskets.take();
+        long last = Long.MIN_VALUE;
+        while (moreClicks || basket != Basket.END) {
+          int vId;
+          if (moreClicks && basket != Basket.END) {
+            vId = Math.min(reader.intField(0), basket.sessionId);
+          } else {
+            vId = moreClicks ? reader.intField(0) : basket.sessionId;
+          }
+          if (vId <= last) {
+            throw new IllegalStateException("Session " + vId + " found after session " + last
+                + " in " + inClicksFname
+                + " - joining needs the clicks ordered by session id, use buildMap() instead");
+          }
+          last = vId;
+
+          List<Event> events = new ArrayList<>();
+          while (moreClicks && reader.intField(0) == vId) {
+            Click c = readClick(reader);
+            count(vId, c);
+            events.add(c);
+            clicks++;
+            moreClicks = nextRow(reader);
+          }
+          if (basket.sessionId == vId && basket != Basket.END) {
+            if (events.isEmpty()) {
+              purchaseOnly++;
             }
-            move(p, vId);
-            break;
-          default:
-            LOG.error("Unsupported event type encountered");
-            break;
+            for (Purchase p : basket.purchases) {
+              count(vId, p);
+            }
+            events.addAll(basket.purchases);
+            buyers.put(vId, events);
+            basket = baskets.take();
+          } else {
+            clickers.put(vId, events);
+          }
+        }
+        List<Purchase> purchases = buysReader.get();
+        // In file order, so that an item's price is the last one in the file as with buildMap()
+        for (Purchase p : purchases) {
+          addOrUpdateItem(itemIds.encode(p.getItemId()), p.getPrice(), p.getQuantity());
         }
+        LOG.info("{} clicks, {} purchases -> {} visitors ({} purchase only), processed in {} secs",
+            clicks, purchases.size(), clickers.size() + buyers.size(), purchaseOnly,
+            (System.currentTimeMillis() - startTime) / 1000);
+      } catch (RuntimeException re) {
+        LOG.error("Error at line {} in file", reader.lineNumber(), re);
+        LOG.error("Complete line is: '{}'", reader.line());
+      }
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inClicksFname, ie);
+    } catch (ExecutionException ee) {
+      LOG.error("Error reading {}", inBuysFname, ee.getCause());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interrupted joining {} and {}", inClicksFname, inBuysFname, ie);
+    } finally {
+      buysReader.cancel(true);
+      pool.shutdownNow();
+    }
+  }
 
+  /**
+   * The purchases of one session, handed from the buys reader thread to the join.
+   */
+  private static class Basket {
+    private static final Basket END = new Basket(0);
 
-        currTime = System.currentTimeMillis();
-        i++;
-        if ((currTime - startTime2) > LOG_INTERVAL) {
-          LOG.info("{} events processed (rate: {}/sec)", i,
-              (float) ((i - j) / LOG_INTERVAL) * 1_000);
-          startTime2 = currTime;
-          j = i;
+    private final int sessionId;
+    private final List<Purchase> purchases = new ArrayList<>();
+
+    private Basket(int inSessionId) {
+      sessionId = inSessionId;
+    }
+  }
+
+  /**
+   * Reads a buys file, in any order, into per-session baskets and hands them over in session id
+   * order, always finishing with {@link Basket#END}. A session's purchases keep their file order.
+   * 
+   * @return all purchases read, in file order
+   */
+  private List<Purchase> readBaskets(String inFname, char inSeparatorChar,
+      BlockingQueue<Basket> inBaskets) throws IOException, InterruptedException {
+    List<Purchase> rVal = new ArrayList<>();
+    boolean complete = false;
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar)) {
+      Map<Integer, Basket> grouped = new TreeMap<>();
+      Basket basket = null;
+      while (nextRow(reader)) {
+        int vId = reader.intField(0);
+        if (basket == null || basket.sessionId != vId) {
+          basket = grouped.computeIfAbsent(vId, Basket::new);
         }
+        Purchase p = readPurchase(reader);
+        basket.purchases.add(p);
+        rVal.add(p);
+      }
+      for (Basket b : grouped.values()) {
+        inBaskets.put(b);
       }
+      inBaskets.put(Basket.END);
+      complete = true;
+    } finally {
+      if (!complete) {
+        // Never leave the join waiting - it sees the error once it reaches the end
+        inBaskets.clear();
+        inBaskets.offer(Basket.END);
+      }
+    }
+    return rVal;
+  }
 
-      LOG.info("{} data lines -> {} visitors, processed in {} secs", i,
-          (clickers.keySet().size() + buyers.keySet().size()), (currTime - startTime1) / 1000);
-    } catch (Exception ie) {
-      LOG.error("Error at line {} in file", i, ie);
-      LOG.error("Complete line is: '{},{},{},{}'", nextLine[0], nextLine[1], nextLine[2],
-          nextLine[3]);
+  /**
+   * Advances past blank lines (which only occur in solution.dat).
+   */
+  private boolean nextRow(MappedCsvReader inReader) throws IOException {
+    while (inReader.next()) {
+      if (inReader.fieldLength(0) > 0) {
+        return true;
+      }
     }
+    return false;
   }
 
-  private void addOrUpdateItem(int inItemId, int inPrice, int inMulti) {
-    Item curr = null;
-    if (items.containsKey(inItemId)) {
-      curr = items.get(inItemId);
+  private Click readClick(MappedCsvReader inReader) {
+    Click rVal = new Click();
+    rVal.setTimestamp(readTimestamp(inReader));
+    rVal.setItemId(inReader.intField(2));
+    if (inReader.fieldEquals(3, 'S')) {
+      rVal.setSpecial(true);
     } else {
-      curr = new Item();
-      curr.setId(inItemId);
+      rVal.setCategoryId(inReader.intField(3));
     }
+    return rVal;
+  }
 
-    curr.setPrice(inPrice);
-    if (inMulti > 1) {
-      curr.setMultiPurchase(true);
+  private Purchase readPurchase(MappedCsvReader inReader) {
+    Purchase rVal = new Purchase();
+    rVal.setTimestamp(readTimestamp(inReader));
+    // solution.dat only carries the session and item list - nothing else to read
+    if (inReader.fieldCount() >= 5) {
+      rVal.setItemId(inReader.intField(2));
+      rVal.setPrice(inReader.intField(3));
+      rVal.setQuantity(inReader.intField(4));
     }
+    return rVal;
+  }
 
-    items.put(inItemId, curr);
+  private void count(int inSessionId, Event inE) {
+    cardinalities.add(inSessionId, inE.getTimestamp(), inE.getItemId(), inE.getCategoryId());
+    if (inE instanceof Click) {
+      popularity.click(inE.getItemId(), inE.getCategoryId(), inE.getTimestamp());
+    } else {
+      popularity.purchase(inE.getItemId(), inE.getTimestamp());
+    }
+  }
+
+  private long readTimestamp(MappedCsvReader inReader) {
+    try {
+      return inReader.timestampField(1);
+    } catch (DateTimeParseException e) {
+      // This is an expected occurrence for the solution.dat file
+      return Timestamps.NONE;
+    }
+  }
+
+  private void addOrUpdateItem(int inItem, int inPrice, int inMulti) {
+    items.setPrice(inItem, inPrice);
+    if (inMulti > 1) {
+      items.set(inItem, ItemTable.MULTI_PURCHASE);
+    }
   }
 
   private void add(Event inE, int vId) {
@@ -1,28 +1,29 @@
 package data.yoochoose;
 
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import au.com.bytecode.opencsv.CSVReader;
+import data.yoochoose.FeaturePlan.EventFeature;
+import data.yoochoose.FeaturePlan.KeyedFeature;
+import data.yoochoose.FeaturePlan.SessionFeature;
 
 /**
  * See http://2015.recsyschallenge.com/
@@ -45,12 +46,7 @@ public class YoochooseParser2 {
   /**
    * Exists only to be re-used to reduce GCing.
    */
-  private Set<Integer> uniques;
-
-  /**
-   * Exists only to be re-used to reduce GCing.
-   */
-  private Map<Integer, Integer> similar;
+  private final SessionKernel kernel;
 
   private static final String BUYER_LABEL = "1";
 
@@ -60,23 +56,85 @@ public class YoochooseParser2 {
 
   private static final String VW_DELIMITER = "|";
 
-  private int labelCounter;
-
   private static final String FEAT_SEP = " ";
 
-  private static final String FEAT_VAL_SEP = ":";
-
   private static final Logger LOG = LoggerFactory.getLogger(YoochooseParser2.class);
 
   private static final long LOG_INTERVAL = 5_000L;
 
-  private Map<String, Integer> labelMappings;
+  /**
+   * Sessions encoded per task when writing in parallel.
+   */
+  private static final int OUTPUT_BATCH = 1_024;
+
+  /**
+   * Batches in flight per thread when writing in parallel.
+   */
+  private static final int BATCHES_PER_THREAD = 4;
+
+  /**
+   * How many days before a session its items' recent purchases are counted over.
+   */
+  private static final int RECENT_DAYS = 7;
+
+  /**
+   * Top co-viewed / co-purchased neighbours kept per item.
+   */
+  private static final int NEIGHBOURS = 20;
+
+  /**
+   * The output labels / LIBSVM ids of every feature, see {@link FeaturePlan}.
+   */
+  private FeaturePlan plan;
+
+  /**
+   * Feature hashing bits, 0 for none, see {@link #setFeatureHashing(int, boolean)}.
+   */
+  private int hashBits;
+
+  private boolean hashSigned;
 
-  private Map<Integer, Item> items;
+  /**
+   * Exists only to be re-used to reduce GCing, holds the line being written.
+   */
+  private final LineEncoder line = new LineEncoder();
+
+  private final LineEncoder labelLine = new LineEncoder(64);
+
+  /**
+   * Output buffering, see {@link #setOutputBuffers(int, int, boolean)}.
+   */
+  private int outputBufferSize = AsyncChannelWriter.DEFAULT_BUFFER_SIZE;
+
+  private int outputQueueDepth = AsyncChannelWriter.DEFAULT_QUEUE_DEPTH;
+
+  private boolean syncOnClose;
+
+  /**
+   * Whether out-of-core and streaming runs build the co-occurrence and similar-session indexes
+   * too, see {@link #setIndexBoundedRuns(boolean)}.
+   */
+  private boolean indexBoundedRuns;
+
+  /**
+   * Another run's purchase history, see {@link #setPopularity(PopularityIndex)}, else null.
+   */
+  private PopularityIndex givenPopularity;
+
+  /**
+   * Whether the co-occurrence indexes are another run's, and so not rebuilt.
+   */
+  private boolean givenCoOccurrence;
 
-  private Map<Integer, Integer> mostPopularItems;
+  /**
+   * Whether the similar-session index is another run's, and so not rebuilt.
+   */
+  private boolean givenSimilarSessions;
 
-  private Map<Integer, Integer> mostPopularCategories;
+  /**
+   * Item metadata indexed by dense item id, see {@link EventStore#itemIds()}.
+   */
+  private ItemTable items;
 
   /**
    * Train or testing - testing files only differ in not having a class label set.
@@ -88,22 +146,166 @@ public class YoochooseParser2 {
    */
   private final Format format;
 
-  private Map<Integer, Session> sessions;
+  /**
+   * All loaded events, grouped into sessions once sealed. When spilling, only the session currently
+   * being processed.
+   */
+  private EventStore events;
+
+  /**
+   * Set for out-of-core runs, events then go to disk rather than into {@link #events}.
+   */
+  private final SessionSpill spill;
+
+  /**
+   * Approximate distinct counts, fed as events are read.
+   */
+  private Cardinalities cardinalities;
+
+  /**
+   * Item and category counts by day / hour, fed as events are read.
+   */
+  private PopularityIndex popularity;
+
+  /**
+   * Items clicked in the same sessions, as of the last {@link #analyse()}.
+   */
+  private CoOccurrence coViews;
+
+  /**
+   * Items purchased in the same sessions, as of the last {@link #analyse()}.
+   */
+  private CoOccurrence coPurchases;
+
+  /**
+   * Sessions by the items they clicked, as of the last {@link #analyse()}.
+   */
+  private MinHashIndex similarSessions;
+
+  private QuantileSketch dwellTimes;
 
-  private DateTimeFormatter dtf;
+  private QuantileSketch lifespans;
 
   public YoochooseParser2(Format inF, Mode inM) {
+    this(inF, inM, null);
+  }
+
+  /**
+   * Out-of-core parser for inputs that do not fit in memory: events are spilled to sorted runs
+   * under inSpillDir and merged back a session at a time, using about inMemoryBudget bytes of
+   * event buffer. Item metadata is still held in memory. Sessions are output in session id order.
+   * The co-occurrence and similar-session indexes are left out, see
+   * {@link #setIndexBoundedRuns(boolean)}.
+   * 
+   * @param inF
+   * @param inM
+   * @param inSpillDir
+   * @param inMemoryBudget
+   */
+  public YoochooseParser2(Format inF, Mode inM, File inSpillDir, long inMemoryBudget) {
+    this(inF, inM, new SessionSpill(inSpillDir, inMemoryBudget));
+  }
+
+  private YoochooseParser2(Format inF, Mode inM, SessionSpill inSpill) {
     format = inF;
     mode = inM;
-    String format = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    dtf = DateTimeFormatter.ofPattern(format);
-    sessions = new HashMap<>();
-    labelMappings = new HashMap<>();
-    items = new HashMap<>();
-    similar = new HashMap<>();
-    uniques = new HashSet<>();
-    mostPopularItems = new HashMap<>();
-    mostPopularCategories = new HashMap<>();
+    spill = inSpill;
+    events = new EventStore();
+    plan = new FeaturePlan(inF, NUM_EVENTS);
+    items = new ItemTable();
+    kernel = new SessionKernel();
+    dwellTimes = new QuantileSketch();
+    lifespans = new QuantileSketch();
+    cardinalities = new Cardinalities();
+    popularity = new PopularityIndex();
+    kernel.setPopularity(popularity, RECENT_DAYS);
+  }
+
+  /**
+   * Hashes LIBSVM (and CSR) features into 2^inBits ids rather than numbering them in the order they
+   * are first seen, so train and test files written by separate runs share their ids. If inSigned,
+   * hashing also flips the sign of about half the values to offset collisions. No effect on VW
+   * output.
+   *
+   * @param inBits
+   * @param inSigned
+   */
+  public void setFeatureHashing(int inBits, boolean inSigned) {
+    plan = FeaturePlan.hashed(format, NUM_EVENTS, inBits, inSigned);
+    hashBits = inBits;
+    hashSigned = inSigned;
+  }
+
+  /**
+   * Sets how output files are buffered: inBufferSize bytes per buffer, with up to inQueueDepth full
+   * buffers waiting for the background writer before encoding blocks. If inSyncOnClose, files are
+   * forced to disk before output returns. See {@link AsyncChannelWriter}.
+   * 
+   * @param inBufferSize
+   * @param inQueueDepth
+   * @param inSyncOnClose
+   */
+  public void setOutputBuffers(int inBufferSize, int inQueueDepth, boolean inSyncOnClose) {
+    outputBufferSize = inBufferSize;
+    outputQueueDepth = inQueueDepth;
+    syncOnClose = inSyncOnClose;
+  }
+
+  /**
+   * Builds the co-view and co-purchase indexes behind coViewLinks and coPurchaseLinks, and the
+   * similar-session index behind similarSessions and similarPurchaseRate, in out-of-core
+   * {@link #analyse()} and in {@link #stream(String, String, char, String)} too. Off by default:
+   * the indexes hold every pair of items seen together and a signature per session, so memory
+   * would grow with the input again, and without them those features are 0. In-memory
+   * {@link #analyse()} always builds them.
+   * 
+   * @param inIndex
+   */
+  public void setIndexBoundedRuns(boolean inIndex) {
+    indexBoundedRuns = inIndex;
+  }
+
+  /**
+   * Looks recentPurchases up in another run's index, e.g. the training run's {@link #popularity()}
+   * for a {@link Mode#TEST} run. The test file has no buys, so with this run's own index the
+   * feature is always 0. Events read are still counted into this run's own index.
+   * 
+   * @param inIndex
+   */
+  public void setPopularity(PopularityIndex inIndex) {
+    givenPopularity = inIndex;
+    kernel.setPopularity(inIndex, RECENT_DAYS);
+  }
+
+  /**
+   * Takes coViewLinks and coPurchaseLinks from another run's indexes, e.g. the training run's
+   * {@link #coViews()} and {@link #coPurchases()} for a {@link Mode#TEST} run, whose own
+   * co-purchases are empty so that coPurchaseLinks is always 0. {@link #analyse()} and
+   * {@link #stream(String, String, char, String)} then leave them alone. As the sessions written
+   * were not counted into them, links leave none of their own pairs out.
+   * 
+   * @param inViews
+   * @param inPurchases
+   */
+  public void setCoOccurrence(CoOccurrence inViews, CoOccurrence inPurchases) {
+    givenCoOccurrence = true;
+    coViews = inViews;
+    coPurchases = inPurchases;
+    kernel.setCoOccurrence(inViews, inPurchases, false);
+  }
+
+  /**
+   * Takes similarSessions and similarPurchaseRate from another run's index, e.g. the training
+   * run's {@link #similarSessions()} for a {@link Mode#TEST} run, whose own sessions are none of
+   * them purchasers so that similarPurchaseRate is always 0. {@link #analyse()} and
+   * {@link #stream(String, String, char, String)} then leave it alone.
+   * 
+   * @param inIndex
+   */
+  public void setSimilarSessions(MinHashIndex inIndex) {
+    givenSimilarSessions = true;
+    similarSessions = inIndex;
+    kernel.setSimilarSessions(inIndex);
   }
 
   /**
@@ -115,343 +317,1006 @@ public class YoochooseParser2 {
   public void load(String inFname, Event.Type inT, char inSeparatorChar) {
     LOG.info("Loading {}", inFname);
     int total = 0, current = 0;
-    String[] nextLine = null;
     long currTime = 0L;
     long startTime1 = System.currentTimeMillis();
-    try (CSVReader reader = new CSVReader(new FileReader(inFname), inSeparatorChar)) {
-      while ((nextLine = reader.readNext()) != null) {
-        processEvent(nextLine);
-        total++;
-
-        currTime = System.currentTimeMillis();
-        if ((currTime - startTime1) > LOG_INTERVAL) {
-          LOG.info("{} events processed (rate: {}/sec)", total,
-              (float) ((total - current) / LOG_INTERVAL) * 1_000);
-          startTime1 = currTime;
-          current = total;
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar)) {
+      try {
+        while (reader.next()) {
+          processEvent(reader, events, items, cardinalities, popularity);
+          total++;
+
+          currTime = System.currentTimeMillis();
+          if ((currTime - startTime1) > LOG_INTERVAL) {
+            LOG.info("{} events processed (rate: {}/sec)", total,
+                (float) ((total - current) / LOG_INTERVAL) * 1_000);
+            startTime1 = currTime;
+            current = total;
+          }
+        }
+        LOG.info("{} total events processed", total);
+      } catch (RuntimeException re) {
+        LOG.error("Error at line {} in file", total, re);
+        LOG.error("Complete line is: '{}'", reader.line());
+      }
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inFname, ie);
+    }
+  }
+
+  /**
+   * Loads a file on several threads. The file is split into row-aligned byte ranges which are
+   * parsed concurrently into partial event stores and item maps, these are then merged in file
+   * order so the resulting sessions, events and items are the same as for
+   * {@link #load(String, Event.Type, char)}.
+   * 
+   * @param inFname
+   * @param inT
+   * @param inSeparatorChar
+   * @param inThreads
+   */
+  public void load(String inFname, Event.Type inT, char inSeparatorChar, int inThreads) {
+    if (inThreads <= 1 || spill != null) {
+      load(inFname, inT, inSeparatorChar);
+      return;
+    }
+    LOG.info("Loading {} on {} threads", inFname, inThreads);
+    long startTime = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(inThreads);
+    try {
+      long[] ranges = MappedCsvReader.split(inFname, inThreads);
+      List<Future<Chunk>> chunks = new ArrayList<>(inThreads);
+      for (int c = 0; c < inThreads; c++) {
+        long start = ranges[c];
+        long end = ranges[c + 1];
+        chunks.add(pool.submit(() -> loadChunk(inFname, inSeparatorChar, start, end)));
+      }
+      long total = 0;
+      // Merge in file order - later chunks carry on parsing while earlier ones are merged
+      for (Future<Chunk> f : chunks) {
+        Chunk chunk = f.get();
+        merge(chunk);
+        total += chunk.events.size();
+      }
+      LOG.info("{} total events processed in {} secs", total,
+          (System.currentTimeMillis() - startTime) / 1000);
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inFname, ie);
+    } catch (ExecutionException ee) {
+      LOG.error("Error loading {}", inFname, ee.getCause());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interrupted loading {}", inFname, ie);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * The events and items read from one byte range of a file, in arrival / first-seen order.
+   */
+  private static class Chunk {
+    private final EventStore events = new EventStore();
+    private final ItemTable items = new ItemTable();
+    private final Cardinalities counts = new Cardinalities();
+    private final PopularityIndex popularity = new PopularityIndex();
+  }
+
+  private Chunk loadChunk(String inFname, char inSeparatorChar, long inStart, long inEnd)
+      throws IOException {
+    Chunk rVal = new Chunk();
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar, inStart, inEnd)) {
+      try {
+        while (reader.next()) {
+          processEvent(reader, rVal.events, rVal.items, rVal.counts, rVal.popularity);
         }
+      } catch (RuntimeException re) {
+        throw new IllegalStateException("Error at line '" + reader.line() + "'", re);
       }
-      LOG.info("{} total events processed", total);
-    } catch (Exception ie) {
-      LOG.error("Error at line {} in file", total, ie);
-      LOG.error("Complete line is: '{},{},{},{}'", nextLine[0], nextLine[1], nextLine[2],
-          nextLine[3]);
     }
+    return rVal;
   }
 
-  private void processEvent(String[] nextLine) {
-    int vId = Integer.parseInt(nextLine[0]);
-    LocalDateTime dt = LocalDateTime.parse(nextLine[1], dtf);
-    Session currS = null;
-    if (!sessions.containsKey(vId)) {
-      currS = new Session();
-      sessions.put(vId, currS);
+  /**
+   * Folds a chunk into the main event store and item map as if its rows had been read
+   * sequentially.
+   * 
+   * @param inChunk
+   */
+  private void merge(Chunk inChunk) {
+    events.append(inChunk.events);
+    IdDictionary chunkItemIds = inChunk.events.itemIds();
+    for (int i = 0; i < inChunk.items.size(); i++) {
+      items.merge(events.itemIds().lookup(chunkItemIds.decode(i)), inChunk.items, i);
     }
-    currS = sessions.get(vId);
-    Event e = new Event();
-    Item i = new Item();
-    e.setDate(dt);
-    e.setItemId(Integer.parseInt(nextLine[2]));
-    i.setId(e.getItemId());
+    cardinalities.merge(inChunk.counts);
+    popularity.merge(inChunk.popularity);
+  }
+
+  private void processEvent(MappedCsvReader inRow, EventStore inEvents, ItemTable inItems,
+      Cardinalities inCounts, PopularityIndex inPopularity) throws IOException {
+    int vId = inRow.intField(0);
+    long dt = inRow.timestampField(1);
+    int itemId = inRow.intField(2);
 
     // We're handling a click, so just set category
-    if (nextLine.length == 4) {
+    if (inRow.fieldCount() == 4) {
       int catId = 0;
-      if ("S".equals(nextLine[3])) {
+      boolean special = inRow.fieldEquals(3, 'S');
+      if (special) {
         catId = 27;
       } else {
-        catId = Integer.parseInt(nextLine[3]);
+        catId = inRow.intField(3);
+      }
+      int item;
+      if (spill != null) {
+        spill.addClick(vId, dt, itemId, catId, special);
+        item = inEvents.itemIds().encode(itemId);
+      } else {
+        item = inEvents.item(inEvents.addClick(vId, dt, itemId, catId, special));
       }
-      e.setCategoryId(catId);
-      i.setCategoryId(catId);
+      inItems.recordClick(item, catId);
+      inCounts.add(vId, dt, itemId, catId);
+      inPopularity.click(itemId, catId, dt);
     } else {
-      // We're handling a purchase, set price and quantity
-      e.setPrice(Integer.parseInt(nextLine[3]));
-      i.setPrice(e.getPrice());
-      i.setPurchased(true);
-      e.setQuantity(Integer.parseInt(nextLine[4]));
-      if (e.getQuantity() > 1) {
-        i.setMultiPurchase(true);
-      }
-      // Flag session as a buying session if not done already
-      if (!currS.isPurchaser()) {
-        currS.setPurchaser(true);
-      }
-
-      // Lastly, make sure all items in this session are flagged as "seen with purchased"
-      for (Event sessEvent : currS.getEvents()) {
-        Item associatedItem = items.get(sessEvent.getItemId());
-        if (associatedItem != null && !items.get(sessEvent.getItemId()).isSeenWithPurchased()) {
-          associatedItem.setSeenWithPurchased(true);
-        }
+      // We're handling a purchase, set price and quantity. The session's purchaser flag and the
+      // "seen with purchased" items are worked out when the store is sealed.
+      int price = inRow.intField(3);
+      int quantity = inRow.intField(4);
+      int item;
+      if (spill != null) {
+        spill.addPurchase(vId, dt, itemId, price, quantity);
+        item = inEvents.itemIds().encode(itemId);
+      } else {
+        item = inEvents.item(inEvents.addPurchase(vId, dt, itemId, price, quantity));
       }
+      inItems.recordPurchase(item, price, quantity);
+      inCounts.add(vId, dt, itemId, 0);
+      inPopularity.purchase(itemId, dt);
     }
-    putOrUpdate(i);
+  }
 
-    // Add the constructed event to the session
-    currS.add(e);
+  /**
+   * Calls inHandler with the index of every session in {@link #events}. In memory that is all
+   * sessions of the sealed store, when spilling the store is re-filled with one session at a time
+   * (always index 0). Also carries the per-event "seen with purchased" flags over to the items.
+   * 
+   * @return the number of sessions
+   * @throws IOException
+   */
+  private int forEachSession(IntConsumer inHandler) throws IOException {
+    // Sessions come in the order they were first seen (session id order when spilling)
+    if (spill != null) {
+      return spill.forEachSession(events, store -> {
+        markSeenWithPurchased();
+        inHandler.accept(0);
+      });
+    }
+    events.seal();
+    markSeenWithPurchased();
+    for (int s = 0; s < events.sessionCount(); s++) {
+      inHandler.accept(s);
+    }
+    return events.sessionCount();
+  }
+
+  private void markSeenWithPurchased() {
+    for (int e = 0; e < events.size(); e++) {
+      if (events.isBeforePurchase(e)) {
+        items.set(events.item(e), ItemTable.SEEN_WITH_PURCHASED);
+      }
+    }
+  }
+
+  public void output(String inFName) {
+    LOG.info("Creating {} file from data loaded", format);
+    write(shardNames(inFName, 1), this::forEachSession);
   }
 
   /**
-   * Either update an existing item or add a brand new, unseen one.
+   * As {@link #output(String)}, with sessions encoded on inThreads threads and written in the same
+   * order.
    * 
-   * @param inJustReadItem
+   * @param inFName
+   * @param inThreads
    */
-  private void putOrUpdate(Item inJustReadItem) {
-    if (!items.containsKey(inJustReadItem.getId())) {
-      // Simplest case - new item never seen before
-      items.put(inJustReadItem.getId(), inJustReadItem);
-    } else {
-      // We need to evaluate each field to see if we have better data now (promote from "unknown" to
-      // "known")
-      Item currI = items.get(inJustReadItem.getId());
-      if (currI.getCategoryId() == 0 && inJustReadItem.getCategoryId() > 0) {
-        currI.setCategoryId(inJustReadItem.getCategoryId());
+  public void output(String inFName, int inThreads) {
+    output(inFName, inThreads, 1);
+  }
+
+  /**
+   * Writes the sessions to inShards files inFName.part-00000, inFName.part-00001, ... (just inFName
+   * for one shard), each with its own .label file (CSR files hold the session ids themselves), a
+   * session going to the shard its id hashes to.
+   * Sessions are encoded on inThreads threads, within a shard they are in the same order as
+   * {@link #output(String)} writes them.
+   * 
+   * Sessions can only be encoded in parallel when they are all in memory and the features are
+   * labelled without a shared dictionary (VW, or LIBSVM and CSR with {@link #setFeatureHashing(int,
+   * boolean)}), otherwise they are encoded on this thread.
+   * 
+   * @param inFName
+   * @param inThreads
+   * @param inShards
+   */
+  public void output(String inFName, int inThreads, int inShards) {
+    String[] names = shardNames(inFName, inShards);
+    if (inThreads <= 1 || spill != null || !plan.isThreadSafe()) {
+      if (inThreads > 1) {
+        LOG.warn("Writing on one thread, {}", spill != null ? "sessions are spilled to disk"
+            : "feature ids are numbered in order - use feature hashing to write in parallel");
       }
-      if (inJustReadItem.getPrice() > 0 && currI.getPrice() != inJustReadItem.getPrice()) {
-        // int currPrice = currI.getPrice();
-        currI.setPrice(inJustReadItem.getPrice());
+      LOG.info("Creating {} file(s) from data loaded", format);
+      write(names, this::forEachSession);
+      return;
+    }
+    LOG.info("Creating {} file(s) from data loaded on {} threads", format, inThreads);
+    writeParallel(names, inThreads);
+  }
+
+  /**
+   * Computes the features of every session once, into a matrix that any number of outputs can be
+   * written from with {@link #output(FeatureMatrix, String, Format)}, or that can be read in
+   * process. Sessions are encoded on inThreads threads when they are all in memory.
+   * 
+   * @param inThreads
+   * @return a row per session, in the order {@link #output(String)} writes them
+   */
+  public FeatureMatrix features(int inThreads) {
+    FeatureMatrix.Builder rVal = new FeatureMatrix.Builder();
+    LOG.info("Computing features from data loaded on {} thread(s)", inThreads);
+    try (SessionOutput out = SessionOutput.into(rVal, NUM_EVENTS)) {
+      if (inThreads <= 1 || spill != null) {
+        write(out, 1, this::forEachSession);
+      } else {
+        writeParallel(out, 1, inThreads);
       }
-      if (inJustReadItem.isPurchased() && !currI.isPurchased()) {
-        currI.setPurchased(true);
+    } catch (IOException | UncheckedIOException e) {
+      LOG.error("Error computing features", e);
+    }
+    return rVal.build();
+  }
+
+  /**
+   * Writes the sessions of inMatrix to inFName in format inF, exactly as {@link #output(String)}
+   * would have in that format, feature hashing included. The matrix is only read, so one thread
+   * per output can write several outputs of it at the same time.
+   * 
+   * @param inMatrix
+   * @param inFName
+   * @param inF
+   */
+  public void output(FeatureMatrix inMatrix, String inFName, Format inF) {
+    LOG.info("Creating {} file from the feature matrix", inF);
+    FeaturePlan target = hashBits == 0 ? new FeaturePlan(inF, NUM_EVENTS)
+        : FeaturePlan.hashed(inF, NUM_EVENTS, hashBits, hashSigned);
+    LineEncoder enc = new LineEncoder();
+    LineEncoder labels = new LineEncoder(64);
+    long[] progress = {System.currentTimeMillis(), 0L, 0L};
+    try (SessionOutput out = SessionOutput.open(new String[] {inFName}, target, inF,
+        outputBufferSize, outputQueueDepth, syncOnClose)) {
+      for (int r = 0; r < inMatrix.rows(); r++) {
+        int visitorId = inMatrix.sessionId(r);
+        enc.clear();
+        buildStart(enc, inMatrix.label(r) > 0.0f, mode, inF, visitorId);
+        inMatrix.encode(r, target, enc);
+        target.endLine(enc);
+        labels.clear();
+        out.write(0, enc, labels.put(visitorId).put('\n'));
+        logProgress(progress, 1);
+      }
+    } catch (IOException ie) {
+      LOG.error("Error writing file", ie);
+    }
+  }
+
+  /**
+   * Computes the features once (see {@link #features(int)}) and writes each file of inFNames, in
+   * the format it is keyed by, from them, all at the same time.
+   * 
+   * @param inFNames
+   * @param inThreads threads computing the features
+   */
+  public void output(Map<Format, String> inFNames, int inThreads) {
+    FeatureMatrix matrix = features(inThreads);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, inFNames.size()));
+    List<Future<?>> outputs = new ArrayList<>();
+    try {
+      for (Map.Entry<Format, String> f : inFNames.entrySet()) {
+        outputs.add(pool.submit(() -> output(matrix, f.getValue(), f.getKey())));
       }
-      if (inJustReadItem.isMultiPurchase() && !currI.isMultiPurchase()) {
-        currI.setMultiPurchase(true);
+      for (Future<?> o : outputs) {
+        o.get();
       }
+    } catch (ExecutionException ee) {
+      LOG.error("Error writing file", ee.getCause());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interrupted writing files", ie);
+    } finally {
+      pool.shutdownNow();
     }
   }
 
-  public void output(String inFName) {
-    LOG.info("Creating {} file from data loaded", format);
-    long startTime = System.currentTimeMillis();
-    long currTime = startTime;
-    int i = 0;
-    int j = 0;
-
-    try (PrintWriter mainFile = new PrintWriter(new BufferedWriter(new FileWriter(inFName)));
-        PrintWriter labelsFile =
-            new PrintWriter(new BufferedWriter(new FileWriter(inFName + ".label")))) {
-      // We need a separate iterator for buyers
-      for (Map.Entry<Integer, Session> clickerEntry : sessions.entrySet()) {
-        writeSession(clickerEntry, mainFile, format, mode);
-        writeLabel(clickerEntry.getKey(), labelsFile);
-        i++;
-
-        currTime = System.currentTimeMillis();
-        if ((currTime - startTime) > LOG_INTERVAL) {
-          LOG.info("{} sessions processed (rate: {}/sec)", i,
-              (float) ((i - j) / LOG_INTERVAL) * 1_000);
-          startTime = currTime;
-          j = i;
+  /**
+   * Streaming alternative to load() + output() for a clicks file ordered by session id, as the
+   * YOOCHOOSE one is. The buys file need not be (yoochoose-buys.dat is not): a pre-pass reads it
+   * into memory ordered by session id, taking item statistics and co-purchases from it on the way.
+   * Then the clicks file is merge-joined with those buys on session id and each session is written
+   * as soon as it is complete. Purchase-only sessions are written too.
+   * 
+   * Besides the item table and the buys (about 28 bytes each) only one session is held in memory.
+   * The co-occurrence and similar-session indexes, which would take a pre-pass over the clicks file
+   * and memory growing with it, are only built with {@link #setIndexBoundedRuns(boolean)}.
+   * 
+   * Must be used on a fresh, in-memory parser. Stops with an error, and deletes what was written,
+   * if the clicks file turns out not to be ordered by session id.
+   * 
+   * @param inClicksFname
+   * @param inBuysFname
+   * @param inSeparatorChar
+   * @param inFName
+   */
+  public void stream(String inClicksFname, String inBuysFname, char inSeparatorChar,
+      String inFName) {
+    if (spill != null || events.size() > 0) {
+      LOG.error("Streaming needs a fresh in-memory parser");
+      return;
+    }
+    SessionScan scan = newScan(true);
+    SessionBuys buys = loadItemStats(inBuysFname, inSeparatorChar, scan.purchases);
+    if (scan.views != null || scan.sessions != null) {
+      loadCoViews(inClicksFname, inSeparatorChar, scan, buys);
+    }
+    setNeighbourhoods(scan);
+    LOG.info("Streaming {} file from {} and {}", format, inClicksFname, inBuysFname);
+    String[] names = shardNames(inFName, 1);
+    try {
+      write(names, h -> streamSessions(inClicksFname, inSeparatorChar, buys, h));
+    } catch (IllegalStateException ise) {
+      LOG.error("Streaming stopped, deleting {}", inFName, ise);
+      try {
+        for (String name : names) {
+          Files.deleteIfExists(Paths.get(name));
+          Files.deleteIfExists(Paths.get(name + ".label"));
         }
+      } catch (IOException ie) {
+        LOG.error("Error deleting {}", inFName, ie);
       }
-    } catch (IOException e) {
-      LOG.error("Error writing file", e);
     }
   }
 
-  private void writeLabel(Integer inSessionId, PrintWriter out2) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(inSessionId + "\n");
-    out2.write(sb.toString());
+  /**
+   * Pre-pass over a buys file in any order, recording prices, purchase flags, purchase counts by
+   * day and co-purchases (unless inCoPurchases is null), so global item statistics are known
+   * before the first session is written.
+   * 
+   * @return the buys, ordered by session id
+   */
+  private SessionBuys loadItemStats(String inFname, char inSeparatorChar,
+      CoOccurrence.Builder inCoPurchases) {
+    LOG.info("Loading item statistics from {}", inFname);
+    SessionBuys rVal = new SessionBuys();
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar)) {
+      try {
+        while (reader.next()) {
+          int itemId = reader.intField(2);
+          long dt = reader.timestampField(1);
+          int price = reader.intField(3);
+          int quantity = reader.intField(4);
+          items.recordPurchase(events.itemIds().encode(itemId), price, quantity);
+          popularity.purchase(itemId, dt);
+          rVal.add(reader.intField(0), dt, itemId, price, quantity);
+        }
+      } catch (RuntimeException re) {
+        LOG.error("Error at line {} in file", reader.lineNumber(), re);
+        LOG.error("Complete line is: '{}'", reader.line());
+      }
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inFname, ie);
+    }
+    rVal.sort();
+    if (inCoPurchases != null) {
+      for (int b = 0; b < rVal.size; b++) {
+        if (b > 0 && rVal.sessionIds[b] != rVal.sessionIds[b - 1]) {
+          inCoPurchases.endSession();
+        }
+        inCoPurchases.add(rVal.itemIds[b]);
+      }
+      inCoPurchases.endSession();
+    }
+    return rVal;
   }
 
+  /**
+   * The buys of a file in columns, ordered by session id once sorted. Sorting is stable, so a
+   * session's buys keep their file order.
+   */
+  private static class SessionBuys {
+    private int size;
+    private int[] sessionIds = new int[1_024];
+    private long[] timestamps = new long[1_024];
+    private int[] itemIds = new int[1_024];
+    private int[] prices = new int[1_024];
+    private int[] quantities = new int[1_024];
+
+    private void add(int inSessionId, long inTimestamp, int inItemId, int inPrice,
+        int inQuantity) {
+      if (size == sessionIds.length) {
+        sessionIds = Arrays.copyOf(sessionIds, size << 1);
+        timestamps = Arrays.copyOf(timestamps, size << 1);
+        itemIds = Arrays.copyOf(itemIds, size << 1);
+        prices = Arrays.copyOf(prices, size << 1);
+        quantities = Arrays.copyOf(quantities, size << 1);
+      }
+      sessionIds[size] = inSessionId;
+      timestamps[size] = inTimestamp;
+      itemIds[size] = inItemId;
+      prices[size] = inPrice;
+      quantities[size] = inQuantity;
+      size++;
+    }
 
-  private void writeSession(Entry<Integer, Session> entry, PrintWriter out, Format inF, Mode inM) {
-    List<Event> events = entry.getValue().getEvents();
-    events.sort(null);
-
-    StringBuilder sb = new StringBuilder();
-    Event lastE = events.get(events.size() - 1);
+    private void sort() {
+      // Session id in the high word, file position in the low one
+      long[] keys = new long[size];
+      for (int b = 0; b < size; b++) {
+        keys[b] = (long) sessionIds[b] << 32 | b;
+      }
+      Arrays.parallelSort(keys);
+      long[] oldTimestamps = timestamps;
+      int[] oldItemIds = itemIds;
+      int[] oldPrices = prices;
+      int[] oldQuantities = quantities;
+      sessionIds = new int[size];
+      timestamps = new long[size];
+      itemIds = new int[size];
+      prices = new int[size];
+      quantities = new int[size];
+      for (int b = 0; b < size; b++) {
+        int from = (int) keys[b];
+        sessionIds[b] = (int) (keys[b] >> 32);
+        timestamps[b] = oldTimestamps[from];
+        itemIds[b] = oldItemIds[from];
+        prices[b] = oldPrices[from];
+        quantities[b] = oldQuantities[from];
+      }
+    }
 
-    Integer visitorId = entry.getKey();
+    /**
+     * @return whether inSessionId bought anything
+     */
+    private boolean contains(int inSessionId) {
+      return Arrays.binarySearch(sessionIds, 0, size, inSessionId) >= 0;
+    }
+  }
 
-    boolean buyer = false;
-    if (lastE instanceof Purchase) {
-      buyer = true;
+  /**
+   * Pre-pass over a session-ordered clicks file counting co-viewed items and indexing sessions by
+   * the items they clicked, as far as inScan does.
+   */
+  private void loadCoViews(String inFname, char inSeparatorChar, SessionScan inScan,
+      SessionBuys inBuys) {
+    LOG.info("Loading co-viewed items from {}", inFname);
+    try (MappedCsvReader reader = new MappedCsvReader(inFname, inSeparatorChar)) {
+      try {
+        int last = 0;
+        while (reader.next()) {
+          int vId = reader.intField(0);
+          if (vId != last) {
+            inScan.endClicks(last, inBuys.contains(last));
+            last = vId;
+          }
+          inScan.click(reader.intField(2));
+        }
+        inScan.endClicks(last, inBuys.contains(last));
+      } catch (RuntimeException re) {
+        LOG.error("Error at line {} in file", reader.lineNumber(), re);
+        LOG.error("Complete line is: '{}'", reader.line());
+      }
+    } catch (IOException ie) {
+      LOG.error("Error reading {}", inFname, ie);
     }
-    sb.append(buildStart(buyer, inM, inF, visitorId));
+  }
 
-    // Output session-level features
-    sb.append(buildSessionFeatures(inF, events));
+  /**
+   * Merge-joins a session-ordered clicks file with the buys, loading each session into
+   * {@link #events} in turn.
+   * 
+   * @return the number of sessions
+   */
+  private int streamSessions(String inClicksFname, char inSeparatorChar, SessionBuys inBuys,
+      IntConsumer inHandler) throws IOException {
+    int rVal = 0;
+    try (MappedCsvReader clicks = new MappedCsvReader(inClicksFname, inSeparatorChar)) {
+      boolean moreClicks = clicks.next();
+      int b = 0;
+      long last = Long.MIN_VALUE;
+      while (moreClicks || b < inBuys.size) {
+        int s;
+        if (moreClicks && b < inBuys.size) {
+          s = Math.min(clicks.intField(0), inBuys.sessionIds[b]);
+        } else {
+          s = moreClicks ? clicks.intField(0) : inBuys.sessionIds[b];
+        }
+        if (s <= last) {
+          throw new IllegalStateException("Session " + s + " found after session " + last
+              + " - streaming needs the clicks file ordered by session id, use load() instead");
+        }
+        last = s;
 
-    // Now transform and output the events themselves
-    sb.append(buildEvents(inF, events));
+        events.clear();
+        while (moreClicks && clicks.intField(0) == s) {
+          processEvent(clicks, events, items, cardinalities, popularity);
+          moreClicks = clicks.next();
+        }
+        for (; b < inBuys.size && inBuys.sessionIds[b] == s; b++) {
+          // Already counted into the item statistics and popularity index by the pre-pass
+          events.addPurchase(s, inBuys.timestamps[b], inBuys.itemIds[b], inBuys.prices[b],
+              inBuys.quantities[b]);
+          cardinalities.add(s, inBuys.timestamps[b], inBuys.itemIds[b], 0);
+        }
+        events.seal();
+        markSeenWithPurchased();
+        inHandler.accept(0);
+        rVal++;
+      }
+    }
+    return rVal;
+  }
+
+  /**
+   * Source of sessions for {@link #write(String, SessionSource)}.
+   */
+  private interface SessionSource {
+    int forEachSession(IntConsumer inHandler) throws IOException;
+  }
 
-    sb.append("\n");
-    out.write(sb.toString());
+  /**
+   * Writes every session of the source to one of inFNames (by {@link #shard(int, int)}), and its
+   * session id to the matching .label file.
+   */
+  private void write(String[] inFNames, SessionSource inSource) {
+    try (SessionOutput out = openOutput(inFNames)) {
+      write(out, inFNames.length, inSource);
+    } catch (IOException | UncheckedIOException e) {
+      LOG.error("Error writing file", e);
+    }
+  }
 
-    // Write out the session ID as a comment for LIBSVM
-    StringBuilder sb2 = new StringBuilder();
-    sb2.append(visitorId);
+  private void write(SessionOutput inOut, int inShards, SessionSource inSource)
+      throws IOException {
+    long[] progress = {System.currentTimeMillis(), 0L, 0L};
+    inSource.forEachSession(s -> {
+      int visitorId = events.sessionId(s);
+      int shard = shard(visitorId, inShards);
+      try {
+        line.clear();
+        writeSession(s, line, kernel, inOut);
+        labelLine.clear();
+        inOut.write(shard, line, labelLine.put(visitorId).put('\n'));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      logProgress(progress, 1);
+    });
+  }
 
+  /**
+   * Encodes the in-memory sessions in batches of {@link #OUTPUT_BATCH} on inThreads threads, each
+   * with its own kernel, and writes the batches in session order as they complete. A bounded
+   * number of batches are in flight, and their buffers are reused, so encoding runs ahead of the
+   * writer by at most a few batches per thread.
+   */
+  private void writeParallel(String[] inFNames, int inThreads) {
+    try (SessionOutput out = openOutput(inFNames)) {
+      writeParallel(out, inFNames.length, inThreads);
+    } catch (IOException ie) {
+      LOG.error("Error writing file", ie);
+    }
   }
 
-  private StringBuilder buildEvents(Format inF, List<Event> events) {
-    StringBuilder sb = new StringBuilder();
-    int eLimit = NUM_EVENTS;
-    if (events.size() < NUM_EVENTS) {
-      eLimit = events.size();
+  private void writeParallel(SessionOutput inOut, int inShards, int inThreads)
+      throws IOException {
+    events.seal();
+    markSeenWithPurchased();
+    (givenPopularity != null ? givenPopularity : popularity).prepare();
+    int sessions = events.sessionCount();
+    ThreadLocal<SessionKernel> kernels = ThreadLocal.withInitial(() -> new SessionKernel(kernel));
+    ExecutorService pool = Executors.newFixedThreadPool(inThreads);
+    Deque<Batch> free = new ArrayDeque<>();
+    for (int b = 0; b < inThreads * BATCHES_PER_THREAD; b++) {
+      free.add(new Batch(inShards));
     }
-    for (int eventCtr = 0; eventCtr < eLimit; eventCtr++) {
-      Event e = events.get(eventCtr);
-      Event nextE = null;
-      if (eventCtr < events.size() - 1) {
-        nextE = events.get(eventCtr + 1);
+    Deque<Future<Batch>> pending = new ArrayDeque<>();
+    long[] progress = {System.currentTimeMillis(), 0L, 0L};
+
+    try {
+      int next = 0;
+      while (next < sessions || !pending.isEmpty()) {
+        while (next < sessions && !free.isEmpty()) {
+          Batch batch = free.poll();
+          int from = next;
+          int to = Math.min(sessions, next + OUTPUT_BATCH);
+          pending.add(pool.submit(() -> encodeBatch(batch, from, to, kernels.get(), inOut)));
+          next = to;
+        }
+        Batch batch = pending.poll().get();
+        batch.writeTo(inOut);
+        logProgress(progress, batch.sessions);
+        free.add(batch);
       }
+    } catch (ExecutionException ee) {
+      LOG.error("Error writing file", ee.getCause());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interrupted writing file", ie);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 
-      long duration = 100L;
-      if (nextE != null) {
-        duration = calculateDuration(e, nextE);
+  private Batch encodeBatch(Batch inBatch, int inFrom, int inTo, SessionKernel inKernel,
+      SessionOutput inOut) {
+    inBatch.clear();
+    for (int s = inFrom; s < inTo; s++) {
+      int visitorId = events.sessionId(s);
+      int shard = shard(visitorId, inBatch.lines.length);
+      writeSession(s, inBatch.lines[shard], inKernel, inOut);
+      inBatch.labels[shard].put(visitorId).put('\n');
+    }
+    inBatch.sessions = inTo - inFrom;
+    return inBatch;
+  }
+
+  /**
+   * The encoded lines and labels of a batch of sessions, per shard.
+   */
+  private static class Batch {
+    private final LineEncoder[] lines;
+    private final LineEncoder[] labels;
+    private int sessions;
+
+    private Batch(int inShards) {
+      lines = new LineEncoder[inShards];
+      labels = new LineEncoder[inShards];
+      for (int i = 0; i < inShards; i++) {
+        lines[i] = new LineEncoder();
+        labels[i] = new LineEncoder(1 << 12);
       }
+    }
 
-      LocalDateTime ldt = e.getDate();
-      String prefix = "";
-      if (Format.VW.equals(inF)) {
-        sb.append("|Event" + eventCtr + FEAT_SEP);
-      } else {
-        prefix += "Event" + eventCtr + FEAT_SEP;
+    private void clear() {
+      for (int i = 0; i < lines.length; i++) {
+        lines[i].clear();
+        labels[i].clear();
       }
-      append(sb, prefix + "mth", ldt.getMonthValue());
-      append(sb, prefix + "day", ldt.getDayOfMonth());
-      append(sb, prefix + "hour", ldt.getHour());
-      append(sb, prefix + "minute", ldt.getMinute());
-      append(sb, prefix + "second", ldt.getSecond());
-      append(sb, prefix + e.getItemId() + "-itemId", 1);
-      append(sb, prefix + e.getItemId() + "item-was-purchased",
-          wasPurchased(e.getItemId()) ? 1 : 0);
-      append(sb, prefix + e.getItemId() + "item-was-multi-purchase",
-          wasMultiPurchase(e.getItemId()) ? 1 : 0);
-      append(sb, prefix + e.getItemId() + "item-price", itemPrice(e.getItemId()));
-      append(sb, prefix + "dwellTime", duration);
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        append(sb, prefix + c.getCategoryId() + "-catId", 1);
-        append(sb, prefix + "special", c.isSpecial() ? 1 : 0);
-        append(sb, prefix + "category-simplified", simplifyCategory(c));
+    }
+
+    private void writeTo(SessionOutput inOut) throws IOException {
+      for (int i = 0; i < lines.length; i++) {
+        inOut.write(i, lines[i], labels[i]);
       }
     }
-    return sb;
   }
 
-  private void append(StringBuilder sb, String inL, Object inValue) {
-    sb.append(FEAT_SEP + mapLabel(inL) + FEAT_VAL_SEP + inValue.toString());
+  private SessionOutput openOutput(String[] inFNames) throws IOException {
+    return SessionOutput.open(inFNames, plan, format, outputBufferSize, outputQueueDepth,
+        syncOnClose);
   }
 
-  private int itemPrice(int itemId) {
-    int price = 0;
-    if (items.containsKey(itemId)) {
-      price = items.get(itemId).getPrice();
-    }
-    return price;
+  /**
+   * @return the shard a session is written to, spreading runs of session ids evenly
+   */
+  private static int shard(int inSessionId, int inShards) {
+    return inShards == 1 ? 0 : Math.floorMod(IntHash.mix(inSessionId), inShards);
   }
 
-  private boolean wasMultiPurchase(int itemId) {
-    Item i = items.get(itemId);
-    return i.isMultiPurchase();
+  /**
+   * @return inFName itself for one shard, else inFName.part-00000, inFName.part-00001, ...
+   */
+  private static String[] shardNames(String inFName, int inShards) {
+    if (inShards <= 1) {
+      return new String[] {inFName};
+    }
+    String[] rVal = new String[inShards];
+    for (int i = 0; i < inShards; i++) {
+      rVal[i] = String.format("%s.part-%05d", inFName, i);
+    }
+    return rVal;
   }
 
-  private boolean wasPurchased(int itemId) {
-    Item i = items.get(itemId);
-    if (i == null) {
-      LOG.info("{} not in items registry", itemId);
+  /**
+   * Counts inSessions more sessions written, logging the rate every {@link #LOG_INTERVAL}.
+   * inProgress holds the time and count as of the last log, and the count so far.
+   */
+  private void logProgress(long[] inProgress, int inSessions) {
+    long i = inProgress[1] += inSessions;
+    long currTime = System.currentTimeMillis();
+    if ((currTime - inProgress[0]) > LOG_INTERVAL) {
+      LOG.info("{} sessions processed (rate: {}/sec)", i,
+          (float) ((i - inProgress[2]) / LOG_INTERVAL) * 1_000);
+      inProgress[0] = currTime;
+      inProgress[2] = i;
     }
-    return i.isPurchased();
   }
 
+  /**
+   * Encodes a session's line onto inOut, in the plan and format of inTarget.
+   */
+  private void writeSession(int inSession, LineEncoder inOut, SessionKernel inKernel,
+      SessionOutput inTarget) {
+    int from = events.start(inSession);
+    int to = events.end(inSession);
+
+    int visitorId = events.sessionId(inSession);
 
-  public void analyse() {
-    LOG.info("{} sessions loaded", sessions.size());
-    long itemCount = items.size();
-    LOG.info("{} items loaded", items.size());
-    long pItems = items.values().parallelStream().filter(i -> i.isPurchased()).count();
-    LOG.info("{} purchased items", pItems);
+    boolean buyer = events.isPurchaser(inSession);
+    buildStart(inOut, buyer, mode, inTarget.format(), visitorId);
 
-    long unpItems = itemCount - pItems;
-    LOG.info("{} unpurchased items", unpItems);
+    // Output session-level features
+    buildSessionFeatures(inOut, inTarget.plan(), inKernel, from, to);
 
-    long mpItems = items.values().parallelStream().filter(i -> i.isMultiPurchase()).count();
-    LOG.info("{} multi-purchase items", mpItems);
+    // Now transform and output the events themselves
+    buildEvents(inOut, inTarget.plan(), from, to);
 
-    int minPrice = items.values().parallelStream().mapToInt(i -> i.getPrice()).min().getAsInt();
-    LOG.info("item min price: {}", minPrice);
-    int maxPrice = items.values().parallelStream().mapToInt(i -> i.getPrice()).max().getAsInt();
-    LOG.info("item max price: {}", maxPrice);
-    double avgPrice =
-        items.values().parallelStream().mapToInt(i -> i.getPrice()).average().getAsDouble();
-    LOG.info("item avg price: {}", avgPrice);
+    inTarget.plan().endLine(inOut);
+  }
 
-    Map<Integer, List<Item>> grouped = items.values().parallelStream()
-        .collect(Collectors.groupingByConcurrent(i -> range(i.getPrice())));
-    for (Map.Entry<Integer, List<Item>> entry : grouped.entrySet()) {
-      int minPrice2 = entry.getValue().stream().mapToInt(i -> i.getPrice()).min().getAsInt();
-      int maxPrice2 = entry.getValue().stream().mapToInt(i -> i.getPrice()).max().getAsInt();
-      LOG.info("{}:{} (min={}, max={})", entry.getKey(), entry.getValue().size(), minPrice2,
-          maxPrice2);
-    }
+  private void buildEvents(LineEncoder enc, FeaturePlan inPlan, int from, int to) {
+    int eLimit = Math.min(from + NUM_EVENTS, to);
+    for (int e = from; e < eLimit; e++) {
+      int eventCtr = e - from;
 
-    long swpItems = items.values().parallelStream().filter(i -> i.isSeenWithPurchased()).count();
-    LOG.info("{} seen with purchased items", swpItems);
+      long duration = 100L;
+      if (e < to - 1) {
+        duration = calculateDuration(events.timestamp(e), events.timestamp(e + 1));
+      }
 
-    long itemsWithPricesCount =
-        items.values().parallelStream().filter(i -> i.getPrice() > 0).count();
-    LOG.info("{} items with prices", itemsWithPricesCount);
+      long ts = events.timestamp(e);
+      int item = events.item(e);
+      int itemId = events.itemIds().decode(item);
+      inPlan.namespace(enc, eventCtr);
+      inPlan.event(enc, eventCtr, EventFeature.MONTH, Timestamps.month(ts));
+      inPlan.event(enc, eventCtr, EventFeature.DAY, Timestamps.dayOfMonth(ts));
+      inPlan.event(enc, eventCtr, EventFeature.HOUR, Timestamps.hour(ts));
+      inPlan.event(enc, eventCtr, EventFeature.MINUTE, Timestamps.minute(ts));
+      inPlan.event(enc, eventCtr, EventFeature.SECOND, Timestamps.second(ts));
+      inPlan.keyed(enc, eventCtr, KeyedFeature.ITEM, itemId, 1);
+      inPlan.keyed(enc, eventCtr, KeyedFeature.ITEM_PURCHASED, itemId,
+          items.isPurchased(item) ? 1 : 0);
+      inPlan.keyed(enc, eventCtr, KeyedFeature.ITEM_MULTI_PURCHASE, itemId,
+          items.isMultiPurchase(item) ? 1 : 0);
+      inPlan.keyed(enc, eventCtr, KeyedFeature.ITEM_PRICE, itemId, items.price(item));
+      inPlan.event(enc, eventCtr, EventFeature.DWELL_TIME, duration);
+      if (!events.isPurchase(e)) {
+        int categoryId = events.categoryId(e);
+        inPlan.keyed(enc, eventCtr, KeyedFeature.CATEGORY, categoryId, 1);
+        inPlan.event(enc, eventCtr, EventFeature.SPECIAL, events.isSpecial(e) ? 1 : 0);
+        inPlan.event(enc, eventCtr, EventFeature.CATEGORY_SIMPLIFIED,
+            simplifyCategory(categoryId, events.isSpecial(e)));
+      }
+    }
   }
 
-  private int range(int inPrice) {
-    if (inPrice == 0){
-      return 0;
+  /**
+   * Logs and returns statistics over the loaded sessions and items. The item statistics are
+   * computed in one parallel pass over the item table, dwell time and lifespan distributions are
+   * sketched on the pass over the sessions (see {@link #dwellTimes()} and {@link #lifespans()}).
+   * 
+   * @return the item statistics, null if spilled events could not be read
+   */
+  public ItemStats analyse() {
+    dwellTimes = new QuantileSketch();
+    lifespans = new QuantileSketch();
+    SessionScan spilled = newScan(true);
+    try {
+      LOG.info("{} sessions loaded", forEachSession(s -> {
+        int from = events.start(s);
+        int to = events.end(s);
+        for (int e = from; e < to - 1; e++) {
+          dwellTimes.add(calculateDuration(events.timestamp(e), events.timestamp(e + 1)));
+        }
+        lifespans.add(calculateDuration(events.timestamp(from), events.timestamp(to - 1)));
+        if (spill != null) {
+          spilled.add(events, s);
+        }
+      }));
+    } catch (IOException ie) {
+      LOG.error("Error reading spilled events", ie);
+      return null;
     }
-    
-    int[] wayPoints = {1,100,500,1_000,2_000,5_000,10_000,50_000,100_000,350_000};
-    
-    for (int i = 0; i<wayPoints.length;i++ ){
-      if (inPrice > wayPoints[i] && inPrice <= wayPoints[i + 1]){
-        return ++i;
+    // With all sessions in memory the pairs and signatures can be worked out in parallel
+    setNeighbourhoods(spill != null ? spilled
+        : IntStream.range(0, events.sessionCount()).parallel().collect(() -> newScan(false),
+            (c, s) -> c.add(events, s), SessionScan::merge));
+    ItemStats stats = IntStream.range(0, items.size()).parallel().collect(ItemStats::new,
+        (st, i) -> st.add(items, i), ItemStats::merge);
+    LOG.info("{} items loaded", stats.items());
+    LOG.info("{} purchased items", stats.purchased());
+    LOG.info("{} unpurchased items", stats.unpurchased());
+    LOG.info("{} multi-purchase items", stats.multiPurchase());
+    LOG.info("item min price: {}", stats.minPrice());
+    LOG.info("item max price: {}", stats.maxPrice());
+    LOG.info("item avg price: {}", stats.avgPrice());
+    for (int r = 0; r < ItemStats.RANGES; r++) {
+      if (stats.rangeCount(r) > 0) {
+        LOG.info("{}:{} (min={}, max={})", r, stats.rangeCount(r), stats.rangeMinPrice(r),
+            stats.rangeMaxPrice(r));
       }
     }
-    //TODO make better
-    LOG.info("AAAAGGGGGGGGGGGGHHHHHHHHHHHHHHHHHHHHHHHHHHHH");
-    return -1;
+    LOG.info("{} seen with purchased items", stats.seenWithPurchased());
+    LOG.info("{} items with prices", stats.withPrice());
+    LOG.info("price deciles: {}", Arrays.toString(stats.prices().boundaries(10)));
+    LOG.info("dwell time deciles: {}", Arrays.toString(dwellTimes.boundaries(10)));
+    LOG.info("lifespan deciles: {}", Arrays.toString(lifespans.boundaries(10)));
+    cardinalities.log(LOG);
+    return stats;
   }
 
   /**
-   * Maps all string inputs into a number space for LIBSVM format. A mapping is used consistently
-   * within a run, but is not guaranteed to be the same across multiple runs.
-   * 
-   * @param inL
-   * @return
+   * @return a scan for the indexes not given by another run, in an out-of-core or streaming run
+   *         only if asked for
    */
-  private String mapLabel(String inL) {
-    switch (format) {
-      case VW:
-        return inL;
-      case LIBSVM:
-        if (!labelMappings.containsKey(inL)) {
-          labelMappings.put(inL, labelCounter++);
+  private SessionScan newScan(boolean inBounded) {
+    boolean build = !inBounded || indexBoundedRuns;
+    return new SessionScan(build && !givenCoOccurrence, build && !givenSimilarSessions);
+  }
+
+  /**
+   * Co-view and co-purchase pair counts and session signatures from one pass over the sessions,
+   * mergeable across threads. Either can be left out.
+   */
+  private static class SessionScan {
+    private final CoOccurrence.Builder views;
+    private final CoOccurrence.Builder purchases;
+    private final MinHashIndex.Builder sessions;
+
+    private SessionScan(boolean inPairs, boolean inSignatures) {
+      views = inPairs ? new CoOccurrence.Builder() : null;
+      purchases = inPairs ? new CoOccurrence.Builder() : null;
+      sessions = inSignatures ? new MinHashIndex.Builder() : null;
+    }
+
+    private void add(EventStore inEvents, int inSession) {
+      if (views == null && sessions == null) {
+        return;
+      }
+      for (int e = inEvents.start(inSession); e < inEvents.end(inSession); e++) {
+        if (!inEvents.isPurchase(e)) {
+          click(inEvents.itemId(e));
+        } else if (purchases != null) {
+          purchases.add(inEvents.itemId(e));
         }
-        return labelMappings.get(inL).toString();
-      default:
-        LOG.error("Unsupported format {} requested for {} label", format, inL);
-        return "";
+      }
+      endClicks(inEvents.sessionId(inSession), inEvents.isPurchaser(inSession));
+      if (purchases != null) {
+        purchases.endSession();
+      }
+    }
+
+    private void click(int inItemId) {
+      if (views != null) {
+        views.add(inItemId);
+      }
+      if (sessions != null) {
+        sessions.add(inItemId);
+      }
+    }
+
+    private void endClicks(int inSessionId, boolean inPurchaser) {
+      if (views != null) {
+        views.endSession();
+      }
+      if (sessions != null) {
+        sessions.endSession(inSessionId, inPurchaser);
+      }
+    }
+
+    private void merge(SessionScan inOther) {
+      if (views != null) {
+        views.merge(inOther.views);
+        purchases.merge(inOther.purchases);
+      }
+      if (sessions != null) {
+        sessions.merge(inOther.sessions);
+      }
+    }
+  }
+
+  /**
+   * Builds the indexes scanned, the others are left as another run gave them or else null.
+   */
+  private void setNeighbourhoods(SessionScan inScan) {
+    if (inScan.views != null) {
+      coViews = inScan.views.build(NEIGHBOURS);
+      coPurchases = inScan.purchases.build(NEIGHBOURS);
+      LOG.info("{} co-viewed pairs over {} items, {} co-purchased pairs over {} items",
+          inScan.views.pairs(), coViews.rows(), inScan.purchases.pairs(), coPurchases.rows());
+      kernel.setCoOccurrence(coViews, coPurchases);
+    } else if (!givenCoOccurrence) {
+      coViews = null;
+      coPurchases = null;
+      LOG.info("No co-occurrence indexes, coViewLinks and coPurchaseLinks are 0");
+      kernel.setCoOccurrence(null, null);
+    }
+    if (inScan.sessions != null) {
+      similarSessions = inScan.sessions.build();
+      LOG.info("{} sessions indexed by clicked items", similarSessions.size());
+    } else if (!givenSimilarSessions) {
+      similarSessions = null;
+      LOG.info("No similar-session index, similarSessions and similarPurchaseRate are 0");
     }
+    kernel.setSimilarSessions(similarSessions);
+  }
+
+  /**
+   * @return the distribution of seconds between consecutive events, as of the last
+   *         {@link #analyse()}
+   */
+  public QuantileSketch dwellTimes() {
+    return dwellTimes;
+  }
+
+  /**
+   * @return the distribution of session lifespans in seconds, as of the last {@link #analyse()}
+   */
+  public QuantileSketch lifespans() {
+    return lifespans;
+  }
+
+  /**
+   * @return approximate distinct session, item and category counts of the events read so far
+   */
+  public Cardinalities cardinalities() {
+    return cardinalities;
+  }
+
+  /**
+   * @return the top co-viewed neighbours per item, as of the last {@link #analyse()}, null if not
+   *         built (see {@link #setIndexBoundedRuns(boolean)})
+   */
+  public CoOccurrence coViews() {
+    return coViews;
+  }
+
+  /**
+   * @return the top co-purchased neighbours per item, as of the last {@link #analyse()}, null if
+   *         not built (see {@link #setIndexBoundedRuns(boolean)})
+   */
+  public CoOccurrence coPurchases() {
+    return coPurchases;
+  }
+
+  /**
+   * @return sessions by the items they clicked, as of the last {@link #analyse()}, null if not
+   *         built (see {@link #setIndexBoundedRuns(boolean)})
+   */
+  public MinHashIndex similarSessions() {
+    return similarSessions;
+  }
+
+  /**
+   * @return item and category counts by day / hour of the events read so far
+   */
+  public PopularityIndex popularity() {
+    return popularity;
   }
 
   /**
    * Simplifies event categories into 4 simple buckets - brand, 1 - 12, special and not present
    * 
-   * @param inC
+   * @param categoryId
+   * @param isSpecial
    * @return
    */
-  private int simplifyCategory(Click inC) {
-    int categoryId = inC.getCategoryId();
+  private int simplifyCategory(int categoryId, boolean isSpecial) {
     if (categoryId == 0) {
       // Data not present
       return 1;
     } else if (categoryId < 12 && categoryId > 0) {
       // One of 12
       return 2;
-    } else if (inC.isSpecial()) {
+    } else if (isSpecial) {
       // Special
       return 3;
     } else {
@@ -460,17 +1325,12 @@ public class YoochooseParser2 {
     }
   }
 
-  private long calculateDuration(Event e1, Event e2) {
-    if (e1 == null || e2 == null) {
-      return 0l;
-    }
-    LocalDateTime ldt1 = e1.getDate();
-    LocalDateTime ldt2 = e2.getDate();
-    if (ldt1 == null || ldt2 == null) {
+  private long calculateDuration(long ts1, long ts2) {
+    if (ts1 == Timestamps.NONE || ts2 == Timestamps.NONE) {
       return 0L;
     }
 
-    return ldt1.until(ldt2, ChronoUnit.SECONDS);
+    return Timestamps.secondsBetween(ts1, ts2);
   }
 
   /**
@@ -479,148 +1339,95 @@ public class YoochooseParser2 {
    * optional as (a) LIBSVM format does not support tags as VW does (xgboost errors and fails to
    * parse), and for test files for both we don't know the labels for sessions.
    * 
+   * @param enc
    * @param isBuyer
    * @param inM
    * @param inF
    * @param inVisitorId
-   * @return
    */
-  private String buildStart(boolean isBuyer, Mode inM, Format inF, Integer inVisitorId) {
+  private void buildStart(LineEncoder enc, boolean isBuyer, Mode inM, Format inF,
+      int inVisitorId) {
     String label = isBuyer ? BUYER_LABEL : CLICKER_LABEL;
     switch (inF) {
       case VW:
         if (Mode.TRAIN.equals(inM)) {
           // Label [Importance] [Base] ['Tag]
-          return label + " 1.0 '" + inVisitorId + VW_DELIMITER;
+          enc.put(label).put(" 1.0 '").put(inVisitorId).put(VW_DELIMITER);
         } else {
-          return "'" + inVisitorId + VW_DELIMITER;
+          enc.put('\'').put(inVisitorId).put(VW_DELIMITER);
         }
+        break;
       case LIBSVM:
-        return label + FEAT_SEP;
+        enc.put(label).put(FEAT_SEP);
+        break;
+      case CSR:
+        CsrWriter.startRow(enc, inVisitorId, isBuyer ? 1.0f : 0.0f);
+        break;
       default:
-        return "";
+        break;
     }
   }
 
-  private StringBuilder buildSessionFeatures(Format inF, List<Event> events) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(mapLabel("AggregateFeatures numClicks") + FEAT_VAL_SEP + events.size() + FEAT_SEP
-        + mapLabel("lifespan") + FEAT_VAL_SEP
-        + calculateDuration(events.get(0), events.get(events.size() - 1)));
-
-    LocalDateTime ldt1 = events.get(0).getDate();
-    LocalDateTime ldt2 = events.get(events.size() - 1).getDate();
+  private void buildSessionFeatures(LineEncoder enc, FeaturePlan inPlan, SessionKernel inKernel,
+      int from, int to) {
+    long ts1 = events.timestamp(from);
+    long ts2 = events.timestamp(to - 1);
+    inPlan.first(enc, SessionFeature.NUM_CLICKS, to - from);
+    inPlan.session(enc, SessionFeature.LIFESPAN, calculateDuration(ts1, ts2));
 
     // Now add in date / time features that span the session
-    append(sb, "sMonth", ldt1.getMonthValue());
-    append(sb, "sDay", ldt1.getDayOfMonth());
-    append(sb, "sWeekDay", ldt1.getDayOfWeek().getValue());
-    append(sb, "sHour", ldt1.getHour());
-    append(sb, "sMin", ldt1.getMinute());
-    append(sb, "sSec", ldt1.getSecond());
-
-    append(sb, "eMonth", ldt2.getMonthValue());
-    append(sb, "eDay", ldt2.getDayOfMonth());
-    append(sb, "eWeekDay", ldt2.getDayOfWeek().getValue());
-    append(sb, "eHour", ldt2.getHour());
-    append(sb, "eMin", ldt2.getMinute());
-    append(sb, "eSec", ldt2.getSecond());
+    inPlan.session(enc, SessionFeature.START_MONTH, Timestamps.month(ts1));
+    inPlan.session(enc, SessionFeature.START_DAY, Timestamps.dayOfMonth(ts1));
+    inPlan.session(enc, SessionFeature.START_WEEKDAY, Timestamps.dayOfWeek(ts1));
+    inPlan.session(enc, SessionFeature.START_HOUR, Timestamps.hour(ts1));
+    inPlan.session(enc, SessionFeature.START_MINUTE, Timestamps.minute(ts1));
+    inPlan.session(enc, SessionFeature.START_SECOND, Timestamps.second(ts1));
+
+    inPlan.session(enc, SessionFeature.END_MONTH, Timestamps.month(ts2));
+    inPlan.session(enc, SessionFeature.END_DAY, Timestamps.dayOfMonth(ts2));
+    inPlan.session(enc, SessionFeature.END_WEEKDAY, Timestamps.dayOfWeek(ts2));
+    inPlan.session(enc, SessionFeature.END_HOUR, Timestamps.hour(ts2));
+    inPlan.session(enc, SessionFeature.END_MINUTE, Timestamps.minute(ts2));
+    inPlan.session(enc, SessionFeature.END_SECOND, Timestamps.second(ts2));
+
+    // All remaining session aggregates come from one pass over the events
+    inKernel.reset(ts1);
+    for (int e = from; e < to; e++) {
+      if (events.isPurchase(e)) {
+        inKernel.purchase(events.itemId(e));
+      } else {
+        inKernel.click(events.itemId(e), events.categoryId(e));
+      }
+    }
 
     // Now add in # unique items and categories
-    append(sb, "numItems", getUniqueItems(events));
-    append(sb, "numCategories", getUniqueCategories(events));
+    inPlan.session(enc, SessionFeature.NUM_ITEMS, inKernel.uniqueItems());
+    inPlan.session(enc, SessionFeature.NUM_CATEGORIES, inKernel.uniqueCategories());
 
 
     // Rough approximation for popular, purchased items
-    append(sb, "viewedPopularItems", didViewPopular(events, mostPopularItems) ? 1.0 : 0.0);
+    inPlan.session(enc, SessionFeature.VIEWED_POPULAR_ITEMS,
+        inKernel.viewedPopularItem() ? 1.0 : 0.0);
 
     // Rough approximation for popular, purchased categories
-    append(sb, "viewedPopularCats", didViewPopular(events, mostPopularCategories) ? 1.0 : 0.0);
+    inPlan.session(enc, SessionFeature.VIEWED_POPULAR_CATS,
+        inKernel.viewedPopularCategory() ? 1.0 : 0.0);
 
     // Rough approximation for content similarity by category
-    append(sb, "catSimilarity", prevalantCategory(events));
+    inPlan.session(enc, SessionFeature.CAT_SIMILARITY, inKernel.dominantCategory());
 
-    return sb;
-  }
+    // Purchases of the session's items in the days before it started, nothing from its own day
+    inPlan.session(enc, SessionFeature.RECENT_PURCHASES, inKernel.recentPurchases());
 
-  private int getUniqueCategories(List<Event> events) {
-    for (Event e : events) {
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        int x = c.getCategoryId();
-        uniques.add(x);
-      }
-    }
-    int rVal = uniques.size();
-    uniques.clear();
-    return rVal;
-  }
+    // Links between the clicked items through their top co-viewed / co-purchased neighbours
+    inPlan.session(enc, SessionFeature.CO_VIEW_LINKS, inKernel.coViewLinks());
+    inPlan.session(enc, SessionFeature.CO_PURCHASE_LINKS, inKernel.coPurchaseLinks());
 
-  private int getUniqueItems(List<Event> events) {
-    for (Event e : events) {
-      int x = e.getItemId();
-      uniques.add(x);
-    }
-    int rVal = uniques.size();
-    uniques.clear();
-    return rVal;
-  }
-
-  /**
-   * Returns the category seen most often in a session.
-   * 
-   * @param events
-   * @return
-   */
-  private int prevalantCategory(List<Event> events) {
-    int rVal = 0;
-    similar.clear();
-    for (Event e : events) {
-      if (e instanceof Click) {
-        Click c = (Click) e;
-        int quantity = 1;
-        if (similar.containsKey(c.getCategoryId())) {
-          quantity = similar.get(c.getCategoryId()) + 1;
-        }
-        similar.put(c.getCategoryId(), quantity);
-      }
-
-      Map<Integer, Integer> sorted = sortByValue(Collections.reverseOrder(), 1_000, similar);
-      for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
-        // This will be the highest frequency of category
-        return entry.getValue();
-      }
-    }
-    return rVal;
-  }
-
-  private boolean didViewPopular(List<Event> events, Map<Integer, Integer> inMostPopular) {
-    for (Event e : events) {
-      if (inMostPopular.containsValue(e.getItemId())) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private Map<Integer, Integer> sortByValue(Comparator<Integer> inC, int inLimit,
-      Map<Integer, Integer> inSrc) {
-    // Sort the map..
-    Map<Integer, Integer> sorted = new TreeMap<>(inC);
-    for (Map.Entry<Integer, Integer> e : inSrc.entrySet()) {
-      // We deliberately swap the ks and vs here
-      // as we now want to sort by frequency and not unique ID anymore
-      sorted.put(e.getValue(), e.getKey());
-    }
-    // Now we remove anything after the limit
-    Map<Integer, Integer> rVal = new TreeMap<>(inC);
-    for (Map.Entry<Integer, Integer> e : sorted.entrySet()) {
-      if (inLimit <= 0) {
-        break;
-      }
-      rVal.put(e.getKey(), e.getValue());
-      inLimit--;
-    }
-    return rVal;
+    // How often sessions that clicked similar items ended in a purchase
+    inKernel.findSimilar(events.sessionId(events.session(from)));
+    int similar = inKernel.similarSessions();
+    inPlan.session(enc, SessionFeature.SIMILAR_SESSIONS, similar);
+    inPlan.session(enc, SessionFeature.SIMILAR_PURCHASE_RATE,
+        similar == 0 ? 0.0f : (float) inKernel.similarPurchasers() / similar);
   }
 }
@@ -0,0 +1,55 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link AsyncChannelWriter}.
+ */
+public class AsyncChannelWriterTest {
+
+  @Test
+  public void filesHoldWhatWasWrittenInOrder() throws IOException {
+    File dir = Files.createTempDirectory("async-writer").toFile();
+    String[] names = {new File(dir, "a").getPath(), new File(dir, "b").getPath()};
+    ByteArrayOutputStream[] expected = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+    Random r = new Random(3);
+    // Small buffers and one queue slot, so the writer swaps buffers and blocks a lot
+    try (AsyncChannelWriter out = new AsyncChannelWriter(names, 64, 1, true)) {
+      assertEquals(2, out.files());
+      LineEncoder line = new LineEncoder();
+      for (int i = 0; i < 2_000; i++) {
+        int file = r.nextInt(2);
+        line.clear();
+        // Some chunks bigger than a buffer
+        int n = r.nextInt(i % 50 == 0 ? 300 : 20);
+        for (int j = 0; j < n; j++) {
+          line.put((char) ('a' + r.nextInt(26)));
+        }
+        ByteBuffer chunk = line.buffer();
+        expected[file].write(line.toString().getBytes("US-ASCII"));
+        out.write(file, chunk);
+        assertEquals(chunk.limit(), chunk.position());
+      }
+    }
+    for (int i = 0; i < names.length; i++) {
+      assertArrayEquals(expected[i].toByteArray(), Files.readAllBytes(new File(names[i]).toPath()));
+      new File(names[i]).delete();
+    }
+    dir.delete();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsAnEmptyQueue() throws IOException {
+    new AsyncChannelWriter(new String[0], 64, 0, false);
+  }
+}
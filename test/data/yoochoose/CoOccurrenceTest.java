@@ -0,0 +1,85 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link CoOccurrence}, built on two threads' worth of builders and checked against
+ * counts from a HashMap.
+ */
+public class CoOccurrenceTest {
+
+  @Test
+  public void topNeighboursMatchBruteForce() {
+    Random r = new Random(17);
+    Map<Integer, Map<Integer, Integer>> counts = new HashMap<>();
+    CoOccurrence.Builder first = new CoOccurrence.Builder();
+    CoOccurrence.Builder second = new CoOccurrence.Builder();
+    for (int s = 0; s < 3_000; s++) {
+      CoOccurrence.Builder b = s % 2 == 0 ? first : second;
+      List<Integer> distinct = new ArrayList<>();
+      int length = r.nextInt(8);
+      for (int e = 0; e < length; e++) {
+        int item = 1_000 + r.nextInt(60);
+        b.add(item);
+        if (!distinct.contains(item)) {
+          distinct.add(item);
+        }
+      }
+      b.endSession();
+      for (int a : distinct) {
+        for (int c : distinct) {
+          if (a != c) {
+            counts.computeIfAbsent(a, k -> new HashMap<>()).merge(c, 1, Integer::sum);
+          }
+        }
+      }
+    }
+    first.merge(second);
+    CoOccurrence m = first.build(5);
+    assertEquals(counts.size(), m.rows());
+    for (Map.Entry<Integer, Map<Integer, Integer>> e : counts.entrySet()) {
+      int[] expected = e.getValue().entrySet().stream()
+          .sorted(Comparator.<Map.Entry<Integer, Integer>>comparingInt(x -> -x.getValue())
+              .thenComparingInt(Map.Entry::getKey))
+          .limit(5).mapToInt(Map.Entry::getKey).toArray();
+      int r0 = m.row(e.getKey());
+      assertEquals(e.getKey().intValue(), m.itemId(r0));
+      int[] actual = new int[m.end(r0) - m.start(r0)];
+      for (int s = m.start(r0); s < m.end(r0); s++) {
+        actual[s - m.start(r0)] = m.neighbour(s);
+        assertEquals(e.getValue().get(m.neighbour(s)).intValue(), m.weight(s));
+        assertEquals(m.weight(s), m.weight(e.getKey(), m.neighbour(s)));
+      }
+      assertArrayEquals(e.getKey() + ": " + Arrays.toString(actual), expected, actual);
+    }
+    assertEquals(-1, m.row(7));
+    assertEquals(0, m.weight(7, 1_000));
+  }
+
+  @Test
+  public void longSessionsAreCapped() {
+    CoOccurrence.Builder b = new CoOccurrence.Builder();
+    for (int i = 1; i <= CoOccurrence.MAX_SESSION_ITEMS + 10; i++) {
+      b.add(i);
+      b.add(i);
+    }
+    b.endSession();
+    int n = CoOccurrence.MAX_SESSION_ITEMS;
+    assertEquals(n * (n - 1) / 2, b.pairs());
+    CoOccurrence m = b.build(3);
+    assertEquals(n, m.rows());
+    assertEquals(3 * n, m.size());
+    assertEquals(-1, m.row(n + 1));
+  }
+}
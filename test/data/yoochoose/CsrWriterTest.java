@@ -0,0 +1,83 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link CsrWriter}.
+ */
+public class CsrWriterTest {
+
+  @Test
+  public void writesAlignedLittleEndianArrays() throws IOException {
+    File f = File.createTempFile("csr", ".bin");
+    // Tiny buffers, so rows are split across them
+    try (CsrWriter out = new CsrWriter(f.getPath(), 16, 1, true)) {
+      LineEncoder rows = new LineEncoder();
+      CsrWriter.startRow(rows, 11, 1.0f);
+      CsrWriter.feature(rows, 4, 2.5f);
+      CsrWriter.feature(rows, 0, -1.0f);
+      // Left out, though it still widens the matrix
+      CsrWriter.feature(rows, 9, 0.0f);
+      CsrWriter.endRow(rows);
+      // An empty row
+      CsrWriter.startRow(rows, 12, 0.0f);
+      CsrWriter.endRow(rows);
+      out.write(rows);
+      rows.clear();
+      CsrWriter.startRow(rows, -3, 0.0f);
+      // A brand's category id, which a float would round to 2000000000
+      CsrWriter.category(rows, 2_000_000_003);
+      CsrWriter.feature(rows, 2, 3.0f);
+      CsrWriter.endRow(rows);
+      out.write(rows);
+      assertEquals(3, out.rows());
+      out.setColumns(5);
+    }
+
+    ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals('Y', b.get(0));
+    assertEquals('R', b.get(3));
+    assertEquals(CsrWriter.VERSION, b.getInt(4));
+    assertEquals(3L, b.getLong(8));
+    assertEquals(10L, b.getLong(16));
+    assertEquals(3L, b.getLong(24));
+    long[] starts = new long[6];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = b.getLong(32 + 8 * i);
+      assertEquals(0, starts[i] % 8);
+    }
+    assertEquals(CsrWriter.HEADER_SIZE, starts[0]);
+
+    int[] indices = {4, 0, 2};
+    float[] values = {2.5f, -1.0f, 3.0f};
+    for (int i = 0; i < 3; i++) {
+      assertEquals(indices[i], b.getInt((int) starts[0] + 4 * i));
+      assertEquals(values[i], b.getFloat((int) starts[1] + 4 * i), 0.0f);
+    }
+    long[] offsets = {0, 2, 2, 3};
+    for (int r = 0; r < offsets.length; r++) {
+      assertEquals(offsets[r], b.getLong((int) starts[2] + 8 * r));
+    }
+    float[] labels = {1.0f, 0.0f, 0.0f};
+    int[] sessions = {11, 12, -3};
+    int[] categories = {0, 0, 2_000_000_003};
+    for (int r = 0; r < 3; r++) {
+      assertEquals(labels[r], b.getFloat((int) starts[3] + 4 * r), 0.0f);
+      assertEquals(sessions[r], b.getInt((int) starts[4] + 4 * r));
+      assertEquals(categories[r], b.getInt((int) starts[5] + 4 * r));
+    }
+    assertEquals(starts[5] + 12, b.capacity());
+
+    assertFalse(new File(f.getPath() + ".values.tmp").exists());
+    f.delete();
+  }
+}
@@ -0,0 +1,82 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import data.yoochoose.FeaturePlan.EventFeature;
+import data.yoochoose.FeaturePlan.KeyedFeature;
+import data.yoochoose.FeaturePlan.SessionFeature;
+
+/**
+ * Test for {@link FeatureMatrix}.
+ */
+public class FeatureMatrixTest {
+
+  @Test
+  public void rowsReadBackAsEveryPlanWritesThem() {
+    FeaturePlan describing = FeaturePlan.describing(4);
+    FeatureMatrix.Builder b = new FeatureMatrix.Builder();
+    LineEncoder rows = new LineEncoder();
+    for (int s = 0; s < 3; s++) {
+      CsrWriter.startRow(rows, 100 + s, s % 2);
+      encode(describing, rows, s);
+      CsrWriter.endRow(rows);
+    }
+    b.add(rows);
+    assertEquals(3, b.rows());
+    FeatureMatrix m = b.build();
+    assertEquals(3, m.rows());
+    assertEquals(101, m.sessionId(1));
+    assertEquals(1.0f, m.label(1), 0.0f);
+    assertEquals(0, m.start(0));
+    assertEquals(m.nnz(), m.end(2));
+    // Shared features share a column, each later row adds its item and price at 2 positions
+    assertEquals(m.end(0) - m.start(0) + 2 * 4, m.columns());
+    // The category id is exact, though its float value is not
+    assertEquals(2_000_000_000.0f, m.value(m.start(1) + 2), 0.0f);
+    assertEquals(2_000_000_001, m.category(1));
+    // Zeros are kept, VW and LIBSVM write them
+    assertEquals(0.0f, m.value(m.start(0) + 1), 0.0f);
+    assertEquals(m.end(1) - m.start(1), m.end(0) - m.start(0));
+
+    for (Format f : Format.values()) {
+      FeaturePlan direct = new FeaturePlan(f, 4);
+      FeaturePlan fromMatrix = new FeaturePlan(f, 4);
+      for (int r = 0; r < m.rows(); r++) {
+        LineEncoder expected = new LineEncoder();
+        encode(direct, expected, r);
+        LineEncoder actual = new LineEncoder();
+        m.encode(r, fromMatrix, actual);
+        assertEquals(f.name(), expected.toString(), actual.toString());
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsValuesAFloatCannotHold() {
+    FeaturePlan describing = FeaturePlan.describing(4);
+    LineEncoder rows = new LineEncoder();
+    CsrWriter.startRow(rows, 100, 0.0f);
+    describing.first(rows, SessionFeature.NUM_CLICKS, 2);
+    describing.session(rows, SessionFeature.LIFESPAN, (1L << 24) + 1);
+    CsrWriter.endRow(rows);
+    new FeatureMatrix.Builder().add(rows);
+  }
+
+  /**
+   * The features of session inS the way the parsers write them.
+   */
+  private static void encode(FeaturePlan inPlan, LineEncoder inOut, int inS) {
+    inPlan.first(inOut, SessionFeature.NUM_CLICKS, 2);
+    inPlan.session(inOut, SessionFeature.VIEWED_POPULAR_ITEMS, inS % 2 == 0 ? 0.0 : 1.0);
+    inPlan.session(inOut, SessionFeature.CAT_SIMILARITY, 2_000_000_000 + inS % 2);
+    inPlan.session(inOut, SessionFeature.SIMILAR_PURCHASE_RATE, 1.0f / 3);
+    for (int pos = 0; pos < 2; pos++) {
+      inPlan.namespace(inOut, pos);
+      inPlan.event(inOut, pos, EventFeature.HOUR, 10 + pos);
+      inPlan.keyed(inOut, pos, KeyedFeature.ITEM, 214_000_000 + inS, 1);
+      inPlan.keyed(inOut, pos, KeyedFeature.ITEM_PRICE, 214_000_000 + inS, -3);
+    }
+  }
+}
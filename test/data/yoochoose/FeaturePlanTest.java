@@ -0,0 +1,201 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import data.yoochoose.FeaturePlan.EventFeature;
+import data.yoochoose.FeaturePlan.KeyedFeature;
+import data.yoochoose.FeaturePlan.SessionFeature;
+
+/**
+ * Test for {@link FeaturePlan}.
+ */
+public class FeaturePlanTest {
+
+  @Test
+  public void vwLabelsAreTheFeatureNames() {
+    FeaturePlan plan = new FeaturePlan(Format.VW, 3);
+    LineEncoder out = new LineEncoder();
+    plan.first(out, SessionFeature.NUM_CLICKS, 2);
+    plan.session(out, SessionFeature.LIFESPAN, 30L);
+    plan.session(out, SessionFeature.SIMILAR_PURCHASE_RATE, 0.5f);
+    plan.namespace(out, 2);
+    plan.event(out, 2, EventFeature.MONTH, 4);
+    plan.keyed(out, 2, KeyedFeature.ITEM_PURCHASED, 214_536_502, 1);
+    plan.keyed(out, 2, KeyedFeature.CATEGORY, 0, 1);
+    assertEquals("AggregateFeatures numClicks:2 lifespan:30 similarPurchaseRate:0.5|Event2  mth:4"
+        + " 214536502item-was-purchased:1 0-catId:1", out.toString());
+    assertEquals(0, plan.size());
+  }
+
+  @Test
+  public void libsvmIdsFollowFirstUse() {
+    FeaturePlan plan = new FeaturePlan(Format.LIBSVM, 10);
+    Map<String, Integer> expected = new HashMap<>();
+    Random r = new Random(5);
+    for (int i = 0; i < 5_000; i++) {
+      int pos = r.nextInt(10);
+      LineEncoder out = new LineEncoder();
+      String label;
+      switch (r.nextInt(3)) {
+        case 0:
+          SessionFeature s = SessionFeature.values()[r.nextInt(SessionFeature.values().length)];
+          plan.session(out, s, 7);
+          label = s.name();
+          break;
+        case 1:
+          EventFeature e = EventFeature.values()[r.nextInt(EventFeature.values().length)];
+          plan.event(out, pos, e, 7);
+          label = "Event" + pos + " " + e.name();
+          break;
+        default:
+          KeyedFeature k = KeyedFeature.values()[r.nextInt(KeyedFeature.values().length)];
+          // Negative and zero keys as well
+          int key = r.nextInt(40) - 5;
+          plan.keyed(out, pos, k, key, 7);
+          label = "Event" + pos + " " + key + k.name();
+          break;
+      }
+      expected.putIfAbsent(label, expected.size());
+      assertEquals(" " + expected.get(label) + ":7", out.toString());
+    }
+    assertEquals(expected.size(), plan.size());
+
+    LineEncoder out = new LineEncoder();
+    plan.namespace(out, 3);
+    plan.first(out, SessionFeature.NUM_CLICKS, 1);
+    assertEquals(expected.get(SessionFeature.NUM_CLICKS.name()) + ":1", out.toString());
+  }
+
+  @Test
+  public void hashesAreMurmur3() {
+    assertEquals(0, IntHash.murmur3(new byte[0], 0));
+    assertEquals(0x514E28B7, IntHash.murmur3(new byte[0], 1));
+    assertEquals(0xBA6BD213, IntHash.murmur3("test".getBytes(StandardCharsets.UTF_8), 0));
+    assertEquals(0x2E4FF723, IntHash.murmur3(
+        "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8), 0));
+    byte[] le = {(byte) 0x78, (byte) 0x56, (byte) 0x34, (byte) 0x12};
+    assertEquals(IntHash.murmur3(le, 42), IntHash.murmur3(0x12345678, 42));
+  }
+
+  @Test
+  public void hashedIdsAreTheSameInEveryPlan() {
+    FeaturePlan first = FeaturePlan.hashed(Format.LIBSVM, 5, 18, true);
+    FeaturePlan second = FeaturePlan.hashed(Format.LIBSVM, 5, 18, true);
+    LineEncoder a = new LineEncoder();
+    LineEncoder b = new LineEncoder();
+    // Written in a different order, the ids do not depend on what was seen before
+    for (int key = 0; key < 400; key++) {
+      first.keyed(a, key % 5, KeyedFeature.ITEM, key, 1);
+      if (key < 5) {
+        first.event(a, key, EventFeature.HOUR, 3);
+      }
+    }
+    first.session(a, SessionFeature.SIMILAR_PURCHASE_RATE, 0.25f);
+    first.endLine(a);
+    second.session(b, SessionFeature.SIMILAR_PURCHASE_RATE, 0.25f);
+    for (int key = 399; key >= 0; key--) {
+      if (key < 5) {
+        second.event(b, key, EventFeature.HOUR, 3);
+      }
+      second.keyed(b, key % 5, KeyedFeature.ITEM, key, 1);
+    }
+    second.endLine(b);
+    assertEquals(a.toString(), b.toString());
+    assertTrue(first.isHashed());
+    assertEquals(0, first.size());
+
+    // Values take the sign of the hash, ids are in [0, 2^bits) and in order
+    int negative = 0;
+    int last = -1;
+    for (String f : a.toString().trim().split(" ")) {
+      String[] idValue = f.split(":");
+      int id = Integer.parseInt(idValue[0]);
+      assertTrue(id > last && id < 1 << 18);
+      last = id;
+      negative += idValue[1].startsWith("-") ? 1 : 0;
+    }
+    assertTrue("negative " + negative, negative > 100 && negative < 300);
+  }
+
+  @Test
+  public void unsignedHashingKeepsValues() {
+    FeaturePlan plan = FeaturePlan.hashed(Format.LIBSVM, 1, 4, false);
+    LineEncoder out = new LineEncoder();
+    for (int key = 0; key < 100; key++) {
+      plan.keyed(out, 0, KeyedFeature.CATEGORY, key, 1);
+    }
+    plan.endLine(out);
+    // 100 features in 16 ids, each id's value counts the features hashed to it
+    int last = -1;
+    int total = 0;
+    for (String f : out.toString().trim().split(" ")) {
+      String[] idValue = f.split(":");
+      int id = Integer.parseInt(idValue[0]);
+      assertTrue(f, id > last && id < 16 && Integer.parseInt(idValue[1]) > 0);
+      last = id;
+      total += Integer.parseInt(idValue[1]);
+    }
+    assertEquals(100, total);
+  }
+
+  @Test
+  public void collidingFeaturesAreSummed() {
+    // With one bit every feature collides with half of the others
+    FeaturePlan narrow = FeaturePlan.hashed(Format.LIBSVM, 3, 1, true);
+    FeaturePlan wide = FeaturePlan.hashed(Format.LIBSVM, 3, 30, true);
+    FeaturePlan csr = FeaturePlan.hashed(Format.CSR, 3, 1, true);
+    LineEncoder n = new LineEncoder();
+    LineEncoder w = new LineEncoder();
+    LineEncoder c = new LineEncoder();
+    CsrWriter.startRow(c, 7, 1.0f);
+    for (FeaturePlan plan : new FeaturePlan[] {narrow, wide, csr}) {
+      LineEncoder out = plan == narrow ? n : plan == wide ? w : c;
+      plan.first(out, SessionFeature.NUM_CLICKS, 3);
+      plan.session(out, SessionFeature.LIFESPAN, 40L);
+      for (int pos = 0; pos < 3; pos++) {
+        plan.event(out, pos, EventFeature.HOUR, 10 + pos);
+        plan.keyed(out, pos, KeyedFeature.ITEM, 214_536_500 + pos, 1);
+        plan.keyed(out, pos, KeyedFeature.CATEGORY, pos, 5);
+      }
+      plan.endLine(out);
+    }
+
+    Map<Integer, Long> expected = new HashMap<>();
+    for (String f : w.toString().trim().split(" ")) {
+      String[] idValue = f.split(":");
+      expected.merge(Integer.parseInt(idValue[0]) & 1, Long.parseLong(idValue[1]), Long::sum);
+    }
+    Map<Integer, Long> summed = new HashMap<>();
+    for (String f : n.toString().trim().split(" ")) {
+      String[] idValue = f.split(":");
+      assertTrue(n.toString(), summed.put(Integer.parseInt(idValue[0]),
+          Long.parseLong(idValue[1])) == null);
+    }
+    assertEquals(expected, summed);
+
+    // A CSR row holds each column once, with the same sums
+    ByteBuffer row = c.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(7, row.getInt());
+    assertEquals(1.0f, row.getFloat(), 0.0f);
+    Map<Integer, Long> columns = new HashMap<>();
+    for (int column = row.getInt(); column != -1; column = row.getInt()) {
+      assertTrue(columns.put(column, (long) row.getFloat()) == null);
+    }
+    assertEquals(expected, columns);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTooManyHashBits() {
+    FeaturePlan.hashed(Format.LIBSVM, 1, 31, true);
+  }
+}
@@ -0,0 +1,75 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link HyperLogLog} and {@link Cardinalities}.
+ */
+public class HyperLogLogTest {
+
+  @Test
+  public void smallCountsAreNearExact() {
+    HyperLogLog hll = new HyperLogLog(14);
+    assertEquals(0L, hll.estimate());
+    for (int i = 0; i < 3; i++) {
+      // Repeats do not count
+      for (int id = 1; id <= 100; id++) {
+        hll.add(id * 7_919);
+      }
+    }
+    assertEquals(100.0, hll.estimate(), 2.0);
+  }
+
+  @Test
+  public void largeCountsWithinError() {
+    HyperLogLog hll = new HyperLogLog(14);
+    for (int id = 0; id < 1_000_000; id++) {
+      hll.add(id);
+    }
+    // Standard error is ~0.8%, allow for four of them
+    assertEquals(1_000_000.0, hll.estimate(), 32_000.0);
+  }
+
+  @Test
+  public void mergeEqualsUnion() {
+    HyperLogLog all = new HyperLogLog(12);
+    HyperLogLog even = new HyperLogLog(12);
+    HyperLogLog odd = new HyperLogLog(12);
+    for (int id = 0; id < 200_000; id++) {
+      all.add(id);
+      (id % 2 == 0 ? even : odd).add(id);
+    }
+    even.merge(odd);
+    assertEquals(all.estimate(), even.estimate());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mergeNeedsSamePrecision() {
+    new HyperLogLog(10).merge(new HyperLogLog(12));
+  }
+
+  @Test
+  public void cardinalitiesByWindow() {
+    long day = 16_436L * Timestamps.MILLIS_PER_DAY;
+    Cardinalities first = new Cardinalities();
+    Cardinalities second = new Cardinalities();
+    for (int s = 0; s < 50; s++) {
+      first.add(s, day + s * 60_000L, s % 10, 5);
+      second.add(s + 50, day + Timestamps.MILLIS_PER_DAY + s, 100, 0);
+    }
+    second.add(1, Timestamps.NONE, 1, 6);
+    first.merge(second);
+    assertEquals(2, first.days().size());
+    assertEquals(2, first.hours().size());
+    assertEquals(50.0, first.days().get(16_436L).sessions(), 2.0);
+    assertEquals(1L, first.days().get(16_437L).items());
+    assertEquals(0L, first.days().get(16_437L).categories());
+    assertEquals(100.0, first.global().sessions(), 2.0);
+    assertEquals(11L, first.global().items());
+    assertEquals(2L, first.global().categories());
+    assertTrue(first.hours().firstEntry().getValue().sessions() > 0);
+  }
+}
@@ -0,0 +1,49 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link IntIntMap}, checked against a HashMap under random puts, increments and removes.
+ */
+public class IntIntMapTest {
+
+  @Test
+  public void behavesLikeHashMap() {
+    Random r = new Random(11);
+    IntIntMap m = new IntIntMap(4);
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 200_000; i++) {
+      int k = r.nextInt(5_000) - 100;
+      switch (r.nextInt(3)) {
+        case 0:
+          m.put(k, i);
+          expected.put(k, i);
+          break;
+        case 1:
+          assertEquals(expected.merge(k, 1, Integer::sum).intValue(), m.addTo(k, 1));
+          break;
+        default:
+          m.remove(k);
+          expected.remove(k);
+          break;
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    for (int k = -100; k < 4_900; k++) {
+      assertEquals(expected.containsKey(k), m.containsKey(k));
+      assertEquals(expected.getOrDefault(k, -1).intValue(), m.get(k, -1));
+    }
+    int[] visited = new int[1];
+    m.forEach((k, v) -> {
+      assertEquals(expected.get(k).intValue(), v);
+      visited[0]++;
+    });
+    assertEquals(expected.size(), visited[0]);
+  }
+}
@@ -0,0 +1,51 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link ItemStats}.
+ */
+public class ItemStatsTest {
+
+  @Test
+  public void rangesCoverAllPrices() {
+    assertEquals(0, ItemStats.range(0));
+    assertEquals(1, ItemStats.range(1));
+    assertEquals(1, ItemStats.range(100));
+    assertEquals(2, ItemStats.range(101));
+    assertEquals(9, ItemStats.range(350_000));
+    assertEquals(10, ItemStats.range(350_001));
+    assertEquals(10, ItemStats.range(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void parallelMatchesSequential() {
+    ItemTable items = new ItemTable();
+    for (int i = 0; i < 50_000; i++) {
+      items.recordPurchase(i, (i * 7_919) % 400_000, i % 5);
+    }
+    ItemStats sequential = new ItemStats();
+    for (int i = 0; i < items.size(); i++) {
+      sequential.add(items, i);
+    }
+    ItemStats parallel = IntStream.range(0, items.size()).parallel().collect(ItemStats::new,
+        (s, i) -> s.add(items, i), ItemStats::merge);
+    assertEquals(50_000, parallel.items());
+    assertEquals(sequential.multiPurchase(), parallel.multiPurchase());
+    assertEquals(sequential.withPrice(), parallel.withPrice());
+    assertEquals(0, parallel.minPrice());
+    assertEquals(sequential.maxPrice(), parallel.maxPrice());
+    assertEquals(sequential.avgPrice(), parallel.avgPrice(), 0.0);
+    for (int r = 0; r < ItemStats.RANGES; r++) {
+      assertEquals(sequential.rangeCount(r), parallel.rangeCount(r));
+      assertEquals(sequential.rangeMinPrice(r), parallel.rangeMinPrice(r));
+      assertEquals(sequential.rangeMaxPrice(r), parallel.rangeMaxPrice(r));
+    }
+    assertTrue(parallel.rangeCount(10) > 0);
+  }
+}
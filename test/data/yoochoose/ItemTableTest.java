@@ -0,0 +1,95 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link ItemTable}, in particular that rows survive the off-heap buffer growing.
+ */
+public class ItemTableTest {
+
+  @Test
+  public void updatesInPlaceAcrossGrowth() {
+    ItemTable t = new ItemTable(16);
+    for (int i = 0; i < 10_000; i++) {
+      t.recordClick(i, i % 7);
+      t.recordPurchase(i, i * 10, i % 3);
+    }
+    assertEquals(10_000, t.size());
+    for (int i = 0; i < 10_000; i++) {
+      assertEquals(i * 10, t.price(i));
+      assertEquals(i % 7, t.categoryId(i));
+      assertEquals(i % 7 > 0 ? 1 : 0, t.catChangeCount(i));
+      assertEquals(i > 0 ? 1 : 0, t.priceChangeCount(i));
+      assertTrue(t.isPurchased(i));
+      assertEquals(i % 3 > 1, t.isMultiPurchase(i));
+      assertFalse(t.isSeenWithPurchased(i));
+    }
+  }
+
+  @Test
+  public void unknownItemsReadAsEmpty() {
+    ItemTable t = new ItemTable();
+    t.set(5, ItemTable.SEEN_WITH_PURCHASED);
+    assertTrue(t.isSeenWithPurchased(5));
+    assertFalse(t.isPurchased(4));
+    assertEquals(0, t.price(-1));
+    assertEquals(0, t.categoryId(6));
+    assertFalse(t.isSeenWithPurchased(-1));
+  }
+
+  @Test
+  public void mergeFoldsRows() {
+    ItemTable a = new ItemTable();
+    a.recordClick(0, 3);
+    a.recordPurchase(0, 100, 1);
+    ItemTable b = new ItemTable();
+    b.recordClick(2, 4);
+    b.recordPurchase(2, 200, 2);
+    a.merge(0, b, 2);
+    assertEquals(200, a.price(0));
+    assertEquals(3, a.categoryId(0));
+    // Recorded here the click would not have changed the category
+    assertEquals(1, a.catChangeCount(0));
+    assertEquals(2, a.priceChangeCount(0));
+    assertTrue(a.isMultiPurchase(0));
+  }
+
+  @Test
+  public void mergeIsRecordingHereDirectly() {
+    Random r = new Random(3);
+    ItemTable direct = new ItemTable();
+    ItemTable first = new ItemTable();
+    ItemTable second = new ItemTable();
+    for (int e = 0; e < 2_000; e++) {
+      ItemTable part = e < 1_000 ? first : second;
+      int item = r.nextInt(20);
+      // Few categories and prices, so a later part often starts with what an earlier one had
+      int value = r.nextInt(4);
+      if (r.nextBoolean()) {
+        direct.recordClick(item, value);
+        part.recordClick(item, value);
+      } else {
+        int quantity = 1 + r.nextInt(2);
+        direct.recordPurchase(item, value * 100, quantity);
+        part.recordPurchase(item, value * 100, quantity);
+      }
+    }
+    for (int i = 0; i < second.size(); i++) {
+      first.merge(i, second, i);
+    }
+    assertEquals(direct.size(), first.size());
+    for (int i = 0; i < direct.size(); i++) {
+      assertEquals(direct.price(i), first.price(i));
+      assertEquals(direct.categoryId(i), first.categoryId(i));
+      assertEquals(direct.priceChangeCount(i), first.priceChangeCount(i));
+      assertEquals(direct.catChangeCount(i), first.catChangeCount(i));
+      assertEquals(direct.isMultiPurchase(i), first.isMultiPurchase(i));
+    }
+  }
+}
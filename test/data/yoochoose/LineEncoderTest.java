@@ -0,0 +1,58 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link LineEncoder}.
+ */
+public class LineEncoderTest {
+
+  @Test
+  public void numbersMatchToString() {
+    Random r = new Random(3);
+    LineEncoder enc = new LineEncoder(8);
+    StringBuilder expected = new StringBuilder();
+    long[] edges = {0L, 9L, 10L, 99L, 100L, -1L, Integer.MAX_VALUE, Integer.MIN_VALUE,
+        Long.MAX_VALUE, Long.MIN_VALUE, 999_999_999_999_999_999L, 1_000_000_000_000_000_000L};
+    for (long v : edges) {
+      enc.put(v).put(' ');
+      expected.append(v).append(' ');
+    }
+    double[] doubles = {0.0, 1.0, -0.0, -3.0, 0.5, 9_999_999.0, 1e7, 1e-4, Double.NaN,
+        Double.POSITIVE_INFINITY};
+    for (double v : doubles) {
+      enc.put(v).put(' ').put((float) v).put(' ');
+      expected.append(v).append(' ').append((float) v).append(' ');
+    }
+    for (int i = 0; i < 10_000; i++) {
+      long v = r.nextLong() >> r.nextInt(64);
+      float f = r.nextInt(100) / (float) (1 + r.nextInt(100));
+      enc.put(v).put(':').put(f).put(' ');
+      expected.append(v).append(':').append(f).append(' ');
+    }
+    assertEquals(expected.toString(), enc.toString());
+  }
+
+  @Test
+  public void reusedAfterClear() throws Exception {
+    LineEncoder enc = new LineEncoder();
+    enc.put("0 ").put(new byte[] {'1', '2', ':'}).put(3).put('\n');
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    enc.writeTo(out);
+    enc.clear();
+    enc.put(42).put('\n');
+    enc.writeTo(out);
+    assertEquals("0 12:3\n42\n", out.toString("US-ASCII"));
+
+    ByteBuffer buffer = enc.buffer();
+    assertEquals(0, buffer.position());
+    assertEquals(3, buffer.remaining());
+    assertEquals('4', buffer.get());
+  }
+}
@@ -0,0 +1,42 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link LongIntMap}, checked against a HashMap under random increments.
+ */
+public class LongIntMapTest {
+
+  @Test
+  public void behavesLikeHashMap() {
+    Random r = new Random(5);
+    LongIntMap m = new LongIntMap(4);
+    Map<Long, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 200_000; i++) {
+      // Pairs of ids packed the way the co-occurrence counts are, plus key 0
+      long k = i % 1_000 == 0 ? 0L : ((long) r.nextInt(100) << 32) | r.nextInt(100);
+      int delta = r.nextInt(3) + 1;
+      assertEquals(expected.merge(k, delta, Integer::sum).intValue(), m.addTo(k, delta));
+    }
+    assertEquals(expected.size(), m.size());
+    for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+      assertEquals(e.getValue().intValue(), m.get(e.getKey(), -1));
+    }
+    assertEquals(-1, m.get(1L << 40, -1));
+    int[] visited = new int[1];
+    m.forEach((k, v) -> {
+      assertEquals(expected.get(k).intValue(), v);
+      visited[0]++;
+    });
+    assertEquals(expected.size(), visited[0]);
+    m.clear();
+    assertEquals(0, m.size());
+    assertEquals(-1, m.get(0L, -1));
+  }
+}
@@ -0,0 +1,49 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link MappedCsvReader}.
+ */
+public class MappedCsvReaderTest {
+
+  @Test
+  public void tokenizesClicksAndBuys() throws IOException {
+    File f = File.createTempFile("yoochoose", ".dat");
+    f.deleteOnExit();
+    Files.write(f.toPath(), ("1,2014-04-07T10:51:09.277Z,214536502,0\n"
+        + "2,2014-04-07T10:54:09.868Z,214536500,S\r\n" + "\n"
+        + "420374,2014-04-06T18:44:58.314Z,214537888,12462,1").getBytes(StandardCharsets.US_ASCII));
+
+    try (MappedCsvReader r = new MappedCsvReader(f.getPath(), ',')) {
+      assertTrue(r.next());
+      assertEquals(4, r.fieldCount());
+      assertEquals(1, r.intField(0));
+      assertEquals("2014-04-07T10:51:09.277Z", r.stringField(1));
+      assertEquals(214536502, r.intField(2));
+      assertFalse(r.fieldEquals(3, 'S'));
+
+      assertTrue(r.next());
+      assertTrue(r.fieldEquals(3, 'S'));
+
+      assertTrue(r.next());
+      assertEquals(1, r.fieldCount());
+      assertEquals(0, r.fieldLength(0));
+
+      assertTrue(r.next());
+      assertEquals(5, r.fieldCount());
+      assertEquals(12462, r.intField(3));
+      assertEquals(1, r.intField(4));
+      assertFalse(r.next());
+    }
+  }
+}
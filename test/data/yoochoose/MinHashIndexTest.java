@@ -0,0 +1,99 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link MinHashIndex}.
+ */
+public class MinHashIndexTest {
+
+  @Test
+  public void findsSessionsWithTheSameItems() {
+    MinHashIndex.Builder first = new MinHashIndex.Builder();
+    MinHashIndex.Builder second = new MinHashIndex.Builder();
+    // Sessions 1 to 4 clicked 10, 11 and 12 (in any order, with repeats), 1 and 3 bought
+    for (int s = 1; s <= 4; s++) {
+      MinHashIndex.Builder b = s % 2 == 0 ? first : second;
+      b.add(10 + s % 3);
+      b.add(10 + (s + 1) % 3);
+      b.add(10 + s % 3);
+      b.add(10 + (s + 2) % 3);
+      b.endSession(s, s % 2 == 1);
+    }
+    // Sessions 5 to 104 clicked items nobody else did, session 105 nothing
+    for (int s = 5; s < 105; s++) {
+      first.add(1_000 + 3 * s);
+      first.add(1_001 + 3 * s);
+      first.endSession(s, true);
+    }
+    first.endSession(105, true);
+    first.merge(second);
+    assertEquals(104, first.size());
+    MinHashIndex index = first.build();
+    assertEquals(104, index.size());
+    // The index took the builder's arrays, which may hold more than 104 keys
+    assertEquals(0, first.size());
+
+    MinHashIndex.Query q = new MinHashIndex.Query();
+    q.find(index, new int[] {12, 11, 10}, 3, 4);
+    assertEquals(3, q.sessions());
+    assertEquals(2, q.purchasers());
+    q.find(index, new int[] {10, 11, 12}, 3, 99);
+    assertEquals(4, q.sessions());
+    q.find(index, new int[] {7, 8}, 2, 99);
+    assertEquals(0, q.sessions());
+    q.find(index, new int[0], 0, 99);
+    assertEquals(0, q.sessions());
+    q.find(null, new int[] {10, 11, 12}, 3, 99);
+    assertEquals(0, q.sessions());
+  }
+
+  @Test
+  public void sessionIdsUseAllBits() {
+    MinHashIndex.Builder b = new MinHashIndex.Builder();
+    int[] ids = {-7, 1 << 30, Integer.MAX_VALUE};
+    for (int s : ids) {
+      b.add(10);
+      b.add(11);
+      b.endSession(s, s == ids[0]);
+    }
+    MinHashIndex index = b.build();
+    MinHashIndex.Query q = new MinHashIndex.Query();
+    // The purchaser itself is left out, so its own label cannot leak into the rate
+    q.find(index, new int[] {10, 11}, 2, ids[0]);
+    assertEquals(2, q.sessions());
+    assertEquals(0, q.purchasers());
+    q.find(index, new int[] {10, 11}, 2, ids[1]);
+    assertEquals(2, q.sessions());
+    assertEquals(1, q.purchasers());
+  }
+
+  @Test
+  public void similarSetsAreUsuallyFound() {
+    MinHashIndex.Builder b = new MinHashIndex.Builder();
+    // Session s clicked items s .. s + 9, so s and s + 1 have a Jaccard similarity of 9 / 11
+    for (int s = 0; s < 2_000; s += 20) {
+      for (int i = 0; i < 10; i++) {
+        b.add(s + i);
+      }
+      b.endSession(s, false);
+    }
+    MinHashIndex index = b.build();
+    MinHashIndex.Query q = new MinHashIndex.Query();
+    int found = 0;
+    for (int s = 0; s < 2_000; s += 20) {
+      int[] items = new int[10];
+      for (int i = 0; i < 10; i++) {
+        items[i] = s + i + 1;
+      }
+      q.find(index, items, 10, -1);
+      found += q.sessions() > 0 ? 1 : 0;
+      // The sets 20 apart are disjoint and the one 1 apart is the only similar one
+      assertTrue(q.sessions() <= 1);
+    }
+    assertTrue("found " + found, found >= 95);
+  }
+}
@@ -0,0 +1,74 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link PopularityIndex}.
+ */
+public class PopularityIndexTest {
+
+  private static final long START = 16_161L * Timestamps.MILLIS_PER_DAY;
+
+  @Test
+  public void rangesMatchBruteForce() {
+    Random r = new Random(11);
+    int days = 60;
+    int[][] purchases = new int[5][days];
+    PopularityIndex whole = new PopularityIndex();
+    PopularityIndex first = new PopularityIndex();
+    PopularityIndex second = new PopularityIndex();
+    for (int i = 0; i < 5_000; i++) {
+      // Out of time order, so rows have to grow both ways
+      int item = r.nextInt(5);
+      int day = r.nextInt(days);
+      long ts = START + day * Timestamps.MILLIS_PER_DAY + r.nextInt(86_400_000);
+      purchases[item][day]++;
+      whole.purchase(item + 100, ts);
+      (i % 3 == 0 ? first : second).purchase(item + 100, ts);
+    }
+    first.merge(second);
+    for (int i = 0; i < 500; i++) {
+      int item = r.nextInt(5);
+      int from = r.nextInt(days + 20) - 10;
+      int to = from + r.nextInt(30);
+      int expected = 0;
+      for (int d = Math.max(from, 0); d < Math.min(to, days); d++) {
+        expected += purchases[item][d];
+      }
+      assertEquals(expected, whole.itemPurchases(item + 100, 16_161L + from, 16_161L + to));
+      assertEquals(expected, first.itemPurchases(item + 100, 16_161L + from, 16_161L + to));
+    }
+    assertEquals(0, whole.itemPurchases(99, 0L, Long.MAX_VALUE));
+    assertEquals(0, whole.itemClicks(100, 0L, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void beforeExcludesTheSessionsOwnBucket() {
+    PopularityIndex index = new PopularityIndex();
+    long noon = START + 12 * Timestamps.MILLIS_PER_HOUR;
+    index.click(1, 7, noon - Timestamps.MILLIS_PER_DAY);
+    index.click(1, 7, noon - 2 * Timestamps.MILLIS_PER_HOUR);
+    index.click(1, 7, noon - 1);
+    index.click(1, 7, noon + 1);
+    index.click(1, 0, noon - 8 * Timestamps.MILLIS_PER_DAY);
+    index.purchase(1, noon - 60_000L);
+    index.purchase(1, Timestamps.NONE);
+
+    assertEquals(1, index.itemClicksBefore(1, noon, 7));
+    assertEquals(2, index.itemClicksBefore(1, noon, 8));
+    assertEquals(0, index.itemPurchasesBefore(1, noon, 7));
+    assertEquals(2, index.categoryClicksBefore(7, noon, 2));
+    assertEquals(1, index.categoryClicksBefore(7, noon + 1, 1));
+    assertEquals(4, index.categoryClicks(7, 0L, Long.MAX_VALUE));
+    assertEquals(0, index.categoryClicksBefore(0, noon, 1_000));
+    assertEquals(0, index.itemClicksBefore(1, Timestamps.NONE, 7));
+
+    // Adding after a query brings the row up to date
+    index.purchase(1, noon - Timestamps.MILLIS_PER_DAY);
+    assertEquals(1, index.itemPurchasesBefore(1, noon, 7));
+  }
+}
@@ -0,0 +1,87 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link QuantileSketch}, checking rank error against exact quantiles.
+ */
+public class QuantileSketchTest {
+
+  private static final int N = 1_000_000;
+
+  @Test
+  public void quantilesWithinRankError() {
+    Random r = new Random(9);
+    double[] values = new double[N];
+    QuantileSketch whole = new QuantileSketch();
+    QuantileSketch[] parts = new QuantileSketch[8];
+    for (int p = 0; p < parts.length; p++) {
+      parts[p] = new QuantileSketch();
+    }
+    for (int i = 0; i < N; i++) {
+      // Skewed, like prices and dwell times
+      values[i] = Math.floor(Math.exp(r.nextGaussian() * 2));
+      whole.add(values[i]);
+      parts[i % parts.length].add(values[i]);
+    }
+    QuantileSketch merged = new QuantileSketch();
+    for (QuantileSketch p : parts) {
+      merged.merge(p);
+    }
+    Arrays.sort(values);
+    for (QuantileSketch s : new QuantileSketch[] {whole, merged}) {
+      assertEquals(N, s.count());
+      assertEquals(values[0], s.min(), 0.0);
+      assertEquals(values[N - 1], s.max(), 0.0);
+      assertTrue(s.retained() < 4 * QuantileSketch.DEFAULT_K);
+      for (double q = 0.05; q < 1.0; q += 0.05) {
+        double estimate = s.quantile(q);
+        // The estimate's rank range (it may be repeated) must lie within 2% of the requested rank
+        int lo = lowerRank(values, estimate);
+        int hi = upperRank(values, estimate);
+        assertTrue("q=" + q, lo <= (q + 0.02) * N && hi >= (q - 0.02) * N);
+      }
+    }
+  }
+
+  @Test
+  public void bucketsByBoundaries() {
+    QuantileSketch s = new QuantileSketch();
+    for (int i = 1; i <= 100; i++) {
+      s.add(i);
+    }
+    double[] b = s.boundaries(4);
+    assertArrayEquals(new double[] {25, 50, 75}, b, 0.0);
+    assertEquals(0, QuantileSketch.bucket(b, 1));
+    assertEquals(0, QuantileSketch.bucket(b, 25));
+    assertEquals(1, QuantileSketch.bucket(b, 26));
+    assertEquals(3, QuantileSketch.bucket(b, 1_000));
+    assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+  }
+
+  private static int lowerRank(double[] inSorted, double inValue) {
+    int i = Arrays.binarySearch(inSorted, inValue);
+    if (i < 0) {
+      return -i - 1;
+    }
+    while (i > 0 && inSorted[i - 1] == inValue) {
+      i--;
+    }
+    return i;
+  }
+
+  private static int upperRank(double[] inSorted, double inValue) {
+    int i = lowerRank(inSorted, inValue);
+    while (i < inSorted.length && inSorted[i] == inValue) {
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,147 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link SessionKernel}.
+ */
+public class SessionKernelTest {
+
+  @Test
+  public void aggregatesOneSession() {
+    IntSet popularItems = new IntSet();
+    popularItems.add(300);
+    IntSet popularCategories = new IntSet();
+    popularCategories.add(9);
+    SessionKernel k = new SessionKernel();
+    k.setPopular(popularItems, popularCategories);
+
+    k.reset();
+    k.click(100, 5);
+    k.click(200, 7);
+    k.click(200, 7);
+    k.click(100, 5);
+    k.purchase(100);
+    assertEquals(2, k.uniqueItems());
+    assertEquals(2, k.uniqueCategories());
+    // 5 and 7 are tied, 5 was seen first
+    assertEquals(5, k.dominantCategory());
+    assertFalse(k.viewedPopularItem());
+    assertFalse(k.viewedPopularCategory());
+
+    k.reset();
+    k.click(1, 0);
+    k.click(2, 9);
+    k.click(3, 9);
+    k.purchase(300);
+    assertEquals(4, k.uniqueItems());
+    assertEquals(2, k.uniqueCategories());
+    assertEquals(9, k.dominantCategory());
+    assertTrue(k.viewedPopularItem());
+    assertTrue(k.viewedPopularCategory());
+
+    k.reset();
+    k.purchase(4);
+    assertEquals(1, k.uniqueItems());
+    assertEquals(0, k.uniqueCategories());
+    assertEquals(0, k.dominantCategory());
+  }
+
+  @Test
+  public void linksLeaveTheSessionItselfOut() {
+    CoOccurrence.Builder views = new CoOccurrence.Builder();
+    CoOccurrence.Builder purchases = new CoOccurrence.Builder();
+    // Session A: clicks 1, 2, 3 and buys 1 and 2
+    views.add(1);
+    views.add(2);
+    views.add(3);
+    purchases.add(1);
+    purchases.add(2);
+    views.endSession();
+    purchases.endSession();
+    // Session B: clicks 1 and 2, nothing bought
+    views.add(1);
+    views.add(2);
+    views.endSession();
+    purchases.endSession();
+
+    SessionKernel k = new SessionKernel();
+    k.setCoOccurrence(views.build(10), purchases.build(10));
+    k.reset();
+    k.click(1, 5);
+    k.click(2, 5);
+    k.click(3, 5);
+    k.purchase(1);
+    k.purchase(2);
+    // 1-2 was also co-viewed in B, 1-3 and 2-3 only here
+    assertEquals(2, k.coViewLinks());
+    // 1-2 was only bought together here
+    assertEquals(0, k.coPurchaseLinks());
+
+    k.reset();
+    k.click(1, 5);
+    k.click(2, 5);
+    assertEquals(2, k.coViewLinks());
+    assertEquals(2, k.coPurchaseLinks());
+  }
+
+  @Test
+  public void linksOfSessionsNotCountedLeaveNothingOut() {
+    CoOccurrence.Builder views = new CoOccurrence.Builder();
+    // Another run's session that clicked 1 and 2
+    views.add(1);
+    views.add(2);
+    views.endSession();
+
+    CoOccurrence other = views.build(10);
+
+    SessionKernel k = new SessionKernel();
+    k.setCoOccurrence(other, null, false);
+    SessionKernel copy = new SessionKernel(k);
+    copy.reset();
+    copy.click(1, 5);
+    copy.click(2, 5);
+    assertEquals(2, copy.coViewLinks());
+    assertEquals(0, copy.coPurchaseLinks());
+
+    // Taken as its own pair, 1-2 would be left out
+    k.setCoOccurrence(other, null);
+    k.reset();
+    k.click(1, 5);
+    k.click(2, 5);
+    assertEquals(0, k.coViewLinks());
+  }
+
+  @Test
+  public void linksLeaveOutNeighboursOnlyTheSessionKeptInAFullRow() {
+    CoOccurrence.Builder views = new CoOccurrence.Builder();
+    // 1 was co-viewed with 10 and 11 twice, with 2 and 12 once
+    int[][] others = {{1, 10, 11}, {1, 10, 11}, {1, 2}, {1, 12}};
+    for (int[] session : others) {
+      for (int item : session) {
+        views.add(item);
+      }
+      views.endSession();
+    }
+    // This session, making 1-2 as heavy as 1-10
+    views.add(1);
+    views.add(2);
+    views.endSession();
+    CoOccurrence top2 = views.build(2);
+    assertTrue(top2.isFull(top2.row(1)));
+    assertEquals(2, top2.weight(1, 2));
+    assertFalse(top2.isFull(top2.row(2)));
+
+    SessionKernel k = new SessionKernel();
+    k.setCoOccurrence(top2, null);
+    k.reset();
+    k.click(1, 5);
+    k.click(2, 5);
+    // Without this session 2 would not be among the top 2 of 1, but 1 is still the only one of 2
+    assertEquals(1, k.coViewLinks());
+  }
+}
@@ -0,0 +1,74 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link SessionSpill}, checked against an in-memory {@link EventStore} with a budget
+ * small enough to force many runs and several merge passes.
+ */
+public class SessionSpillTest {
+
+  @Test
+  public void matchesInMemorySessions() throws IOException {
+    Random r = new Random(5);
+    SessionSpill spill = new SessionSpill(new File(System.getProperty("java.io.tmpdir")), 0L, 3);
+    EventStore expected = new EventStore();
+    for (int i = 0; i < 50_000; i++) {
+      int session = r.nextInt(3_000) - 500;
+      long ts = 1_000L * r.nextInt(100);
+      int itemId = r.nextInt(400);
+      if (r.nextInt(5) == 0) {
+        int quantity = 1 + r.nextInt(3);
+        spill.addPurchase(session, ts, itemId, i, quantity);
+        expected.addPurchase(session, ts, itemId, i, quantity);
+      } else {
+        int cat = r.nextInt(20);
+        spill.addClick(session, ts, itemId, cat, cat == 0);
+        expected.addClick(session, ts, itemId, cat, cat == 0);
+      }
+    }
+    expected.seal();
+    assertEquals(50_000, spill.size());
+    assertTrue(spill.runCount() > 3);
+
+    List<String> actual = new ArrayList<>();
+    int[] last = {Integer.MIN_VALUE};
+    int sessions = spill.forEachSession(new EventStore(), s -> {
+      assertEquals(1, s.sessionCount());
+      assertTrue(s.sessionId(0) > last[0]);
+      last[0] = s.sessionId(0);
+      actual.add(describe(s, 0));
+    });
+    assertEquals(expected.sessionCount(), sessions);
+    assertTrue(spill.runCount() <= 3);
+
+    List<String> wanted = new ArrayList<>();
+    for (int s = 0; s < expected.sessionCount(); s++) {
+      wanted.add(describe(expected, s));
+    }
+    wanted.sort(null);
+    actual.sort(null);
+    assertEquals(wanted, actual);
+  }
+
+  private static String describe(EventStore inStore, int inSession) {
+    StringBuilder sb = new StringBuilder().append(inStore.sessionId(inSession))
+        .append(inStore.isPurchaser(inSession) ? " buyer" : " clicker");
+    for (int e = inStore.start(inSession); e < inStore.end(inSession); e++) {
+      sb.append(' ').append(inStore.timestamp(e)).append('/').append(inStore.itemId(e))
+          .append('/').append(inStore.categoryId(e)).append('/').append(inStore.price(e))
+          .append('x').append(inStore.quantity(e)).append(inStore.isSpecial(e) ? "s" : "")
+          .append(inStore.isBeforePurchase(e) ? "b" : "");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,49 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link Timestamps}, checked against java.time.
+ */
+public class TimestampsTest {
+
+  private static final DateTimeFormatter DTF =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+  @Test
+  public void matchesLocalDateTime() {
+    Random r = new Random(7);
+    LocalDateTime base = LocalDateTime.of(2014, 1, 1, 0, 0);
+    for (int i = 0; i < 100_000; i++) {
+      LocalDateTime ldt = base.plusSeconds(r.nextInt(3 * 365 * 86_400))
+          .plusNanos(r.nextInt(1_000) * 1_000_000L);
+      long ts = Timestamps.parse(DTF.format(ldt));
+      assertEquals(ldt.toInstant(ZoneOffset.UTC).toEpochMilli(), ts);
+      assertEquals(ldt.getMonthValue(), Timestamps.month(ts));
+      assertEquals(ldt.getDayOfMonth(), Timestamps.dayOfMonth(ts));
+      assertEquals(ldt.getDayOfWeek().getValue(), Timestamps.dayOfWeek(ts));
+      assertEquals(ldt.getHour(), Timestamps.hour(ts));
+      assertEquals(ldt.getMinute(), Timestamps.minute(ts));
+      assertEquals(ldt.getSecond(), Timestamps.second(ts));
+      assertEquals(ldt.getYear(), Timestamps.year(ts));
+
+      LocalDateTime other = ldt.plusNanos((r.nextInt(200_000) - 100_000) * 1_000_000L);
+      assertEquals(ldt.until(other, ChronoUnit.SECONDS),
+          Timestamps.secondsBetween(ts, Timestamps.parse(DTF.format(other))));
+    }
+  }
+
+  @Test(expected = DateTimeParseException.class)
+  public void rejectsOtherLayouts() {
+    Timestamps.parse("214536502,214536500");
+  }
+}
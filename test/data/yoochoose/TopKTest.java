@@ -0,0 +1,55 @@
+package data.yoochoose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link TopK} in exact and approximate mode.
+ */
+public class TopKTest {
+
+  @Test
+  public void exactMatchesSort() {
+    Random r = new Random(3);
+    TopK top = TopK.exact(50);
+    Map<Integer, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 20_000; i++) {
+      // Few distinct counts, so lots of ties
+      int id = r.nextInt(1_000) - 10;
+      top.add(id);
+      counts.merge(id, 1, Integer::sum);
+    }
+    int[] expected = counts.entrySet().stream()
+        .sorted(Comparator.<Map.Entry<Integer, Integer>>comparingInt(e -> -e.getValue())
+            .thenComparingInt(Map.Entry::getKey))
+        .limit(50).mapToInt(Map.Entry::getKey).toArray();
+    assertArrayEquals(expected, top.top());
+    assertEquals(50, top.members().size());
+    assertEquals(counts.size(), top.distinct());
+    assertEquals(20_000L, top.total());
+  }
+
+  @Test
+  public void approximateFindsHeavyHitters() {
+    Random r = new Random(4);
+    TopK top = TopK.approximate(10, 100);
+    for (int i = 0; i < 100_000; i++) {
+      // Ids 0-9 take half the stream, the rest is spread over 100k ids
+      top.add(i % 2 == 0 ? r.nextInt(10) : 10 + r.nextInt(100_000));
+    }
+    IntSet members = top.members();
+    for (int id = 0; id < 10; id++) {
+      assertTrue(members.contains(id));
+      assertTrue(top.count(id) >= 4_000);
+    }
+    assertEquals(100, top.distinct());
+  }
+}
@@ -1,9 +1,41 @@
 package data.yoochoose;
 
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
 
 import data.yoochoose.Event;
+import data.yoochoose.FeaturePlan.SessionFeature;
 import data.yoochoose.YoochooseParser;
 
 /**
@@ -24,4 +56,496 @@ public class YoochooseTest2 {
     // Build the VW file based on our analysis
     p.output("yoochoose-train-libsvm.dat");
   }
+
+  @Test
+  public void parallelOutputMatchesSequential() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    YoochooseParser2 p = load(dir, Format.VW);
+    String seq = new File(dir, "seq.vw").getPath();
+    String par = new File(dir, "par.vw").getPath();
+    String shards = new File(dir, "shards.vw").getPath();
+    p.output(seq);
+    p.output(par, 3);
+    p.output(shards, 3, 4);
+
+    List<String> lines = Files.readAllLines(new File(seq).toPath());
+    assertEquals(5_000, lines.size());
+    assertEquals(lines, Files.readAllLines(new File(par).toPath()));
+    assertArrayEquals(Files.readAllBytes(new File(seq + ".label").toPath()),
+        Files.readAllBytes(new File(par + ".label").toPath()));
+
+    List<String> sharded = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      String shard = String.format("%s.part-%05d", shards, i);
+      List<String> shardLines = Files.readAllLines(new File(shard).toPath());
+      List<String> shardLabels = Files.readAllLines(new File(shard + ".label").toPath());
+      assertEquals(shardLines.size(), shardLabels.size());
+      for (int l = 0; l < shardLines.size(); l++) {
+        assertEquals(shardLabels.get(l), shardLines.get(l).replaceAll("^[^']*'(\\d+)\\|.*", "$1"));
+      }
+      sharded.addAll(shardLines);
+    }
+    Collections.sort(lines);
+    Collections.sort(sharded);
+    assertEquals(lines, sharded);
+    delete(dir);
+  }
+
+  @Test
+  public void parallelLoadMatchesSequential() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    String clicks = new File(dir, "clicks.dat").getPath();
+    int threads = 7;
+    // Some chunk must start inside a session, whose events the chunks before and after then share
+    byte[] bytes = Files.readAllBytes(new File(clicks).toPath());
+    long[] ranges = MappedCsvReader.split(clicks, threads);
+    int split = 0;
+    for (int c = 1; c < threads; c++) {
+      int at = (int) ranges[c];
+      int previous = at - 1;
+      while (previous > 0 && bytes[previous - 1] != '\n') {
+        previous--;
+      }
+      String before = new String(bytes, previous, at - previous, StandardCharsets.US_ASCII);
+      String after = new String(bytes, at, bytes.length - at, StandardCharsets.US_ASCII);
+      split += before.split(",")[0].equals(after.split(",")[0]) ? 1 : 0;
+    }
+    assertTrue(split > 0);
+
+    for (Format f : new Format[] {Format.VW, Format.LIBSVM}) {
+      String seq = new File(dir, "seq." + f).getPath();
+      load(dir, f).output(seq);
+      YoochooseParser2 p = new YoochooseParser2(f, Mode.TRAIN);
+      p.load(clicks, Event.Type.CLICK, ',', threads);
+      p.load(new File(dir, "buys.dat").getPath(), Event.Type.PURCHASE, ',', threads);
+      p.analyse();
+      String par = new File(dir, "par." + f).getPath();
+      p.output(par);
+      for (String suffix : new String[] {"", ".label"}) {
+        assertArrayEquals(f + suffix, Files.readAllBytes(new File(seq + suffix).toPath()),
+            Files.readAllBytes(new File(par + suffix).toPath()));
+      }
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void streamMatchesLoadAndOutput() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    // A purchase-only session, which both write too
+    try (PrintWriter b = new PrintWriter(new FileWriter(new File(dir, "buys.dat"), true))) {
+      b.printf("5001,2014-04-02T11:00:00.000Z,150,300,1%n");
+    }
+    String loaded = new File(dir, "loaded.vw").getPath();
+    load(dir, Format.VW).output(loaded);
+    String streamed = new File(dir, "streamed.vw").getPath();
+    YoochooseParser2 p = new YoochooseParser2(Format.VW, Mode.TRAIN);
+    p.setIndexBoundedRuns(true);
+    p.stream(new File(dir, "clicks.dat").getPath(), new File(dir, "buys.dat").getPath(), ',',
+        streamed);
+
+    assertEquals(5_001, Files.readAllLines(new File(streamed).toPath()).size());
+    for (String suffix : new String[] {"", ".label"}) {
+      assertArrayEquals(suffix, Files.readAllBytes(new File(loaded + suffix).toPath()),
+          Files.readAllBytes(new File(streamed + suffix).toPath()));
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void boundedRunsLeaveOutIndexes() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    String clicks = new File(dir, "clicks.dat").getPath();
+    String buys = new File(dir, "buys.dat").getPath();
+    String loaded = new File(dir, "loaded.vw").getPath();
+    load(dir, Format.VW).output(loaded);
+    List<String> expected = new ArrayList<>();
+    for (String l : Files.readAllLines(new File(loaded).toPath())) {
+      expected.add(l.replaceAll(" co(View|Purchase)Links:\\d+", " co$1Links:0")
+          .replaceAll(" similarSessions:\\d+ similarPurchaseRate:[^|]*",
+              " similarSessions:0 similarPurchaseRate:0.0"));
+    }
+    assertFalse(expected.equals(Files.readAllLines(new File(loaded).toPath())));
+
+    String streamed = new File(dir, "streamed.vw").getPath();
+    YoochooseParser2 p = new YoochooseParser2(Format.VW, Mode.TRAIN);
+    p.stream(clicks, buys, ',', streamed);
+    assertNull(p.coViews());
+    assertNull(p.similarSessions());
+    assertEquals(expected, Files.readAllLines(new File(streamed).toPath()));
+
+    for (boolean index : new boolean[] {false, true}) {
+      File spillDir = new File(dir, "spill-" + index);
+      spillDir.mkdir();
+      YoochooseParser2 spilled = new YoochooseParser2(Format.VW, Mode.TRAIN, spillDir, 100_000);
+      spilled.setIndexBoundedRuns(index);
+      spilled.load(clicks, Event.Type.CLICK, ',');
+      spilled.load(buys, Event.Type.PURCHASE, ',');
+      spilled.analyse();
+      String out = new File(dir, "spilled.vw").getPath();
+      spilled.output(out);
+      assertEquals(index, spilled.coPurchases() != null);
+      assertEquals(index, spilled.similarSessions() != null);
+      assertEquals(index ? Files.readAllLines(new File(loaded).toPath()) : expected,
+          Files.readAllLines(new File(out).toPath()));
+      delete(spillDir);
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void streamStopsAtASessionOutOfOrder() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    Set<String> buyers = new HashSet<>();
+    for (String l : Files.readAllLines(new File(dir, "buys.dat").toPath())) {
+      buyers.add(l.split(",")[0]);
+    }
+    // A session without buys, which would otherwise be written as purchase-only in its place
+    int moved = 10;
+    while (buyers.contains(Integer.toString(moved))) {
+      moved++;
+    }
+    // Session moved's clicks come after those of session moved + 10
+    List<String> clicks = Files.readAllLines(new File(dir, "clicks.dat").toPath());
+    List<String> unordered = new ArrayList<>();
+    List<String> late = new ArrayList<>();
+    for (String l : clicks) {
+      (l.startsWith(moved + ",") ? late : unordered).add(l);
+    }
+    int at = 0;
+    while (!unordered.get(at).startsWith((moved + 11) + ",")) {
+      at++;
+    }
+    unordered.addAll(at, late);
+    File unorderedClicks = new File(dir, "unordered.dat");
+    Files.write(unorderedClicks.toPath(), unordered);
+
+    String streamed = new File(dir, "streamed.vw").getPath();
+    new YoochooseParser2(Format.VW, Mode.TRAIN).stream(unorderedClicks.getPath(),
+        new File(dir, "buys.dat").getPath(), ',', streamed);
+    // Stopped at the session out of order, what was written up to there is deleted
+    assertFalse(new File(streamed).exists());
+    assertFalse(new File(streamed + ".label").exists());
+    delete(dir);
+  }
+
+  @Test
+  public void streamTakesBuysInAnyOrder() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    File buys = new File(dir, "buys.dat");
+    List<String> lines = new ArrayList<>(Files.readAllLines(buys.toPath()));
+    // Sessions that bought two items, so there are co-purchases, and a purchase-only one
+    for (int s = 1; s <= 300; s += 3) {
+      lines.add(String.format("%d,2014-04-%02dT12:00:00.000Z,%d,100,1", s, 1 + s % 28, 100 + s));
+      lines.add(String.format("%d,2014-04-%02dT12:01:00.000Z,%d,100,1", s, 1 + s % 28, 101 + s));
+    }
+    lines.add("5001,2014-04-02T11:00:00.000Z,150,300,1");
+    Collections.shuffle(lines, new Random(3));
+    Files.write(buys.toPath(), lines);
+
+    String loaded = new File(dir, "loaded.vw").getPath();
+    YoochooseParser2 l = load(dir, Format.VW);
+    l.output(loaded);
+    String streamed = new File(dir, "streamed.vw").getPath();
+    YoochooseParser2 p = new YoochooseParser2(Format.VW, Mode.TRAIN);
+    p.setIndexBoundedRuns(true);
+    p.stream(new File(dir, "clicks.dat").getPath(), buys.getPath(), ',', streamed);
+
+    assertTrue(p.coPurchases().rows() > 100);
+    assertEquals(l.coPurchases().rows(), p.coPurchases().rows());
+    for (String suffix : new String[] {"", ".label"}) {
+      assertArrayEquals(suffix, Files.readAllBytes(new File(loaded + suffix).toPath()),
+          Files.readAllBytes(new File(streamed + suffix).toPath()));
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void testRunsCanUseTheTrainingIndexes() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    // Sessions that bought two of their clicked items, so there are co-purchases
+    Map<String, Set<String>> clicked = new HashMap<>();
+    for (String l : Files.readAllLines(new File(dir, "clicks.dat").toPath())) {
+      String[] f = l.split(",");
+      clicked.computeIfAbsent(f[0], k -> new TreeSet<>()).add(f[2]);
+    }
+    try (PrintWriter b = new PrintWriter(new FileWriter(new File(dir, "buys.dat"), true))) {
+      for (int s = 1; s <= 200; s++) {
+        Set<String> items = clicked.get(Integer.toString(s));
+        if (items.size() > 1) {
+          for (String item : new ArrayList<>(items).subList(0, 2)) {
+            b.printf("%d,2014-04-%02dT12:00:00.000Z,%s,100,1%n", s, 1 + s % 28, item);
+          }
+        }
+      }
+    }
+    YoochooseParser2 train = load(dir, Format.VW);
+    String[] features = {"recentPurchases", "coPurchaseLinks", "similarPurchaseRate"};
+    for (boolean given : new boolean[] {false, true}) {
+      // The same clicks as a test file, without their buys
+      YoochooseParser2 test = new YoochooseParser2(Format.VW, Mode.TEST);
+      if (given) {
+        test.setPopularity(train.popularity());
+        test.setCoOccurrence(train.coViews(), train.coPurchases());
+        test.setSimilarSessions(train.similarSessions());
+      }
+      test.load(new File(dir, "clicks.dat").getPath(), Event.Type.CLICK, ',');
+      test.analyse();
+      assertEquals(given, test.coPurchases() == train.coPurchases());
+      String out = new File(dir, "test.vw").getPath();
+      test.output(out);
+      List<String> lines = Files.readAllLines(new File(out).toPath());
+      assertEquals(5_000, lines.size());
+      for (String f : features) {
+        boolean nonZero = false;
+        for (String l : lines) {
+          nonZero |= !l.matches(".* " + f + ":0(\\.0)?[ |].*");
+        }
+        // Without the training run's indexes always 0
+        assertEquals(f, given, nonZero);
+      }
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void buildMapsMatchesBuildMap() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    String separate = new File(dir, "separate.vw").getPath();
+    YoochooseParser p = new YoochooseParser(5_000, 1_000, Format.VW, Mode.TRAIN, false);
+    p.buildMap(new File(dir, "clicks.dat").getPath(), Event.Type.CLICK, ',');
+    p.buildMap(new File(dir, "buys.dat").getPath(), Event.Type.PURCHASE, ',');
+    p.analyse();
+    p.output(separate);
+    String joined = new File(dir, "joined.vw").getPath();
+    buildMaps(dir).output(joined);
+
+    assertEquals(5_000, Files.readAllLines(new File(joined).toPath()).size());
+    for (String suffix : new String[] {"", ".label"}) {
+      assertArrayEquals(suffix, Files.readAllBytes(new File(separate + suffix).toPath()),
+          Files.readAllBytes(new File(joined + suffix).toPath()));
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void buildMapsKeepsPurchaseOnlySessions() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    try (PrintWriter b = new PrintWriter(new FileWriter(new File(dir, "buys.dat"), true))) {
+      b.printf("5001,2014-04-02T11:00:00.000Z,150,300,1%n");
+    }
+    String joined = new File(dir, "joined.vw").getPath();
+    buildMaps(dir).output(joined);
+
+    List<String> ids = Files.readAllLines(new File(joined + ".label").toPath());
+    assertEquals(5_001, ids.size());
+    assertTrue(ids.contains("5001"));
+    delete(dir);
+  }
+
+  @Test
+  public void buildMapsTakesBuysInAnyOrder() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    File buys = new File(dir, "buys.dat");
+    List<String> lines = new ArrayList<>(Files.readAllLines(buys.toPath()));
+    for (int s = 1; s <= 200; s += 7) {
+      lines.add(s + ",2014-04-03T11:00:00.000Z,150,300,2");
+    }
+    Collections.shuffle(lines, new Random(5));
+    Files.write(buys.toPath(), lines);
+    String separate = new File(dir, "separate.vw").getPath();
+    YoochooseParser p = new YoochooseParser(5_000, 1_000, Format.VW, Mode.TRAIN, false);
+    p.buildMap(new File(dir, "clicks.dat").getPath(), Event.Type.CLICK, ',');
+    p.buildMap(buys.getPath(), Event.Type.PURCHASE, ',');
+    p.analyse();
+    p.output(separate);
+    String joined = new File(dir, "joined.vw").getPath();
+    buildMaps(dir).output(joined);
+
+    // The same sessions, though not in the same order, as that follows the order buyers are added
+    for (String suffix : new String[] {"", ".label"}) {
+      List<String> expected = Files.readAllLines(new File(separate + suffix).toPath());
+      List<String> actual = Files.readAllLines(new File(joined + suffix).toPath());
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(suffix, expected, actual);
+    }
+    delete(dir);
+  }
+
+  @Test
+  public void buildMapsReportsClicksOutOfOrder() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    try (PrintWriter c = new PrintWriter(new FileWriter(new File(dir, "clicks.dat"), true))) {
+      c.printf("3,2014-04-03T11:00:00.000Z,150,1%n");
+    }
+    // The join logs rather than throws, so listen to the parser's log
+    Logger log = (Logger) LoggerFactory.getLogger(YoochooseParser.class);
+    ListAppender<ILoggingEvent> errors = new ListAppender<>();
+    errors.start();
+    log.addAppender(errors);
+    try {
+      buildMaps(dir);
+    } finally {
+      log.detachAppender(errors);
+    }
+    boolean reported = false;
+    for (ILoggingEvent e : errors.list) {
+      reported |= e.getLevel() == Level.ERROR && e.getThrowableProxy() != null
+          && e.getThrowableProxy().getMessage().startsWith("Session 3 found after session");
+    }
+    assertTrue(reported);
+    delete(dir);
+  }
+
+  @Test
+  public void csrHoldsTheLibSvmFeatures() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    YoochooseParser2 libsvm = load(dir, Format.LIBSVM);
+    libsvm.setFeatureHashing(18, true);
+    String text = new File(dir, "out.svm").getPath();
+    libsvm.output(text);
+    YoochooseParser2 csr = load(dir, Format.CSR);
+    csr.setFeatureHashing(18, true);
+    String bin = new File(dir, "out.csr").getPath();
+    csr.output(bin, 2);
+    assertFalse(new File(bin + ".label").exists());
+
+    // catSimilarity's id and sign
+    LineEncoder cat = new LineEncoder();
+    FeaturePlan plan = FeaturePlan.hashed(Format.LIBSVM, 1, 18, true);
+    plan.session(cat, SessionFeature.CAT_SIMILARITY, 1);
+    plan.endLine(cat);
+    String[] catIdSign = cat.toString().trim().split(":");
+    int catId = Integer.parseInt(catIdSign[0]);
+    long catSign = Long.parseLong(catIdSign[1]);
+
+    List<String> lines = Files.readAllLines(new File(text).toPath());
+    List<String> ids = Files.readAllLines(new File(text + ".label").toPath());
+    ByteBuffer b =
+        ByteBuffer.wrap(Files.readAllBytes(new File(bin).toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(lines.size(), b.getLong(8));
+    assertEquals(1L << 18, b.getLong(16));
+    int indices = (int) b.getLong(32);
+    int values = (int) b.getLong(40);
+    int offsets = (int) b.getLong(48);
+    int labels = (int) b.getLong(56);
+    int sessions = (int) b.getLong(64);
+    int categories = (int) b.getLong(72);
+    boolean brand = false;
+    for (int r = 0; r < lines.size(); r++) {
+      String[] features = lines.get(r).trim().split(" ");
+      assertEquals(Float.parseFloat(features[0]), b.getFloat(labels + 4 * r), 0.0f);
+      assertEquals(Integer.parseInt(ids.get(r)), b.getInt(sessions + 4 * r));
+      long at = b.getLong(offsets + 8 * r);
+      // The non-zero features but catSimilarity, which is the row's category
+      for (int i = 1; i < features.length; i++) {
+        String[] idValue = features[i].split(":");
+        int id = Integer.parseInt(idValue[0]);
+        float value = Float.parseFloat(idValue[1]);
+        if (id == catId) {
+          int category = b.getInt(categories + 4 * r);
+          assertEquals(catSign * category, Long.parseLong(idValue[1]));
+          brand |= category >= 1e9;
+        } else if (value != 0.0f) {
+          assertEquals(id, b.getInt(indices + (int) at * 4));
+          assertEquals(value, b.getFloat(values + (int) at * 4), Math.ulp(value));
+          at++;
+        }
+      }
+      assertEquals(at, b.getLong(offsets + 8 * (r + 1)));
+    }
+    assertTrue(brand);
+    delete(dir);
+  }
+
+  @Test
+  public void outputsFromOneMatrixMatchDirectOutput() throws IOException {
+    File dir = Files.createTempDirectory("yoochoose").toFile();
+    writeSessions(dir);
+    Map<Format, String> names = new EnumMap<>(Format.class);
+    for (Format f : Format.values()) {
+      YoochooseParser2 direct = load(dir, f);
+      direct.setFeatureHashing(16, true);
+      direct.output(new File(dir, "direct." + f).getPath());
+      names.put(f, new File(dir, "matrix." + f).getPath());
+    }
+    YoochooseParser2 p = load(dir, Format.VW);
+    p.setFeatureHashing(16, true);
+    p.output(names, 3);
+
+    for (Format f : Format.values()) {
+      String[] suffixes = f == Format.CSR ? new String[] {""} : new String[] {"", ".label"};
+      for (String suffix : suffixes) {
+        assertArrayEquals(f + suffix,
+            Files.readAllBytes(new File(dir, "direct." + f + suffix).toPath()),
+            Files.readAllBytes(new File(dir, "matrix." + f + suffix).toPath()));
+      }
+    }
+    FeatureMatrix m = p.features(1);
+    assertEquals(5_000, m.rows());
+    assertEquals(Files.readAllLines(new File(dir, "direct.VW.label").toPath()).get(7),
+        Integer.toString(m.sessionId(7)));
+    delete(dir);
+  }
+
+  /**
+   * Writes clicks.dat and buys.dat of 5,000 random sessions, about 1 in 10 with a purchase.
+   */
+  private static void writeSessions(File inDir) throws IOException {
+    Random r = new Random(9);
+    try (PrintWriter c = new PrintWriter(new File(inDir, "clicks.dat"));
+        PrintWriter b = new PrintWriter(new File(inDir, "buys.dat"))) {
+      for (int s = 1; s <= 5_000; s++) {
+        int n = 1 + r.nextInt(6);
+        for (int e = 0; e < n; e++) {
+          int kind = r.nextInt(8);
+          // Special offers, plain categories and brands, whose 10 digit ids a float cannot hold
+          String category = kind < 2 ? "S"
+              : Integer.toString(kind == 2 ? 2_000_000_001 + r.nextInt(100) : r.nextInt(12));
+          c.printf("%d,2014-04-%02dT10:%02d:00.000Z,%d,%s%n", s, 1 + s % 28, e,
+              100 + r.nextInt(300), category);
+        }
+        if (r.nextInt(10) == 0) {
+          b.printf("%d,2014-04-%02dT11:00:00.000Z,%d,%d,1%n", s, 1 + s % 28, 100 + r.nextInt(300),
+              1 + r.nextInt(5_000));
+        }
+      }
+    }
+  }
+
+  private static YoochooseParser2 load(File inDir, Format inF) {
+    YoochooseParser2 rVal = new YoochooseParser2(inF, Mode.TRAIN);
+    rVal.load(new File(inDir, "clicks.dat").getPath(), Event.Type.CLICK, ',');
+    rVal.load(new File(inDir, "buys.dat").getPath(), Event.Type.PURCHASE, ',');
+    rVal.analyse();
+    return rVal;
+  }
+
+  private static YoochooseParser buildMaps(File inDir) {
+    YoochooseParser rVal = new YoochooseParser(5_000, 1_000, Format.VW, Mode.TRAIN, false);
+    rVal.buildMaps(new File(inDir, "clicks.dat").getPath(), new File(inDir, "buys.dat").getPath(),
+        ',');
+    rVal.analyse();
+    return rVal;
+  }
+
+  private static void delete(File inDir) {
+    for (File f : inDir.listFiles()) {
+      f.delete();
+    }
+    inDir.delete();
+  }
 }